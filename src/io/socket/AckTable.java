@@ -0,0 +1,268 @@
+/*
+ * socket.io-java-client AckTable.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class AckTable. Holds the {@link IOAcknowledge}s waiting for the
+ * server. Entries are kept in an open addressing hash table keyed by the
+ * plain int id, which grows and shrinks with the number of pending
+ * acknowledges, and are linked in the order they have been added. Once the
+ * maximum number of acknowledges is pending, adding one drops the oldest.
+ * Ids are handed out without locking, all other operations lock the table
+ * briefly.
+ */
+class AckTable {
+
+	/** Smallest size of {@link #table}, a power of two. */
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * The Class Entry. A pending acknowledge.
+	 */
+	static class Entry {
+
+		/** The message id. */
+		final int id;
+
+		/** The acknowledge. */
+		final IOAcknowledge ack;
+
+		/** The socket which sent the message. */
+		final SocketIO socket;
+
+		/** {@link System#nanoTime()} to expire at, 0 to wait forever. */
+		final long deadline;
+
+		/** The entry added before this one, null if this is the oldest. */
+		private Entry older;
+
+		/** The entry added after this one, null if this is the newest. */
+		private Entry newer;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param id
+		 *            the message id
+		 * @param ack
+		 *            the acknowledge
+		 * @param socket
+		 *            the socket which sent the message
+		 * @param deadline
+		 *            {@link System#nanoTime()} to expire at, 0 to wait forever
+		 */
+		Entry(int id, IOAcknowledge ack, SocketIO socket, long deadline) {
+			this.id = id;
+			this.ack = ack;
+			this.socket = socket;
+			this.deadline = deadline;
+		}
+	}
+
+	/** The maximum number of pending acknowledges. */
+	private final int maxPending;
+
+	/**
+	 * The entries by id, linear probing from slot id modulo the length. At
+	 * most half of the slots are used.
+	 */
+	private Entry[] table = new Entry[MIN_CAPACITY];
+
+	/** Number of pending acknowledges. */
+	private int count = 0;
+
+	/** The oldest entry, null if the table is empty. */
+	private Entry oldest = null;
+
+	/** The newest entry, null if the table is empty. */
+	private Entry newest = null;
+
+	/** The next id to hand out. */
+	private final AtomicInteger nextId = new AtomicInteger(1);
+
+	/**
+	 * Instantiates a new table.
+	 *
+	 * @param maxPending
+	 *            the maximum number of pending acknowledges
+	 */
+	AckTable(int maxPending) {
+		if (maxPending < 1)
+			throw new IllegalArgumentException(
+					"At least one acknowledge must be allowed.");
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Hands out a new message id.
+	 *
+	 * @return a positive id
+	 */
+	int nextId() {
+		int id;
+		do {
+			id = nextId.getAndIncrement() & Integer.MAX_VALUE;
+		} while (id == 0);
+		return id;
+	}
+
+	/**
+	 * Adds a pending acknowledge. If the maximum number of acknowledges is
+	 * pending already, the oldest one is dropped.
+	 *
+	 * @param entry
+	 *            the entry, its id must be taken from {@link #nextId()}
+	 * @return the entry which has been dropped to make room, or null
+	 */
+	synchronized Entry put(Entry entry) {
+		Entry dropped = null;
+		if (count >= maxPending) {
+			dropped = oldest;
+			delete(dropped);
+		}
+		if (2 * (count + 1) > table.length)
+			resize(2 * table.length);
+		int mask = table.length - 1;
+		int slot = entry.id & mask;
+		while (table[slot] != null)
+			slot = (slot + 1) & mask;
+		table[slot] = entry;
+		count++;
+		entry.older = newest;
+		if (newest != null)
+			newest.newer = entry;
+		else
+			oldest = entry;
+		newest = entry;
+		return dropped;
+	}
+
+	/**
+	 * Removes a pending acknowledge.
+	 *
+	 * @param id
+	 *            the message id
+	 * @return the entry, or null if there is none for this id
+	 */
+	synchronized Entry remove(int id) {
+		int mask = table.length - 1;
+		for (int slot = id & mask; table[slot] != null; slot = (slot + 1)
+				& mask) {
+			Entry entry = table[slot];
+			if (entry.id == id) {
+				delete(entry);
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes all entries which are due. Only visits pending entries.
+	 *
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 * @param expired
+	 *            receives the removed entries
+	 */
+	synchronized void removeExpired(long now, List<Entry> expired) {
+		Entry entry = oldest;
+		while (entry != null) {
+			Entry next = entry.newer;
+			if (entry.deadline != 0 && now - entry.deadline >= 0) {
+				delete(entry);
+				expired.add(entry);
+			}
+			entry = next;
+		}
+	}
+
+	/**
+	 * Removes all entries.
+	 *
+	 * @param removed
+	 *            receives the removed entries, oldest first
+	 */
+	synchronized void clear(List<Entry> removed) {
+		for (Entry entry = oldest; entry != null; entry = entry.newer)
+			removed.add(entry);
+		table = new Entry[MIN_CAPACITY];
+		count = 0;
+		oldest = null;
+		newest = null;
+	}
+
+	/**
+	 * Returns the number of pending acknowledges.
+	 *
+	 * @return the number of entries
+	 */
+	synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Unlinks an entry of the table and frees its slot, shifting back the
+	 * entries probed past it. Shrinks the table once it is mostly empty.
+	 *
+	 * @param entry
+	 *            the entry, must be in the table
+	 */
+	private void delete(Entry entry) {
+		int mask = table.length - 1;
+		int hole = entry.id & mask;
+		while (table[hole] != entry)
+			hole = (hole + 1) & mask;
+		table[hole] = null;
+		for (int slot = (hole + 1) & mask; table[slot] != null; slot = (slot + 1)
+				& mask) {
+			int home = table[slot].id & mask;
+			// Move the entry unless its probe starts after the hole.
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				table[hole] = table[slot];
+				table[slot] = null;
+				hole = slot;
+			}
+		}
+		count--;
+		if (entry.older != null)
+			entry.older.newer = entry.newer;
+		else
+			oldest = entry.newer;
+		if (entry.newer != null)
+			entry.newer.older = entry.older;
+		else
+			newest = entry.older;
+		entry.older = null;
+		entry.newer = null;
+		if (table.length > MIN_CAPACITY && 8 * count < table.length)
+			resize(table.length / 2);
+	}
+
+	/**
+	 * Moves all entries into a table of a new size.
+	 *
+	 * @param capacity
+	 *            the new size, a power of two
+	 */
+	private void resize(int capacity) {
+		Entry[] table = new Entry[capacity];
+		int mask = capacity - 1;
+		for (Entry entry = oldest; entry != null; entry = entry.newer) {
+			int slot = entry.id & mask;
+			while (table[slot] != null)
+				slot = (slot + 1) & mask;
+			table[slot] = entry;
+		}
+		this.table = table;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * socket.io-java-client Backoff.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+/**
+ * The Class Backoff. Computes exponentially growing delays for repeated
+ * unsuccessful attempts. Override {@link #getDelay(int)} for custom policies.
+ */
+public class Backoff {
+
+	/** Delay before the first retry in milliseconds. */
+	private final long initialDelay;
+
+	/** Upper bound of the delay in milliseconds. */
+	private final long maxDelay;
+
+	/** Factor the delay grows with each attempt. */
+	private final double multiplier;
+
+	/** true if the delay is randomized between 0 and the computed delay. */
+	private final boolean jitter;
+
+	/**
+	 * Instantiates a new backoff which doubles the delay with each attempt.
+	 *
+	 * @param initialDelay
+	 *            delay before the first retry in milliseconds
+	 * @param maxDelay
+	 *            upper bound of the delay in milliseconds
+	 */
+	public Backoff(long initialDelay, long maxDelay) {
+		this(initialDelay, maxDelay, 2, false);
+	}
+
+	/**
+	 * Instantiates a new backoff.
+	 *
+	 * @param initialDelay
+	 *            delay before the first retry in milliseconds
+	 * @param maxDelay
+	 *            upper bound of the delay in milliseconds
+	 * @param multiplier
+	 *            factor the delay grows with each attempt
+	 * @param jitter
+	 *            true to pick a random delay between 0 and the computed one
+	 *            ("full jitter")
+	 */
+	public Backoff(long initialDelay, long maxDelay, double multiplier,
+			boolean jitter) {
+		if (initialDelay < 0 || maxDelay < initialDelay || multiplier < 1)
+			throw new IllegalArgumentException("Invalid backoff parameters");
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Returns the delay before the next attempt.
+	 *
+	 * @param attempt
+	 *            the number of unsuccessful attempts in a row, 0 if the last
+	 *            attempt succeeded
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay(int attempt) {
+		if (attempt <= 0)
+			return 0;
+		double delay = initialDelay * Math.pow(multiplier, attempt - 1);
+		if (delay > maxDelay)
+			delay = maxDelay;
+		if (jitter)
+			delay = Math.random() * delay;
+		return (long) delay;
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * socket.io-java-client BufferPool.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class BufferPool. Hands out {@link ByteBuffer}s of {@link #BUFFER_SIZE}
+ * bytes and takes them back once they have been written, so sending does not
+ * allocate a buffer per message. Also encodes Strings to UTF-8 straight into
+ * buffers, replacing unpaired surrogates with '?' like
+ * {@link String#getBytes(String)} does.
+ */
+class BufferPool {
+
+	/** Size of the pooled buffers. */
+	static final int BUFFER_SIZE = 16 * 1024;
+
+	/** Maximum number of buffers kept for reuse. */
+	private static final int MAX_POOLED = 64;
+
+	/** The pool used for heap buffers. */
+	static final BufferPool HEAP = new BufferPool(false);
+
+	/** true if the buffers are direct buffers. */
+	private final boolean direct;
+
+	/** Buffers ready for reuse. */
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/** Number of buffers in {@link #buffers}. */
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Instantiates a new buffer pool.
+	 *
+	 * @param direct
+	 *            true to hand out direct buffers
+	 */
+	BufferPool(boolean direct) {
+		this.direct = direct;
+	}
+
+	/**
+	 * Returns a cleared buffer of at least the given size. Buffers larger than
+	 * {@link #BUFFER_SIZE} are allocated for the caller and not pooled.
+	 *
+	 * @param size
+	 *            the size in bytes
+	 * @return the buffer
+	 */
+	ByteBuffer acquire(int size) {
+		if (size > BUFFER_SIZE)
+			return allocate(size);
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null)
+			return allocate(BUFFER_SIZE);
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Takes back a buffer which is no longer used. Buffers not handed out by
+	 * {@link #acquire(int)} are ignored.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer.capacity() != BUFFER_SIZE || buffer.isDirect() != direct)
+			return;
+		if (pooled.incrementAndGet() > MAX_POOLED) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffers.add(buffer);
+	}
+
+	/**
+	 * Allocates a buffer.
+	 *
+	 * @param size
+	 *            the size in bytes
+	 * @return the buffer
+	 */
+	private ByteBuffer allocate(int size) {
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer
+				.allocate(size);
+	}
+
+	/**
+	 * Returns the length of a String encoded as UTF-8.
+	 *
+	 * @param text
+	 *            the text
+	 * @return the length in bytes
+	 */
+	static int utf8Length(String text) {
+		int length = text.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80)
+				continue;
+			if (c < 0x800)
+				bytes++;
+			else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				bytes += 2;
+				i++;
+			} else if (!isSurrogate(c))
+				bytes += 2;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Checks if a char is part of a surrogate pair.
+	 *
+	 * @param c
+	 *            the char
+	 * @return true if it is a high or low surrogate
+	 */
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
+	/**
+	 * Encodes a String as UTF-8 into a buffer, as far as it fits. Surrogate
+	 * pairs are never split.
+	 *
+	 * @param text
+	 *            the text
+	 * @param from
+	 *            the index of the first char to encode
+	 * @param buffer
+	 *            the buffer
+	 * @return the index of the first char not encoded, the length of the
+	 *         text if all of it has been encoded
+	 */
+	static int encode(String text, int from, ByteBuffer buffer) {
+		int length = text.length();
+		int i = from;
+		if (buffer.hasArray()) {
+			byte[] array = buffer.array();
+			int position = buffer.arrayOffset() + buffer.position();
+			int limit = buffer.arrayOffset() + buffer.limit();
+			// ASCII needs no checks beyond the bounds.
+			int ascii = Math.min(length, i + limit - position);
+			for (char c; i < ascii && (c = text.charAt(i)) < 0x80; i++)
+				array[position++] = (byte) c;
+			buffer.position(position - buffer.arrayOffset());
+		}
+		while (i < length) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				if (!buffer.hasRemaining())
+					break;
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				if (buffer.remaining() < 2)
+					break;
+				buffer.put((byte) (0xc0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				if (buffer.remaining() < 4)
+					break;
+				int code = Character.toCodePoint(c, text.charAt(++i));
+				buffer.put((byte) (0xf0 | (code >> 18)));
+				buffer.put((byte) (0x80 | ((code >> 12) & 0x3f)));
+				buffer.put((byte) (0x80 | ((code >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (code & 0x3f)));
+			} else if (isSurrogate(c)) {
+				if (!buffer.hasRemaining())
+					break;
+				buffer.put((byte) '?');
+			} else {
+				if (buffer.remaining() < 3)
+					break;
+				buffer.put((byte) (0xe0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			}
+			i++;
+		}
+		return i;
+	}
+}
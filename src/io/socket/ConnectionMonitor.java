@@ -0,0 +1,83 @@
+/*
+ * socket.io-java-client ConnectionMonitor.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Class ConnectionMonitor. A single periodic task shared by all
+ * {@link IOConnection}s which checks their deadlines, so that receiving a
+ * message never has to touch the scheduler.
+ */
+class ConnectionMonitor {
+
+	/** Interval between two checks in milliseconds. */
+	static final long CHECK_INTERVAL = 250;
+
+	/** The connections being monitored. */
+	private static final Set<IOConnection> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<IOConnection, Boolean>());
+
+	/** The periodic check. Null while no connection is monitored. */
+	private static ScheduledFuture<?> checkTask = null;
+
+	/** Checks all monitored connections. */
+	private static final Runnable check = new Runnable() {
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			for (IOConnection connection : connections) {
+				try {
+					connection.checkDeadlines(now);
+				} catch (RuntimeException e) {
+					IOConnection.logger.warning("Checking " + connection
+							+ " failed: " + e);
+				}
+			}
+		}
+	};
+
+	/**
+	 * Starts monitoring a connection.
+	 *
+	 * @param connection
+	 *            the connection
+	 */
+	static void watch(IOConnection connection) {
+		if (connections.add(connection)) {
+			synchronized (ConnectionMonitor.class) {
+				if (checkTask == null)
+					checkTask = IOConnection.getScheduler()
+							.scheduleWithFixedDelay(check, CHECK_INTERVAL,
+									CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Stops monitoring a connection.
+	 *
+	 * @param connection
+	 *            the connection
+	 */
+	static void unwatch(IOConnection connection) {
+		if (connections.remove(connection)) {
+			synchronized (ConnectionMonitor.class) {
+				if (connections.isEmpty() && checkTask != null) {
+					checkTask.cancel(false);
+					checkTask = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * socket.io-java-client DispatchingCallback.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.util.concurrent.Executor;
+
+import org.json.JSONObject;
+
+/**
+ * The Class DispatchingCallback. Forwards every call to an {@link IOCallback}
+ * through an {@link Executor}, so the caller does not run user code. Events
+ * are decoded by the executor too, unless the callback decodes them lazily.
+ */
+class DispatchingCallback implements IOLazyCallback {
+
+	/** The callback being called. */
+	private final IOCallback callback;
+
+	/** The executor calling {@link #callback}. */
+	private final Executor executor;
+
+	/**
+	 * Instantiates a new dispatching callback.
+	 *
+	 * @param callback
+	 *            the callback being called
+	 * @param executor
+	 *            the executor calling the callback. Must keep the order of
+	 *            tasks.
+	 */
+	DispatchingCallback(IOCallback callback, Executor executor) {
+		this.callback = callback;
+		this.executor = executor;
+	}
+
+	@Override
+	public void onDisconnect() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.onDisconnect();
+			}
+		});
+	}
+
+	@Override
+	public void onConnect() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.onConnect();
+			}
+		});
+	}
+
+	@Override
+	public void onMessage(final String data, final IOAcknowledge ack) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.onMessage(data, ack);
+			}
+		});
+	}
+
+	@Override
+	public void onMessage(final JSONObject json, final IOAcknowledge ack) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.onMessage(json, ack);
+			}
+		});
+	}
+
+	@Override
+	public void on(final String event, final IOAcknowledge ack,
+			final Object... args) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.on(event, ack, args);
+			}
+		});
+	}
+
+	@Override
+	public void onEvent(final String event, final IOAcknowledge ack,
+			final EventArguments args) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				IOConnection.deliver(callback, event, ack, args);
+			}
+		});
+	}
+
+	@Override
+	public void onError(final SocketIOException socketIOException) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.onError(socketIOException);
+			}
+		});
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * socket.io-java-client EncodedEvent.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import org.json.JSONException;
+
+/**
+ * The Class EncodedEvent. An event encoded once, to be emitted any number of
+ * times on any number of sockets, e.g. the same update to many namespaces or
+ * connections. Emitting it only adds the header of the socket.io message.
+ * Immutable; the arguments are encoded when it is created, so changing them
+ * afterwards does not change the event.
+ */
+public final class EncodedEvent {
+
+	/** The name of the event. */
+	private final String name;
+
+	/** The data of the event message. */
+	private final String data;
+
+	/**
+	 * Encodes an event with the codec set by
+	 * {@link SocketIO#setDefaultJsonCodec(JsonCodec)}.
+	 *
+	 * @param name
+	 *            the event name
+	 * @param args
+	 *            arguments. can be any argument
+	 *            {@link org.json.JSONArray#put(Object)} can take.
+	 * @throws JSONException
+	 *             if the arguments can't be serialized
+	 */
+	public EncodedEvent(String name, Object... args) throws JSONException {
+		this.name = name;
+		this.data = encode(name, args);
+	}
+
+	/**
+	 * Encodes the data of an event message.
+	 *
+	 * @param name
+	 *            the event name
+	 * @param args
+	 *            the arguments
+	 * @return the data
+	 * @throws JSONException
+	 *             if the arguments can't be serialized
+	 */
+	static String encode(String name, Object... args) throws JSONException {
+		JsonCodec codec = IOConnection.getJsonCodec();
+		StringBuilder json = new StringBuilder(64).append("{\"name\":");
+		codec.encode(name, json);
+		json.append(",\"args\":");
+		codec.encode(args, json);
+		return json.append('}').toString();
+	}
+
+	/**
+	 * Returns the name of the event.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the data of the event message, the name and arguments as
+	 * JSON.
+	 *
+	 * @return the data
+	 */
+	public String getData() {
+		return data;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return data;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * socket.io-java-client EventArguments.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The Class EventArguments. The arguments of a received event, decoded one
+ * by one when they are first asked for. Decoded arguments are kept, so every
+ * argument is decoded at most once. See {@link IOLazyCallback}.
+ */
+public class EventArguments {
+
+	/** Marks arguments not decoded yet. */
+	private static final Object UNDECODED = new Object();
+
+	/** The data of the event. */
+	private final String data;
+
+	/** The name of the event. */
+	private final String event;
+
+	/** Start and end of each argument in {@link #data}, one after the other. */
+	private final int[] bounds;
+
+	/** The codec decoding the arguments. */
+	private final JsonCodec codec;
+
+	/** The decoded arguments. */
+	private final Object[] values;
+
+	/**
+	 * Reads the name of an event and finds its arguments, checking the
+	 * syntax of the data but decoding nothing else. Data is read as strict
+	 * JSON, unless the codec is another one than {@link StreamingJsonCodec}.
+	 * Then the codec decodes it first, so the event is accepted if the codec
+	 * accepts it.
+	 *
+	 * @param data
+	 *            the data of the event
+	 * @param codec
+	 *            the codec decoding the arguments
+	 * @throws JSONException
+	 *             if the data is malformed or the name is missing
+	 */
+	EventArguments(String data, JsonCodec codec) throws JSONException {
+		if (codec instanceof StreamingJsonCodec == false) {
+			StringBuilder normalized = new StringBuilder(data.length());
+			codec.encode(codec.decode(data), normalized);
+			data = normalized.toString();
+		}
+		StreamingJsonCodec.Parser parser = new StreamingJsonCodec.Parser(data);
+		String event = null;
+		int[] bounds = new int[0];
+		parser.expect('{');
+		if (!parser.next('}')) {
+			do {
+				parser.expect('"');
+				String key = parser.string();
+				parser.expect(':');
+				if ("name".equals(key)) {
+					Object name = parser.value();
+					if (name instanceof String == false)
+						throw parser.error("Event name expected");
+					event = (String) name;
+				} else if ("args".equals(key))
+					bounds = parser.elements();
+				else
+					parser.skip();
+			} while (parser.next(','));
+			parser.expect('}');
+		}
+		if (parser.skipWhitespace() != -1)
+			throw parser.error("Unexpected data after the event");
+		if (event == null)
+			throw new JSONException("Event name missing");
+		this.data = data;
+		this.event = event;
+		this.bounds = bounds;
+		this.codec = codec;
+		this.values = new Object[bounds.length / 2];
+		for (int i = 0; i < values.length; i++)
+			values[i] = UNDECODED;
+	}
+
+	/**
+	 * Returns the name of the event.
+	 *
+	 * @return the name
+	 */
+	String getEvent() {
+		return event;
+	}
+
+	/**
+	 * Returns the number of arguments.
+	 *
+	 * @return the number of arguments
+	 */
+	public int length() {
+		return values.length;
+	}
+
+	/**
+	 * Returns the JSON text of an argument without decoding it.
+	 *
+	 * @param index
+	 *            the index of the argument
+	 * @return the text
+	 */
+	public String getRaw(int index) {
+		if (index < 0 || index >= values.length)
+			throw new IndexOutOfBoundsException("Argument " + index
+					+ " of " + values.length);
+		return data.substring(bounds[index * 2], bounds[index * 2 + 1]);
+	}
+
+	/**
+	 * Returns an argument, decoding it if it has not been decoded yet.
+	 *
+	 * @param index
+	 *            the index of the argument
+	 * @return the argument like {@link IOCallback#on(String, IOAcknowledge,
+	 *         Object...)} would get it, null for JSON null
+	 * @throws JSONException
+	 *             if the codec fails to decode the argument
+	 */
+	public synchronized Object get(int index) throws JSONException {
+		Object value = values[index];
+		if (value == UNDECODED) {
+			value = codec.decode(getRaw(index));
+			if (JSONObject.NULL.equals(value))
+				value = null;
+			values[index] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Decodes all arguments.
+	 *
+	 * @return the arguments like {@link IOCallback#on(String, IOAcknowledge,
+	 *         Object...)} gets them
+	 * @throws JSONException
+	 *             if the codec fails to decode an argument
+	 */
+	public Object[] toArray() throws JSONException {
+		Object[] args = new Object[values.length];
+		for (int i = 0; i < args.length; i++)
+			args[i] = get(i);
+		return args;
+	}
+}
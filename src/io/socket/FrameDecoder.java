@@ -0,0 +1,157 @@
+/*
+ * socket.io-java-client FrameDecoder.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * The Class FrameDecoder. Splits a socket.io payload into messages while
+ * reading it. A payload is either a single message or a sequence of frames,
+ * each made of a length and the message, both preceded by
+ * {@link IOConnection#FRAME_DELIMITER}. The length counts UTF-16 chars like
+ * JavaScript does. Every character is looked at once and frames are returned
+ * as soon as they are complete, so large payloads are never held as a whole.
+ */
+class FrameDecoder {
+
+	/** The frame delimiter. */
+	private static final char DELIMITER = IOConnection.FRAME_DELIMITER
+			.charAt(0);
+
+	/** Size of the read buffer. */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** The source of the payload. */
+	private final Reader reader;
+
+	/** Characters read but not consumed yet. */
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	/** Position of the next character to consume in {@link #buffer}. */
+	private int position = 0;
+
+	/** Number of valid characters in {@link #buffer}. */
+	private int limit = 0;
+
+	/** true after the first character has been looked at. */
+	private boolean started = false;
+
+	/** true if the payload consists of frames. */
+	private boolean framed = false;
+
+	/**
+	 * Instantiates a new frame decoder.
+	 *
+	 * @param reader
+	 *            the source of the payload
+	 */
+	FrameDecoder(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Returns the next message of the payload.
+	 *
+	 * @return the message, null if the payload has been consumed completely.
+	 * @throws IOException
+	 *             if reading fails or the payload is malformed
+	 */
+	String next() throws IOException {
+		if (!started) {
+			started = true;
+			if (!fill())
+				return null;
+			framed = buffer[position] == DELIMITER;
+			if (!framed)
+				return readRemaining();
+		}
+		if (!framed || (position == limit && !fill()))
+			return null;
+		if (buffer[position++] != DELIMITER)
+			throw new IOException("Garbage from server: frame delimiter expected");
+		int length = 0;
+		while (true) {
+			if (position == limit && !fill())
+				throw new IOException("Garbage from server: truncated frame");
+			char c = buffer[position++];
+			if (c == DELIMITER)
+				break;
+			if (c < '0' || c > '9' || length > (Integer.MAX_VALUE - 9) / 10)
+				throw new IOException("Garbage from server: invalid frame length");
+			length = length * 10 + (c - '0');
+		}
+		return readFrame(length);
+	}
+
+	/**
+	 * Reads a frame of the given length. The length comes from the server,
+	 * so the frame grows with the chars actually read instead of being
+	 * allocated up front.
+	 *
+	 * @param length
+	 *            the length in chars
+	 * @return the frame
+	 * @throws IOException
+	 *             if reading fails or the payload ends early
+	 */
+	private String readFrame(int length) throws IOException {
+		int available = limit - position;
+		if (available >= length) {
+			String frame = new String(buffer, position, length);
+			position += length;
+			return frame;
+		}
+		StringBuilder frame = new StringBuilder(available + BUFFER_SIZE);
+		int missing = length;
+		do {
+			if (position == limit && !fill())
+				throw new IOException("Garbage from server: truncated frame");
+			int n = Math.min(limit - position, missing);
+			frame.append(buffer, position, n);
+			position += n;
+			missing -= n;
+		} while (missing > 0);
+		return frame.toString();
+	}
+
+	/**
+	 * Reads everything left. Used for payloads which are not framed.
+	 *
+	 * @return the rest of the payload
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private String readRemaining() throws IOException {
+		StringBuilder builder = new StringBuilder(limit - position);
+		do {
+			builder.append(buffer, position, limit - position);
+			position = limit;
+		} while (fill());
+		return builder.toString();
+	}
+
+	/**
+	 * Refills {@link #buffer}. Must only be called when all characters have
+	 * been consumed.
+	 *
+	 * @return false if the end of the payload has been reached
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private boolean fill() throws IOException {
+		int n;
+		do {
+			n = reader.read(buffer, 0, buffer.length);
+		} while (n == 0);
+		position = 0;
+		limit = Math.max(n, 0);
+		return n > 0;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * socket.io-java-client FramePrefixes.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+
+/**
+ * The Class FramePrefixes. Caches the parts of event messages which are the
+ * same for every emit of an event on a namespace, so that only the message
+ * id and the arguments have to be encoded. Event messages look like
+ * <code>5:[id+]:namespace:{"name":"event","args":[...]}</code>; everything
+ * after the id up to the arguments is cached.
+ */
+class FramePrefixes {
+
+	/**
+	 * Maximum number of events cached. Further events are encoded every time,
+	 * so applications making up event names do not fill the memory.
+	 */
+	static final int MAX_EVENTS = 256;
+
+	/** The endpoint part, <code>:namespace:</code>. */
+	private final String endpoint;
+
+	/** The cached prefixes by event name. */
+	private final ConcurrentHashMap<String, String> events = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Instantiates the prefixes of a namespace.
+	 *
+	 * @param namespace
+	 *            the namespace
+	 */
+	FramePrefixes(String namespace) {
+		this.endpoint = ":" + namespace + ":";
+	}
+
+	/**
+	 * Returns the part of an event message between the id and the data.
+	 *
+	 * @return the endpoint part
+	 */
+	String endpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Returns the part of an event message between the id and the arguments.
+	 *
+	 * @param event
+	 *            the event name
+	 * @return the prefix
+	 * @throws JSONException
+	 *             if the event name can't be encoded
+	 */
+	String event(String event) throws JSONException {
+		String prefix = events.get(event);
+		if (prefix == null) {
+			StringBuilder builder = new StringBuilder(endpoint).append(
+					"{\"name\":");
+			IOConnection.getJsonCodec().encode(event, builder);
+			prefix = builder.append(",\"args\":").toString();
+			if (events.size() < MAX_EVENTS)
+				events.putIfAbsent(event, prefix);
+		}
+		return prefix;
+	}
+}
@@ -12,6 +12,12 @@ import org.json.JSONObject;
 
 /**
  * The Interface IOCallback. A callback interface to SocketIO
+ * 
+ * The methods are called one at a time, in the order the server sent the
+ * messages, on the executor of {@link SocketIO#setDispatchExecutor(java.util.concurrent.Executor)}.
+ * If callbacks are called on the I/O threads instead, they must not block:
+ * websocket connections share a few selector threads, so one slow callback
+ * stalls every websocket of the process.
  */
 public interface IOCallback {
 	
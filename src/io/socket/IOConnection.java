@@ -10,20 +10,30 @@ package io.socket;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -36,7 +46,7 @@ import org.json.JSONObject;
 /**
  * The Class IOConnection.
  */
-class IOConnection implements IOCallback {
+class IOConnection implements IOLazyCallback {
 	/** Debug logger */
 	static final Logger logger = Logger.getLogger("io.socket");
 
@@ -60,8 +70,26 @@ class IOConnection implements IOCallback {
 	/** The Constant STATE_INVALID. */
 	private static final int STATE_INVALID = 6;
 
+	/** Maximum number of messages handed to {@link IOTransport#sendBulk}. */
+	private static final int BULK_SIZE = 1024;
+
+	/** {@link #drain()} sends from {@link #controlBuffer}. */
+	private static final int LANE_CONTROL = 0;
+
+	/** {@link #drain()} sends from {@link #outputBuffer}. */
+	private static final int LANE_MEMORY = 1;
+
+	/** {@link #drain()} sends from {@link #journal}. */
+	private static final int LANE_JOURNAL = 2;
+
+	/** {@link #drain()} sends from {@link #journalTrailer}. */
+	private static final int LANE_TRAILER = 3;
+
 	/** The state. */
-	private int state = STATE_INIT;
+	private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+
+	/** Reason of an error message if the server does not know the session. */
+	private static final String ERROR_NOT_HANDSHAKEN = "1+";
 
 	/** Socket.io path. */
 	public static final String SOCKET_IO_1 = "/socket.io/1/";
@@ -69,6 +97,39 @@ class IOConnection implements IOCallback {
 	/** The SSL socket factory for HTTPS connections */
 	private static SSLContext sslContext = null;
 
+	/**
+	 * The scheduler shared by all connections for heartbeat timeouts and
+	 * reconnects. Created on first use if none has been set.
+	 */
+	private static ScheduledExecutorService defaultScheduler = null;
+
+	/**
+	 * The executor callbacks of sockets without one of their own are called
+	 * on, null to call them on the I/O threads. Guarded by IOConnection.class.
+	 */
+	private static Executor defaultDispatchExecutor = null;
+
+	/**
+	 * true once {@link #defaultDispatchExecutor} has been set or created.
+	 * Guarded by IOConnection.class.
+	 */
+	private static boolean dispatchExecutorSet = false;
+
+	/**
+	 * Limits the connection attempts running at once in this process, null
+	 * for no limit.
+	 */
+	private static volatile Semaphore attemptPermits = null;
+
+	/** Delay before trying again to get a permit of {@link #attemptPermits}. */
+	private static final long PERMIT_RETRY_DELAY = 100;
+
+	/** Set on the threads of this library, see {@link #isIoThread()}. */
+	private static final ThreadLocal<Boolean> ioThread = new ThreadLocal<Boolean>();
+
+	/** Encodes and decodes the JSON of all connections. */
+	private static volatile JsonCodec jsonCodec = new StreamingJsonCodec();
+
 	/** All available connections. */
 	private static HashMap<String, List<IOConnection>> connections = new HashMap<String, List<IOConnection>>();
 
@@ -76,7 +137,7 @@ class IOConnection implements IOCallback {
 	private URL url;
 
 	/** The transport for this connection. */
-	private IOTransport transport;
+	private volatile IOTransport transport;
 
 	/** The connection timeout. */
 	private int connectTimeout = 10000;
@@ -93,8 +154,83 @@ class IOConnection implements IOCallback {
 	/** The protocols supported by the server. */
 	private List<String> protocols;
 
-	/** The output buffer used to cache messages while (re-)connecting. */
-	private ConcurrentLinkedQueue<String> outputBuffer = new ConcurrentLinkedQueue<String>();
+	/**
+	 * Messages of the protocol to be sent, like heartbeats, acknowledges and
+	 * namespace connects. Sent before {@link #outputBuffer}, so they never
+	 * wait for more than one bulk of data. Accessed like {@link #outputBuffer}.
+	 */
+	private final ConcurrentLinkedQueue<String> controlBuffer = new ConcurrentLinkedQueue<String>();
+
+	/**
+	 * Messages to be sent. Any thread may add to it, but only the thread
+	 * which has incremented {@link #flushRequests} from zero removes from it.
+	 * Messages stay here while (re-)connecting.
+	 */
+	private final OutputBuffer outputBuffer;
+
+	/** true if {@link #outputBuffer} has to be trimmed after adding. */
+	private final boolean dropOldest;
+
+	/**
+	 * Keeps messages of the sockets waiting to be sent on disk, null if they
+	 * are kept in {@link #outputBuffer}. Read like {@link #outputBuffer},
+	 * which is sent first.
+	 */
+	private final MessageJournal journal;
+
+	/**
+	 * Messages of the protocol waiting for the messages in {@link #journal}
+	 * before them, like namespace disconnects. Never written to the journal,
+	 * as they must not be replayed by a later connection. Each is sent once
+	 * the journal has been read past the position it had been queued at.
+	 */
+	private final ConcurrentLinkedQueue<TrailingMessage> journalTrailer = new ConcurrentLinkedQueue<TrailingMessage>();
+
+	/**
+	 * Milliseconds data may wait to be sent together with more data, 0 to
+	 * send right away.
+	 */
+	private final long lingerDelay;
+
+	/** Number of queued messages which are sent without lingering. */
+	private final int lingerMessages;
+
+	/** Number of queued bytes which are sent without lingering. */
+	private final long lingerBytes;
+
+	/** Queued bytes at which the connection becomes writable again. */
+	private final long lowWatermark;
+
+	/** Queued bytes above which the connection is not writable. */
+	private final long highWatermark;
+
+	/** false while {@link #outputBuffer} is above the watermarks. */
+	private final AtomicBoolean writable = new AtomicBoolean(true);
+
+	/** true while {@link #lingerTask} is scheduled. */
+	private final AtomicBoolean lingering = new AtomicBoolean();
+
+	/** Flushes data which has been lingering. */
+	private final Runnable lingerTask = new Runnable() {
+		@Override
+		public void run() {
+			lingering.set(false);
+			flush();
+		}
+	};
+
+	/**
+	 * Number of requests to flush {@link #outputBuffer} not served yet. The
+	 * thread raising it from zero flushes until it drops back to zero.
+	 */
+	private final AtomicInteger flushRequests = new AtomicInteger();
+
+	/**
+	 * The messages handed to the transport at once. Reused by
+	 * {@link #drain()}, so only the thread owning {@link #flushRequests}
+	 * touches it.
+	 */
+	private String[] bulk;
 
 	/** The sockets of this connection. */
 	private HashMap<String, SocketIO> sockets = new HashMap<String, SocketIO>();
@@ -102,14 +238,24 @@ class IOConnection implements IOCallback {
 	/** Custom Request headers used while handshaking */
 	private Properties headers;
 
+	/** true if xhr-polling should send while the poll request is open. */
+	private boolean xhrDuplex;
+
+	/** Paces xhr-polling requests after empty responses. */
+	private Backoff xhrPollBackoff;
+
 	/**
 	 * The first socket to be connected. the socket.io server does not send a
 	 * connected response to this one.
 	 */
 	private SocketIO firstSocket = null;
 
-	/** The reconnect timer. IOConnect waits a second before trying to reconnect */
-	final private Timer backgroundTimer = new Timer("backgroundTimer");
+	/**
+	 * The scheduler for heartbeat timeouts and reconnects. IOConnection
+	 * waits as long as {@link #reconnectBackoff} says before trying to
+	 * reconnect
+	 */
+	final private ScheduledExecutorService scheduler = getScheduler();
 
 	/** A String representation of {@link #url}. */
 	private String urlStr;
@@ -120,66 +266,135 @@ class IOConnection implements IOCallback {
 	 */
 	private Exception lastException;
 
-	/** The next ID to use. */
-	private int nextId = 1;
-
-	/** Acknowledges. */
-	HashMap<Integer, IOAcknowledge> acknowledge = new HashMap<Integer, IOAcknowledge>();
+	/** Acknowledges waiting for the server. */
+	private final AckTable acknowledges;
 
-	/** true if there's already a keepalive in {@link #outputBuffer}. */
+	/** true if there's already a keepalive in {@link #controlBuffer}. */
 	private boolean keepAliveInQueue;
 
 	/**
-	 * The heartbeat timeout task. Only null before connection has been
-	 * initialised.
+	 * {@link System#nanoTime()} of the last message received. Checked by the
+	 * {@link ConnectionMonitor} against the heartbeat life time. Zero until a
+	 * transport has connected for the first time.
 	 */
-	private HearbeatTimeoutTask heartbeatTimeoutTask;
+	private volatile long lastMessage;
+
+	/** The reconnect task. Null if no reconnection is in progress. */
+	private ScheduledFuture<?> reconnectTask = null;
+
+	/** Paces reconnect attempts. */
+	private final Backoff reconnectBackoff;
+
+	/** Reconnect attempts before giving up, 0 for no limit. */
+	private final int maxReconnectAttempts;
+
+	/** Unsuccessful reconnect attempts in a row. Guarded by this. */
+	private int reconnectAttempts = 0;
 
 	/**
-	 * The Class HearbeatTimeoutTask. Handles dropping this IOConnection if no
-	 * heartbeat is received within life time.
+	 * Unsuccessful attempts to resume the session after which a new one is
+	 * handshaked.
 	 */
-	private class HearbeatTimeoutTask extends TimerTask {
+	private static final int RESUME_ATTEMPTS = 3;
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see java.util.TimerTask#run()
-		 */
+	/**
+	 * true if the server has forgotten the session, so the next attempt
+	 * handshakes a new one. Guarded by this.
+	 */
+	private boolean sessionExpired = false;
+
+	/**
+	 * true if the transport being connected belongs to a new session, whose
+	 * namespaces have to be connected again. Guarded by this.
+	 */
+	private boolean sessionRenewed = false;
+
+	/**
+	 * true after reconnecting to the old session until the server has
+	 * accepted it by sending anything but an error. Data is held back
+	 * meanwhile, at most until {@link #resumeDeadline}, as a server which
+	 * has forgotten the session would drop it.
+	 */
+	private volatile boolean resumePending = false;
+
+	/** {@link System#nanoTime()} after which data is sent while resuming. */
+	private volatile long resumeDeadline;
+
+	/** Milliseconds data is held back while resuming. */
+	private static final long RESUME_GRACE = 500;
+
+	/** Sends the data held back while resuming. */
+	private final Runnable resumeFlush = new Runnable() {
 		@Override
 		public void run() {
-			error(new SocketIOException(
-					"Timeout Error. No heartbeat from server within life time of the socket. closing.",
-					lastException));
+			flush();
 		}
-	}
+	};
 
-	/** The reconnect task. Null if no reconnection is in progress. */
-	private ReconnectTask reconnectTask = null;
+	/** Number of reconnects which resumed the session. */
+	private volatile int resumes = 0;
+
+	/** Number of reconnects which needed a new session. */
+	private volatile int rehandshakes = 0;
+
+	/**
+	 * The permit of {@link #attemptPermits} held while connecting, null if
+	 * none is held.
+	 */
+	private final AtomicReference<Semaphore> attemptPermit = new AtomicReference<Semaphore>();
+
+	/**
+	 * The {@link ConnectThread} started last, null if none has been started.
+	 * Guarded by this.
+	 */
+	private ConnectThread connectThread = null;
+
+	/**
+	 * The Class TrailingMessage. A message of {@link #journalTrailer}.
+	 */
+	private static class TrailingMessage {
+
+		/** The message. */
+		final String text;
+
+		/** The end of the journal when the message was queued. */
+		final long position;
+
+		/**
+		 * Instantiates a new trailing message.
+		 * 
+		 * @param text
+		 *            the message
+		 * @param position
+		 *            the end of the journal
+		 */
+		TrailingMessage(String text, long position) {
+			this.text = text;
+			this.position = position;
+		}
+	}
 
 	/**
-	 * The Class ReconnectTask. Handles reconnect attempts
+	 * The Class ReconnectTask. Starts a {@link ConnectThread} for the next
+	 * attempt, as handshaking and renewing the session block and must not run
+	 * on the scheduler.
 	 */
-	private class ReconnectTask extends TimerTask {
+	private class ReconnectTask implements Runnable {
 
 		/*
 		 * (non-Javadoc)
 		 * 
-		 * @see java.util.TimerTask#run()
+		 * @see java.lang.Runnable#run()
 		 */
 		@Override
 		public void run() {
-			connectTransport();
-			if (!keepAliveInQueue) {
-				sendPlain("2::");
-				keepAliveInQueue = true;
-			}
+			startConnectThread();
 		}
 	}
 
 	/**
 	 * The Class ConnectThread. Handles connecting to the server with an
-	 * {@link IOTransport}
+	 * {@link IOTransport}, and reconnect attempts.
 	 */
 	private class ConnectThread extends Thread {
 		/**
@@ -195,13 +410,81 @@ class IOConnection implements IOCallback {
 		 */
 		@Override
 		public void run() {
-			if (IOConnection.this.getState() == STATE_INIT)
+			markIoThread();
+			if (!acquireAttemptPermit()) {
+				retryLater(PERMIT_RETRY_DELAY);
+				return;
+			}
+			if (IOConnection.this.getState() == STATE_INIT) {
 				handshake();
+				connectTransport();
+			} else
+				reconnectTransport();
+		}
+
+		/**
+		 * Reconnects, handshaking a new session if the server has forgotten
+		 * the old one or resuming it failed too often.
+		 */
+		private void reconnectTransport() {
+			boolean renew;
+			synchronized (IOConnection.this) {
+				if (IOConnection.this.getState() == STATE_INVALID)
+					return;
+				reconnectAttempts++;
+				if (maxReconnectAttempts > 0
+						&& reconnectAttempts > maxReconnectAttempts) {
+					error(new SocketIOException("Gave up reconnecting after "
+							+ maxReconnectAttempts + " attempts.",
+							lastException));
+					return;
+				}
+				renew = sessionExpired
+						|| reconnectAttempts > RESUME_ATTEMPTS;
+			}
+			if (renew && !renewSession())
+				return;
 			connectTransport();
+			if (!keepAliveInQueue) {
+				sendPlain("2::");
+				keepAliveInQueue = true;
+			}
 		}
 
 	};
 
+	/**
+	 * Starts a {@link ConnectThread}, unless the last one is still running.
+	 * Then connecting is tried again later.
+	 */
+	private synchronized void startConnectThread() {
+		if (connectThread != null && connectThread.isAlive()) {
+			retryLater(PERMIT_RETRY_DELAY);
+			return;
+		}
+		connectThread = new ConnectThread();
+		connectThread.start();
+	}
+
+	/**
+	 * Marks the current thread as one of this library, which transports,
+	 * connects or runs timers and calls the callbacks from there.
+	 */
+	static void markIoThread() {
+		ioThread.set(Boolean.TRUE);
+	}
+
+	/**
+	 * Checks if the current thread belongs to this library. Such a thread
+	 * must not wait for room in an output buffer, as it may be the one which
+	 * has to send the buffered messages.
+	 * 
+	 * @return true, if marked by {@link #markIoThread()}
+	 */
+	static boolean isIoThread() {
+		return ioThread.get() != null;
+	}
+
 	/**
 	 * Set the socket factory used for SSL connections.
 	 * 
@@ -220,6 +503,113 @@ class IOConnection implements IOCallback {
 		return sslContext;
 	}
 
+	/**
+	 * Set the scheduler used for heartbeat timeouts and reconnects of all
+	 * connections created afterwards.
+	 * 
+	 * @param scheduler
+	 *            the scheduler, or null to use the built in one
+	 */
+	public static synchronized void setScheduler(
+			ScheduledExecutorService scheduler) {
+		IOConnection.defaultScheduler = scheduler;
+	}
+
+	/**
+	 * Set the executor callbacks are called on for sockets connected
+	 * afterwards which have no executor of their own.
+	 * 
+	 * @param executor
+	 *            the executor, or null to call callbacks on the I/O threads
+	 */
+	public static synchronized void setDispatchExecutor(Executor executor) {
+		defaultDispatchExecutor = executor;
+		dispatchExecutorSet = true;
+	}
+
+	/**
+	 * Get the executor callbacks are called on by default. Creates a pool of
+	 * daemon threads shared by all sockets if none has been set.
+	 * 
+	 * @return the executor, null if callbacks are called on the I/O threads
+	 */
+	public static synchronized Executor getDispatchExecutor() {
+		if (!dispatchExecutorSet) {
+			defaultDispatchExecutor = Executors
+					.newCachedThreadPool(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "dispatcher");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			dispatchExecutorSet = true;
+		}
+		return defaultDispatchExecutor;
+	}
+
+	/**
+	 * Limits the connection attempts, handshakes included, running at once in
+	 * this process. Connections over the limit wait for a running attempt to
+	 * succeed or fail.
+	 * 
+	 * @param max
+	 *            the maximum number of attempts, 0 for no limit
+	 */
+	public static void setMaxConcurrentAttempts(int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("max may not be negative");
+		attemptPermits = max == 0 ? null : new Semaphore(max);
+	}
+
+	/**
+	 * Set the codec used for the JSON of events, json messages and
+	 * acknowledges of all connections.
+	 * 
+	 * @param codec
+	 *            the codec, or null to use {@link StreamingJsonCodec}
+	 */
+	public static void setJsonCodec(JsonCodec codec) {
+		jsonCodec = codec == null ? new StreamingJsonCodec() : codec;
+	}
+
+	/**
+	 * Get the codec used for the JSON of all connections.
+	 * 
+	 * @return the codec
+	 */
+	public static JsonCodec getJsonCodec() {
+		return jsonCodec;
+	}
+
+	/**
+	 * Get the scheduler used for heartbeat timeouts and reconnects. Creates a
+	 * single daemon thread shared by all connections if none has been set.
+	 * 
+	 * @return the scheduler
+	 */
+	public static synchronized ScheduledExecutorService getScheduler() {
+		if (defaultScheduler == null) {
+			defaultScheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(final Runnable r) {
+							Thread thread = new Thread(new Runnable() {
+								@Override
+								public void run() {
+									markIoThread();
+									r.run();
+								}
+							}, "backgroundTimer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return defaultScheduler;
+	}
+
 	/**
 	 * Creates a new connection or returns the corresponding one.
 	 * 
@@ -276,9 +666,9 @@ class IOConnection implements IOCallback {
 	 *            the socket to be shut down
 	 */
 	public synchronized void unregister(SocketIO socket) {
-		sendPlain("0::" + socket.getNamespace());
+		sendOrdered("0::" + socket.getNamespace());
 		sockets.remove(socket.getNamespace());
-		socket.getCallback().onDisconnect();
+		socket.getDispatchingCallback().onDisconnect();
 
 		if (sockets.size() == 0) {
 			cleanup();
@@ -286,41 +676,52 @@ class IOConnection implements IOCallback {
 	}
 
 	/**
-	 * Handshake.
+	 * Handshake. Gives up if handshaking fails.
 	 * 
 	 */
 	private void handshake() {
+		try {
+			requestSession();
+		} catch (Exception e) {
+			error(new SocketIOException("Error while handshaking", e));
+		}
+	}
+
+	/**
+	 * Handshakes a new session with the server.
+	 * 
+	 * @throws Exception
+	 *             if handshaking fails
+	 */
+	private void requestSession() throws Exception {
 		URL url;
 		String response;
 		URLConnection connection;
-		try {
-			setState(STATE_HANDSHAKE);
-			url = new URL(IOConnection.this.url.toString() + SOCKET_IO_1);
-			connection = url.openConnection();
-			if (connection instanceof HttpsURLConnection) {
-				((HttpsURLConnection) connection)
-						.setSSLSocketFactory(sslContext.getSocketFactory());
-			}
-			connection.setConnectTimeout(connectTimeout);
-			connection.setReadTimeout(connectTimeout);
-
-			/* Setting the request headers */
-			for (Entry<Object, Object> entry : headers.entrySet()) {
-				connection.setRequestProperty((String) entry.getKey(),
-						(String) entry.getValue());
-			}
+		setState(STATE_HANDSHAKE);
+		url = new URL(IOConnection.this.url.toString() + SOCKET_IO_1);
+		connection = url.openConnection();
+		if (connection instanceof HttpsURLConnection) {
+			((HttpsURLConnection) connection)
+					.setSSLSocketFactory(sslContext.getSocketFactory());
+		}
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(connectTimeout);
 
-			InputStream stream = connection.getInputStream();
-			Scanner in = new Scanner(stream);
-			response = in.nextLine();
-			String[] data = response.split(":");
-			sessionId = data[0];
-			heartbeatTimeout = Long.parseLong(data[1]) * 1000;
-			closingTimeout = Long.parseLong(data[2]) * 1000;
-			protocols = Arrays.asList(data[3].split(","));
-		} catch (Exception e) {
-			error(new SocketIOException("Error while handshaking", e));
+		/* Setting the request headers */
+		for (Entry<Object, Object> entry : headers.entrySet()) {
+			connection.setRequestProperty((String) entry.getKey(),
+					(String) entry.getValue());
 		}
+
+		InputStream stream = connection.getInputStream();
+		Scanner in = new Scanner(stream);
+		response = in.nextLine();
+		in.close();
+		String[] data = response.split(":");
+		sessionId = data[0];
+		heartbeatTimeout = Long.parseLong(data[1]) * 1000;
+		closingTimeout = Long.parseLong(data[2]) * 1000;
+		protocols = Arrays.asList(data[3].split(","));
 	}
 
 	/**
@@ -362,18 +763,17 @@ class IOConnection implements IOCallback {
 		return new IOAcknowledge() {
 			@Override
 			public void ack(Object... args) {
-				JSONArray array = new JSONArray();
-				for (Object o : args) {
-					try {
-						array.put(o == null ? JSONObject.NULL : o);
-					} catch (Exception e) {
-						error(new SocketIOException(
-								"You can only put values in IOAcknowledge.ack() which can be handled by JSONArray.put()",
-								e));
-					}
+				StringBuilder data = new StringBuilder(id);
+				try {
+					jsonCodec.encode(args, data);
+				} catch (JSONException e) {
+					error(new SocketIOException(
+							"You can only put values in IOAcknowledge.ack() which can be handled by JSONArray.put()",
+							e));
+					return;
 				}
 				IOMessage ackMsg = new IOMessage(IOMessage.TYPE_ACK, endPoint,
-						id + array.toString());
+						data.toString());
 				sendPlain(ackMsg.toString());
 			}
 		};
@@ -384,15 +784,96 @@ class IOConnection implements IOCallback {
 	 * 
 	 * @param message
 	 *            the {@link IOMessage}
+	 * @param socket
+	 *            the socket sending the message
 	 * @param ack
 	 *            the {@link IOAcknowledge}
+	 * @return the message id, 0 if there is no acknowledge
 	 */
-	private void synthesizeAck(IOMessage message, IOAcknowledge ack) {
-		if (ack != null) {
-			int id = nextId++;
-			acknowledge.put(id, ack);
+	private int synthesizeAck(IOMessage message, SocketIO socket,
+			IOAcknowledge ack) {
+		int id = synthesizeAck(socket, ack);
+		if (id != 0)
 			message.setId(id + "+");
+		return id;
+	}
+
+	/**
+	 * registers an {@link IOAcknowledge} for a message about to be sent.
+	 * 
+	 * @param socket
+	 *            the socket sending the message
+	 * @param ack
+	 *            the {@link IOAcknowledge}
+	 * @return the message id, 0 if there is no acknowledge
+	 */
+	private int synthesizeAck(SocketIO socket, IOAcknowledge ack) {
+		if (ack != null) {
+			long timeout = socket.getAckTimeout();
+			if (ack instanceof IOExpiringAcknowledge
+					&& ((IOExpiringAcknowledge) ack).getTimeout() > 0)
+				timeout = ((IOExpiringAcknowledge) ack).getTimeout();
+			long deadline = timeout > 0 ? System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+			int id = acknowledges.nextId();
+			AckTable.Entry dropped = acknowledges.put(new AckTable.Entry(id,
+					ack, socket, deadline));
+			if (dropped != null)
+				expire(dropped, new SocketIOException(
+						"Too many pending acknowledges. Dropped the oldest."));
+			return id;
 		}
+		return 0;
+	}
+
+	/**
+	 * Removes a pending acknowledge without calling it.
+	 * 
+	 * @param id
+	 *            the message id
+	 */
+	void removeAck(int id) {
+		acknowledges.remove(id);
+	}
+
+	/**
+	 * Tells an acknowledge removed from {@link #acknowledges} that the server
+	 * will not call it.
+	 * 
+	 * @param entry
+	 *            the removed entry
+	 * @param e
+	 *            the reason
+	 */
+	private void expire(final AckTable.Entry entry, final SocketIOException e) {
+		if (!(entry.ack instanceof IOExpiringAcknowledge)) {
+			logger.info("Dropped acknowledge " + entry.id + ": "
+					+ e.getMessage());
+			return;
+		}
+		entry.socket.dispatch(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					((IOExpiringAcknowledge) entry.ack).expired(e);
+				} catch (RuntimeException ex) {
+					logger.warning("Exception was thrown in expired(): " + ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Expires all given acknowledges.
+	 * 
+	 * @param entries
+	 *            the removed entries
+	 * @param e
+	 *            the reason
+	 */
+	private void expireAll(List<AckTable.Entry> entries, SocketIOException e) {
+		for (AckTable.Entry entry : entries)
+			expire(entry, e);
 	}
 
 	/**
@@ -404,6 +885,41 @@ class IOConnection implements IOCallback {
 	 *            the socket
 	 */
 	private IOConnection(String url, SocketIO socket) {
+		this(url, socket, null);
+	}
+
+	/**
+	 * Creates a connection sending through the given transport right away,
+	 * without a server, a session or heartbeats. FOR TESTS AND BENCHMARKS
+	 * ONLY: the connection never handshakes, reconnects or leaves the
+	 * transport, and is not registered for other sockets.
+	 * 
+	 * @param url
+	 *            the URL
+	 * @param socket
+	 *            the socket
+	 * @param transport
+	 *            a connected transport
+	 * @return the connection
+	 */
+	static IOConnection createForTesting(String url, SocketIO socket,
+			IOTransport transport) {
+		return new IOConnection(url, socket, transport);
+	}
+
+	/**
+	 * Instantiates a new IOConnection.
+	 * 
+	 * @param url
+	 *            the URL
+	 * @param socket
+	 *            the socket
+	 * @param transport
+	 *            a connected transport to send through right away, only
+	 *            given by {@link #createForTesting}, or null to connect to
+	 *            the server
+	 */
+	private IOConnection(String url, SocketIO socket, IOTransport transport) {
 		try {
 			this.url = new URL(url);
 			this.urlStr = url;
@@ -412,83 +928,463 @@ class IOConnection implements IOCallback {
 		}
 		firstSocket = socket;
 		headers = socket.getHeaders();
+		xhrDuplex = socket.isXhrDuplex();
+		xhrPollBackoff = socket.getXhrPollBackoff();
+		acknowledges = new AckTable(socket.getMaxPendingAcks());
+		reconnectBackoff = socket.getReconnectBackoff();
+		maxReconnectAttempts = socket.getMaxReconnectAttempts();
+		outputBuffer = new OutputBuffer(socket.getMaxQueuedMessages(),
+				socket.getMaxQueuedBytes(), socket.getOverflowPolicy(),
+				socket.getOverflowTimeout());
+		dropOldest = socket.getOverflowPolicy() == OverflowPolicy.DROP_OLDEST;
+		journal = socket.getJournal();
+		lingerDelay = socket.getLingerDelay();
+		lingerMessages = socket.getLingerMessages();
+		lingerBytes = socket.getLingerBytes();
+		lowWatermark = socket.getLowWatermark();
+		highWatermark = socket.getHighWatermark();
 		sockets.put(socket.getNamespace(), socket);
-		new ConnectThread().start();
+		// Acknowledges expire even if the server is never reached.
+		ConnectionMonitor.watch(this);
+		if (transport == null) {
+			startConnectThread();
+		} else {
+			this.transport = transport;
+			setState(STATE_READY);
+		}
+	}
+
+	/**
+	 * Cleanup. IOConnection is not usable after this calling this.
+	 */
+	private synchronized void cleanup() {
+		setState(STATE_INVALID);
+		if (transport != null)
+			transport.disconnect();
+		sockets.clear();
+		synchronized (connections) {
+			List<IOConnection> con = connections.get(urlStr);
+			if (con != null && con.size() > 1)
+				con.remove(this);
+			else
+				connections.remove(urlStr);
+		}
+		logger.info("Cleanup");
+		ConnectionMonitor.unwatch(this);
+		if (reconnectTask != null)
+			reconnectTask.cancel(false);
+		releaseAttemptPermit();
+		List<AckTable.Entry> pending = new ArrayList<AckTable.Entry>();
+		acknowledges.clear(pending);
+		expireAll(pending, new SocketIOException(
+				"Connection closed before the server acknowledged."));
+		// The journal belongs to the caller, who may use it again.
+		if (journal != null)
+			journal.sync();
+	}
+
+	/**
+	 * Populates an error to the connected {@link IOCallback}s and shuts down.
+	 * 
+	 * @param e
+	 *            an exception
+	 */
+	private void error(SocketIOException e) {
+		for (SocketIO socket : sockets.values()) {
+			socket.getDispatchingCallback().onError(e);
+		}
+		cleanup();
+	}
+
+	/**
+	 * Sends a plain message to the {@link IOTransport} ahead of any data.
+	 * Does not lock, the message is queued and sent by whichever thread is
+	 * flushing.
+	 * 
+	 * @param text
+	 *            the Text to be send.
+	 */
+	private void sendPlain(String text) {
+		controlBuffer.add(text);
+		flush();
+	}
+
+	/**
+	 * Sends a message of the protocol after all data queued so far, without
+	 * limits.
+	 * 
+	 * @param text
+	 *            the Text to be send.
+	 */
+	private void sendOrdered(String text) {
+		if (journal != null)
+			journalTrailer.add(new TrailingMessage(text, journal
+					.endPosition()));
+		else
+			outputBuffer.add(text);
+		flush();
+	}
+
+	/**
+	 * Sends a message of a socket through {@link #journal} if there is one,
+	 * otherwise within the limits of {@link #outputBuffer}. If the message is
+	 * dropped or not queued at all, its acknowledge is removed.
+	 * 
+	 * @param text
+	 *            the Text to be send.
+	 * @param id
+	 *            the id of its acknowledge, 0 if none
+	 * @throws OutputBufferFullException
+	 *             if the buffer is full and the policy says so
+	 */
+	private void sendBounded(String text, int id) {
+		if (journal != null) {
+			try {
+				journal.append(text);
+				flushData();
+				return;
+			} catch (IOException e) {
+				logger.warning("Journal failed, keeping message in memory: "
+						+ e);
+			}
+		}
+		if (sendDirect(text))
+			return;
+		boolean queued = false;
+		try {
+			queued = outputBuffer.offer(text);
+		} finally {
+			if (!queued && id != 0) {
+				AckTable.Entry entry = acknowledges.remove(id);
+				if (entry != null)
+					expire(entry, new SocketIOException(
+							"Output buffer full, message dropped."));
+			}
+		}
+		flushData();
+	}
+
+	/**
+	 * Sends data after {@link #lingerDelay} unless enough is queued already,
+	 * so that data of several emits is handed to the transport at once.
+	 */
+	private void flushData() {
+		updateWritability();
+		if (lingerDelay == 0
+				|| getState() != STATE_READY
+				|| outputBuffer.size()
+						+ (journal != null ? journal.size() : 0) >= lingerMessages
+				|| getQueuedBytes() >= lingerBytes)
+			flush();
+		else if (lingering.compareAndSet(false, true))
+			scheduler.schedule(lingerTask, lingerDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hands a message straight to the transport if nothing is waiting to be
+	 * sent and no other thread is flushing, which saves queueing it. Never
+	 * waits: if another thread is flushing, the message has to be queued for
+	 * that thread.
+	 * 
+	 * @param text
+	 *            the message
+	 * @return true if the transport has accepted the message
+	 */
+	private boolean sendDirect(String text) {
+		if (lingerDelay != 0 || journal != null
+				|| !flushRequests.compareAndSet(0, 1))
+			return false;
+		boolean sent = false;
+		IOTransport transport = this.transport;
+		if (transport != null && getState() == STATE_READY && !resumePending
+				&& controlBuffer.isEmpty() && outputBuffer.isEmpty()) {
+			try {
+				transport.send(text);
+				sent = true;
+				if (logger.isLoggable(Level.INFO))
+					logger.info("> " + text);
+			} catch (Exception e) {
+				logger.info("IOEx: saving");
+			}
+		}
+		flushRequested(1);
+		return sent;
+	}
+
+	/**
+	 * Sends the messages of {@link #outputBuffer} if connected. If another
+	 * thread is flushing already, it is asked to go on instead.
+	 */
+	private void flush() {
+		if (flushRequests.getAndIncrement() != 0)
+			return;
+		if (dropOldest)
+			trimOutput();
+		drain();
+		flushRequested(1);
+	}
+
+	/**
+	 * Serves the requests to flush made while the calling thread was
+	 * flushing, until there are none left. Must only be called by the thread
+	 * owning {@link #flushRequests}.
+	 * 
+	 * @param served
+	 *            the number of requests served by the caller
+	 */
+	private void flushRequested(int served) {
+		int requests = served;
+		while ((requests = flushRequests.addAndGet(-requests)) != 0) {
+			if (dropOldest)
+				trimOutput();
+			drain();
+		}
+	}
+
+	/**
+	 * Drops the oldest messages of {@link #outputBuffer} beyond its limits
+	 * and expires their acknowledges. Must only be called by the thread
+	 * owning {@link #flushRequests}.
+	 */
+	private void trimOutput() {
+		List<String> dropped = outputBuffer.trim();
+		if (dropped.isEmpty())
+			return;
+		for (String text : dropped) {
+			String id = new IOMessage(text).getId();
+			if (id == null || id.length() == 0)
+				continue;
+			if (id.endsWith("+"))
+				id = id.substring(0, id.length() - 1);
+			try {
+				AckTable.Entry entry = acknowledges.remove(Integer
+						.parseInt(id));
+				if (entry != null)
+					expire(entry, new SocketIOException(
+							"Output buffer full, message dropped."));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+		updateWritability();
+	}
+
+	/**
+	 * Hands the messages of {@link #controlBuffer}, {@link #outputBuffer} and
+	 * {@link #journal} to the transport, in this order. The buffers are
+	 * checked again after each bulk, so control messages overtake data queued
+	 * before them. Messages are removed only after they have been accepted,
+	 * so they are kept in order for the next transport if sending fails. Must
+	 * only be called by the thread owning {@link #flushRequests}.
+	 */
+	private void drain() {
+		while (getState() == STATE_READY) {
+			IOTransport transport = this.transport;
+			if (transport == null)
+				return;
+			int max = transport.canSendBulk() ? BULK_SIZE : 1;
+			if (bulk == null || bulk.length < max)
+				bulk = new String[max];
+			int lane;
+			int count;
+			if (!controlBuffer.isEmpty()) {
+				lane = LANE_CONTROL;
+				count = collect(controlBuffer, bulk, max);
+			} else if (resumePending
+					&& System.nanoTime() - resumeDeadline < 0) {
+				return;
+			} else if (!outputBuffer.isEmpty()) {
+				lane = LANE_MEMORY;
+				count = collect(outputBuffer, bulk, max);
+			} else if (!journalTrailer.isEmpty()
+					&& journal.isReadPast(journalTrailer.peek().position)) {
+				lane = LANE_TRAILER;
+				bulk[0] = journalTrailer.peek().text;
+				count = 1;
+			} else if (journal != null && !journal.isEmpty()) {
+				lane = LANE_JOURNAL;
+				count = journal.peek(bulk, max);
+			} else {
+				return;
+			}
+			if (count == 0)
+				return;
+			try {
+				if (count > 1)
+					transport.sendBulk(count == bulk.length ? bulk : Arrays
+							.copyOf(bulk, count));
+				else
+					transport.send(bulk[0]);
+			} catch (Exception e) {
+				logger.info("IOEx: saving");
+				return;
+			}
+			if (lane == LANE_JOURNAL) {
+				journal.remove();
+				updateWritability();
+			} else if (lane == LANE_MEMORY) {
+				outputBuffer.remove(bulk, count);
+				updateWritability();
+			} else if (lane == LANE_TRAILER)
+				journalTrailer.poll();
+			else
+				for (int i = 0; i < count; i++)
+					controlBuffer.poll();
+			if (logger.isLoggable(Level.INFO))
+				for (int i = 0; i < count; i++)
+					logger.info("> " + bulk[i]);
+			Arrays.fill(bulk, 0, count, null);
+		}
 	}
 
 	/**
-	 * Cleanup. IOConnection is not usable after this calling this.
+	 * Compares the bytes in {@link #outputBuffer} and {@link #journal} with
+	 * the watermarks and tells the sockets if {@link #writable} changes. The
+	 * listeners read the state when called, so they end up with the latest
+	 * one even if threads race here.
 	 */
-	private synchronized void cleanup() {
-		setState(STATE_INVALID);
-		if (transport != null)
-			transport.disconnect();
-		sockets.clear();
-		synchronized (connections) {
-			List<IOConnection> con = connections.get(urlStr);
-			if (con != null && con.size() > 1)
-				con.remove(this);
-			else
-				connections.remove(urlStr);
+	private void updateWritability() {
+		while (true) {
+			boolean current = writable.get();
+			long bytes = getQueuedBytes();
+			if (current ? bytes <= highWatermark : bytes > lowWatermark)
+				return;
+			if (writable.compareAndSet(current, !current)) {
+				List<SocketIO> sockets;
+				synchronized (this) {
+					sockets = new ArrayList<SocketIO>(this.sockets.values());
+				}
+				for (final SocketIO socket : sockets) {
+					if (socket.getWritabilityListener() == null)
+						continue;
+					socket.dispatch(new Runnable() {
+						@Override
+						public void run() {
+							IOWritabilityListener listener = socket
+									.getWritabilityListener();
+							try {
+								if (listener != null)
+									listener.onWritabilityChanged(writable
+											.get());
+							} catch (RuntimeException e) {
+								logger.warning("Exception was thrown in onWritabilityChanged(): "
+										+ e);
+							}
+						}
+					});
+				}
+			}
 		}
-		logger.info("Cleanup");
-		backgroundTimer.cancel();
 	}
 
 	/**
-	 * Populates an error to the connected {@link IOCallback}s and shuts down.
+	 * Checks if the sockets' data is sent as fast as it is emitted.
 	 * 
-	 * @param e
-	 *            an exception
+	 * @return false while {@link #outputBuffer} is above the watermarks
 	 */
-	private void error(SocketIOException e) {
-		for (SocketIO socket : sockets.values()) {
-			socket.getCallback().onError(e);
-		}
-		cleanup();
+	boolean isWritable() {
+		return writable.get();
 	}
 
 	/**
-	 * Sends a plain message to the {@link IOTransport}.
+	 * Copies the oldest messages of a buffer without removing them.
 	 * 
-	 * @param text
-	 *            the Text to be send.
+	 * @param buffer
+	 *            the buffer
+	 * @param bulk
+	 *            receives the messages
+	 * @param max
+	 *            the maximum number of messages
+	 * @return the number of messages
 	 */
-	private synchronized void sendPlain(String text) {
-		if (getState() == STATE_READY)
-			try {
-				logger.info("> " + text);
-				transport.send(text);
-			} catch (Exception e) {
-				logger.info("IOEx: saving");
-				outputBuffer.add(text);
-			}
-		else {
-			outputBuffer.add(text);
+	private static int collect(Iterable<String> buffer, String[] bulk, int max) {
+		int count = 0;
+		for (String queued : buffer) {
+			bulk[count++] = queued;
+			if (count == max)
+				break;
 		}
+		return count;
 	}
 
 	/**
-	 * Invalidates an {@link IOTransport}, used for forced reconnecting.
+	 * Invalidates an {@link IOTransport} and closes it, used for forced
+	 * reconnecting. The old transport is likely dead, so it is not asked to
+	 * leave gracefully, but its resources are released.
 	 */
 	private void invalidateTransport() {
-		if (transport != null)
+		if (transport != null) {
 			transport.invalidate();
+			transport.disconnect();
+		}
 		transport = null;
 	}
 
 	/**
 	 * Reset timeout.
 	 */
-	private synchronized void resetTimeout() {
-		if (heartbeatTimeoutTask != null) {
-			heartbeatTimeoutTask.cancel();
+	private void resetTimeout() {
+		lastMessage = System.nanoTime();
+	}
+
+	/**
+	 * Checks if the server has been silent for longer than the life time of
+	 * the socket and expires acknowledges past their deadline. Called
+	 * periodically by the {@link ConnectionMonitor} from the start, so
+	 * acknowledges expire while the server can't be reached as well.
+	 * 
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 */
+	void checkDeadlines(long now) {
+		if (getState() == STATE_INVALID) {
+			ConnectionMonitor.unwatch(this);
+			return;
 		}
-		if (getState() != STATE_INVALID) {
-			heartbeatTimeoutTask = new HearbeatTimeoutTask();
-			backgroundTimer.schedule(heartbeatTimeoutTask, closingTimeout
-					+ heartbeatTimeout);
+		long lifeTime = TimeUnit.MILLISECONDS.toNanos(closingTimeout
+				+ heartbeatTimeout);
+		if (lastMessage != 0 && now - lastMessage > lifeTime) {
+			// The server has forgotten the session by now.
+			logger.info("No heartbeat from server within life time of the socket.");
+			resetTimeout();
+			sessionExpired();
+			SocketIOException e = new SocketIOException(
+					"Timeout Error. No heartbeat from server within life time of the socket. reconnecting.",
+					lastException);
+			List<SocketIO> sockets;
+			synchronized (this) {
+				sockets = new ArrayList<SocketIO>(this.sockets.values());
+			}
+			for (SocketIO socket : sockets)
+				socket.getDispatchingCallback().onError(e);
+			return;
+		}
+		List<AckTable.Entry> expired = new ArrayList<AckTable.Entry>(0);
+		acknowledges.removeExpired(now, expired);
+		expireAll(expired, new SocketIOException(
+				"Timeout Error. The server did not acknowledge in time."));
+	}
+
+	/**
+	 * Checks if a callback an event of an endpoint goes to is an
+	 * {@link IOLazyCallback}, so that its arguments are worth keeping
+	 * undecoded in {@link EventArguments}. Otherwise they are decoded at
+	 * once, which reads the data only once.
+	 * 
+	 * @param endpoint
+	 *            the endpoint of the event
+	 * @return true, if a callback decodes arguments lazily
+	 */
+	private boolean hasLazyCallback(String endpoint) {
+		if (!"".equals(endpoint)) {
+			SocketIO socket = sockets.get(endpoint);
+			return socket != null
+					&& socket.getCallback() instanceof IOLazyCallback;
 		}
+		for (SocketIO socket : sockets.values())
+			if (socket.getCallback() instanceof IOLazyCallback)
+				return true;
+		return false;
 	}
 
 	/**
@@ -508,46 +1404,99 @@ class IOConnection implements IOCallback {
 			throw new SocketIOException("Cannot find socket for '"
 					+ message.getEndpoint() + "'");
 		}
-		return socket.getCallback();
+		return socket.getDispatchingCallback();
+	}
+
+	/**
+	 * Handshakes a new session because the server has forgotten the old one.
+	 * Acknowledges of the old session will not arrive anymore. Blocks while
+	 * handshaking, so it is only called by a {@link ConnectThread}.
+	 * 
+	 * @return false if handshaking failed and another attempt has been
+	 *         scheduled
+	 */
+	private boolean renewSession() {
+		logger.info("Handshaking a new session");
+		try {
+			requestSession();
+		} catch (Exception e) {
+			synchronized (this) {
+				sessionExpired = true;
+				lastException = e;
+			}
+			reconnect();
+			return false;
+		}
+		synchronized (this) {
+			sessionExpired = false;
+			sessionRenewed = true;
+		}
+		List<AckTable.Entry> pending = new ArrayList<AckTable.Entry>();
+		acknowledges.clear(pending);
+		expireAll(pending, new SocketIOException(
+				"Session expired before the server acknowledged."));
+		return true;
+	}
+
+	/**
+	 * Marks the session as forgotten by the server, so that the next attempt
+	 * to reconnect handshakes a new one, and reconnects.
+	 */
+	private synchronized void sessionExpired() {
+		logger.info("Session " + sessionId + " expired");
+		sessionExpired = true;
+		resumePending = false;
+		reconnect();
 	}
 
 	/**
 	 * Transport connected.
 	 * 
-	 * {@link IOTransport} calls this when a connection is established.
+	 * {@link IOTransport} calls this when a connection is established. The
+	 * attempt counts as successful once {@link #transportConfirmed()} is
+	 * called as well.
 	 */
 	public synchronized void transportConnected() {
 		setState(STATE_READY);
 		if (reconnectTask != null) {
-			reconnectTask.cancel();
+			reconnectTask.cancel(false);
 			reconnectTask = null;
 		}
-		resetTimeout();
-		if (transport.canSendBulk()) {
-			ConcurrentLinkedQueue<String> outputBuffer = this.outputBuffer;
-			this.outputBuffer = new ConcurrentLinkedQueue<String>();
-			try {
-				// DEBUG
-				String[] texts = outputBuffer.toArray(new String[outputBuffer
-						.size()]);
-				logger.info("Bulk start:");
-				for (String text : texts) {
-					logger.info("> " + text);
-				}
-				logger.info("Bulk end");
-				// DEBUG END
-				transport.sendBulk(texts);
-			} catch (IOException e) {
-				this.outputBuffer = outputBuffer;
-			}
-		} else {
-			String text;
-			while ((text = outputBuffer.poll()) != null)
-				sendPlain(text);
+		if (sessionRenewed) {
+			sessionRenewed = false;
+			rehandshakes++;
+			for (SocketIO socket : sockets.values())
+				if (!"".equals(socket.getNamespace()))
+					controlBuffer.add(new IOMessage(IOMessage.TYPE_CONNECT,
+							socket.getNamespace(), "").toString());
+		} else if (reconnectAttempts > 0) {
+			resumeDeadline = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(RESUME_GRACE);
+			resumePending = true;
+			scheduler.schedule(resumeFlush, RESUME_GRACE,
+					TimeUnit.MILLISECONDS);
 		}
+		resetTimeout();
+		flush();
 		this.keepAliveInQueue = false;
 	}
 
+	/**
+	 * Transport confirmed.
+	 * 
+	 * {@link IOTransport} calls this once the server has answered on the
+	 * connection, e.g. right away for an opened websocket or with the first
+	 * completed request of XHR. Until then, the attempt still counts as
+	 * failed if the transport breaks, so reconnects keep backing off and the
+	 * permit for connecting is held.
+	 */
+	public synchronized void transportConfirmed() {
+		if (getState() == STATE_INVALID)
+			return;
+		reconnectAttempts = 0;
+		releaseAttemptPermit();
+	}
+
 	/**
 	 * Transport disconnected.
 	 * 
@@ -585,20 +1534,13 @@ class IOConnection implements IOCallback {
 			return;
 		}
 
-		Iterator<String> fragments = Arrays.asList(text.split(FRAME_DELIMITER))
-				.listIterator(1);
-		while (fragments.hasNext()) {
-			int length = Integer.parseInt(fragments.next());
-			String string = (String) fragments.next();
-			// Potential BUG: it is not defined if length is in bytes or
-			// characters. Assuming characters.
-
-			if (length != string.length()) {
-				error(new SocketIOException("Garbage from server: " + text));
-				return;
-			}
-
-			transportMessage(string);
+		FrameDecoder decoder = new FrameDecoder(new StringReader(text));
+		try {
+			String message;
+			while ((message = decoder.next()) != null)
+				transportMessage(message);
+		} catch (IOException e) {
+			error(new SocketIOException("Garbage from server: " + text, e));
 		}
 	}
 
@@ -619,6 +1561,11 @@ class IOConnection implements IOCallback {
 			return;
 		}
 		resetTimeout();
+		if (resumePending && message.getType() != IOMessage.TYPE_ERROR) {
+			resumePending = false;
+			resumes++;
+			flush();
+		}
 		switch (message.getType()) {
 		case IOMessage.TYPE_DISCONNECT:
 			try {
@@ -632,7 +1579,7 @@ class IOConnection implements IOCallback {
 			try {
 				if (firstSocket != null && "".equals(message.getEndpoint())) {
 					if (firstSocket.getNamespace().equals("")) {
-						firstSocket.getCallback().onConnect();
+						firstSocket.getDispatchingCallback().onConnect();
 					} else {
 						IOMessage connect = new IOMessage(
 								IOMessage.TYPE_CONNECT,
@@ -664,9 +1611,11 @@ class IOConnection implements IOCallback {
 		case IOMessage.TYPE_JSON_MESSAGE:
 			try {
 				JSONObject obj = null;
-				String data = message.getData();
-				if (data.trim().equals("null") == false)
-					obj = new JSONObject(data);
+				Object data = jsonCodec.decode(message.getData());
+				if (data instanceof JSONObject)
+					obj = (JSONObject) data;
+				else if (JSONObject.NULL.equals(data) == false)
+					throw new JSONException("JSON object expected");
 				try {
 					findCallback(message).onMessage(obj,
 							remoteAcknowledge(message));
@@ -681,21 +1630,35 @@ class IOConnection implements IOCallback {
 			break;
 		case IOMessage.TYPE_EVENT:
 			try {
-				JSONObject event = new JSONObject(message.getData());
-				Object[] argsArray;
-				if (event.has("args")) {
-					JSONArray args = event.getJSONArray("args");
-					argsArray = new Object[args.length()];
-					for (int i = 0; i < args.length(); i++) {
-						if (args.isNull(i) == false)
-							argsArray[i] = args.get(i);
-					}
-				} else
-					argsArray = new Object[0];
-				String eventName = event.getString("name");
+				EventArguments args = null;
+				String eventName;
+				Object[] argsArray = null;
+				if (hasLazyCallback(message.getEndpoint())) {
+					args = new EventArguments(message.getData(), jsonCodec);
+					eventName = args.getEvent();
+				} else {
+					Object data = jsonCodec.decode(message.getData());
+					if (data instanceof JSONObject == false)
+						throw new JSONException("JSON object expected");
+					JSONObject event = (JSONObject) data;
+					if (event.has("args")) {
+						JSONArray array = event.getJSONArray("args");
+						argsArray = new Object[array.length()];
+						for (int i = 0; i < array.length(); i++) {
+							if (array.isNull(i) == false)
+								argsArray[i] = array.get(i);
+						}
+					} else
+						argsArray = new Object[0];
+					eventName = event.getString("name");
+				}
 				try {
-					findCallback(message).on(eventName,
-							remoteAcknowledge(message), argsArray);
+					if (args != null)
+						deliver(findCallback(message), eventName,
+								remoteAcknowledge(message), args);
+					else
+						findCallback(message).on(eventName,
+								remoteAcknowledge(message), argsArray);
 				} catch (Exception e) {
 					error(new SocketIOException(
 							"Exception was thrown in on(String, JSONObject[]).\n"
@@ -711,16 +1674,24 @@ class IOConnection implements IOCallback {
 			if (data.length == 2) {
 				try {
 					int id = Integer.parseInt(data[0]);
-					IOAcknowledge ack = acknowledge.get(id);
-					if (ack == null)
+					Object decoded = jsonCodec.decode(data[1]);
+					if (decoded instanceof JSONArray == false)
+						throw new JSONException("JSON array expected");
+					JSONArray array = (JSONArray) decoded;
+					final Object[] args = new Object[array.length()];
+					for (int i = 0; i < args.length; i++) {
+						args[i] = array.get(i);
+					}
+					final AckTable.Entry entry = acknowledges.remove(id);
+					if (entry == null)
 						logger.warning("Received unknown ack packet");
 					else {
-						JSONArray array = new JSONArray(data[1]);
-						Object[] args = new Object[array.length()];
-						for (int i = 0; i < args.length; i++) {
-							args[i] = array.get(i);
-						}
-						ack.ack(args);
+						entry.socket.dispatch(new Runnable() {
+							@Override
+							public void run() {
+								entry.ack.ack(args);
+							}
+						});
 					}
 				} catch (NumberFormatException e) {
 					logger.warning("Received malformated Acknowledge! This is potentially filling up the acknowledges!");
@@ -732,6 +1703,10 @@ class IOConnection implements IOCallback {
 			}
 			break;
 		case IOMessage.TYPE_ERROR:
+			if (message.getData().startsWith(ERROR_NOT_HANDSHAKEN)) {
+				sessionExpired();
+				break;
+			}
 			try {
 				findCallback(message).onError(
 						new SocketIOException(message.getData()));
@@ -759,14 +1734,51 @@ class IOConnection implements IOCallback {
 		if (getState() != STATE_INVALID) {
 			invalidateTransport();
 			setState(STATE_INTERRUPTED);
-			if (reconnectTask != null) {
-				reconnectTask.cancel();
-			}
-			reconnectTask = new ReconnectTask();
-			backgroundTimer.schedule(reconnectTask, 1000);
+			releaseAttemptPermit();
+			retryLater(reconnectBackoff.getDelay(reconnectAttempts + 1));
 		}
 	}
 
+	/**
+	 * Schedules the next connection attempt, replacing a scheduled one.
+	 * 
+	 * @param delay
+	 *            the delay in milliseconds
+	 */
+	private synchronized void retryLater(long delay) {
+		if (getState() == STATE_INVALID)
+			return;
+		if (reconnectTask != null)
+			reconnectTask.cancel(false);
+		reconnectTask = scheduler.schedule(new ReconnectTask(), delay,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes a permit of {@link #attemptPermits} for a connection attempt.
+	 * 
+	 * @return false if the limit of attempts running at once is reached
+	 */
+	private boolean acquireAttemptPermit() {
+		Semaphore permits = attemptPermits;
+		if (permits == null || attemptPermit.get() != null)
+			return true;
+		if (!permits.tryAcquire())
+			return false;
+		if (!attemptPermit.compareAndSet(null, permits))
+			permits.release();
+		return true;
+	}
+
+	/**
+	 * Returns the permit taken by {@link #acquireAttemptPermit()}, if any.
+	 */
+	private void releaseAttemptPermit() {
+		Semaphore permits = attemptPermit.getAndSet(null);
+		if (permits != null)
+			permits.release();
+	}
+
 	/**
 	 * Returns the session id. This should be called from a {@link IOTransport}
 	 * 
@@ -789,8 +1801,7 @@ class IOConnection implements IOCallback {
 	public void send(SocketIO socket, IOAcknowledge ack, String text) {
 		IOMessage message = new IOMessage(IOMessage.TYPE_MESSAGE,
 				socket.getNamespace(), text);
-		synthesizeAck(message, ack);
-		sendPlain(message.toString());
+		sendBounded(message.toString(), synthesizeAck(message, socket, ack));
 	}
 
 	/**
@@ -804,10 +1815,18 @@ class IOConnection implements IOCallback {
 	 *            the json
 	 */
 	public void send(SocketIO socket, IOAcknowledge ack, JSONObject json) {
+		StringBuilder data = new StringBuilder();
+		try {
+			jsonCodec.encode(json, data);
+		} catch (JSONException e) {
+			error(new SocketIOException(
+					"Error while sending a JSON message. Make sure it can be serialized into JSON.",
+					e));
+			return;
+		}
 		IOMessage message = new IOMessage(IOMessage.TYPE_JSON_MESSAGE,
-				socket.getNamespace(), json.toString());
-		synthesizeAck(message, ack);
-		sendPlain(message.toString());
+				socket.getNamespace(), data.toString());
+		sendBounded(message.toString(), synthesizeAck(message, socket, ack));
 	}
 
 	/**
@@ -821,21 +1840,251 @@ class IOConnection implements IOCallback {
 	 *            acknowledge package which can be called from the server
 	 * @param args
 	 *            the arguments to be send
+	 * @return the message id, 0 if there is no acknowledge or emitting failed
+	 */
+	public int emit(SocketIO socket, String event, IOAcknowledge ack,
+			Object... args) {
+		int id = synthesizeAck(socket, ack);
+		try {
+			sendBounded(eventFrame(socket.getFramePrefixes(), id, event, args),
+					id);
+			return id;
+		} catch (JSONException e) {
+			if (id != 0)
+				acknowledges.remove(id);
+			error(new SocketIOException(
+					"Error while emitting an event. Make sure you only try to send arguments, which can be serialized into JSON."));
+			return 0;
+		}
+	}
+
+	/**
+	 * emits an encoded event from {@link SocketIO} to the
+	 * {@link IOTransport}.
+	 * 
+	 * @param socket
+	 *            the socket
+	 * @param event
+	 *            the event
+	 * @param ack
+	 *            acknowledge package which can be called from the server
+	 * @return the message id, 0 if there is no acknowledge
+	 */
+	public int emit(SocketIO socket, EncodedEvent event, IOAcknowledge ack) {
+		int id = synthesizeAck(socket, ack);
+		sendBounded(eventFrame(socket.getFramePrefixes(), id, event.getData()),
+				id);
+		return id;
+	}
+
+	/**
+	 * Builds the message of an event, encoding only the id and the
+	 * arguments.
+	 * 
+	 * @param prefixes
+	 *            the prefixes of the namespace
+	 * @param id
+	 *            the message id, 0 if there is no acknowledge
+	 * @param event
+	 *            the event name
+	 * @param args
+	 *            the arguments
+	 * @return the message
+	 * @throws JSONException
+	 *             if the arguments can't be serialized
+	 */
+	static String eventFrame(FramePrefixes prefixes, int id, String event,
+			Object[] args) throws JSONException {
+		String prefix = prefixes.event(event);
+		StringBuilder frame = new StringBuilder(prefix.length() + 64);
+		frame.append(IOMessage.TYPE_EVENT).append(':');
+		if (id != 0)
+			frame.append(id).append('+');
+		jsonCodec.encode(args, frame.append(prefix));
+		return frame.append('}').toString();
+	}
+
+	/**
+	 * Builds the message of an event from its encoded data.
+	 * 
+	 * @param prefixes
+	 *            the prefixes of the namespace
+	 * @param id
+	 *            the message id, 0 if there is no acknowledge
+	 * @param data
+	 *            the data of the message
+	 * @return the message
+	 */
+	static String eventFrame(FramePrefixes prefixes, int id, String data) {
+		String endpoint = prefixes.endpoint();
+		StringBuilder frame = new StringBuilder(endpoint.length()
+				+ data.length() + 16);
+		frame.append(IOMessage.TYPE_EVENT).append(':');
+		if (id != 0)
+			frame.append(id).append('+');
+		return frame.append(endpoint).append(data).toString();
+	}
+
+	/**
+	 * emits an event from {@link SocketIO} to the {@link IOTransport},
+	 * replacing an emit of the same event and key which has not been sent
+	 * yet. Always kept in memory, even if there is a {@link #journal}.
+	 * 
+	 * @param socket
+	 *            the socket
+	 * @param event
+	 *            the event
+	 * @param key
+	 *            identifies the emits of the event replacing each other
+	 * @param args
+	 *            the arguments to be send
 	 */
-	public void emit(SocketIO socket, String event, IOAcknowledge ack,
+	public void emitConflated(SocketIO socket, String event, String key,
 			Object... args) {
 		try {
-			JSONObject json = new JSONObject().put("name", event).put("args",
-					new JSONArray(Arrays.asList(args)));
-			IOMessage message = new IOMessage(IOMessage.TYPE_EVENT,
-					socket.getNamespace(), json.toString());
-			synthesizeAck(message, ack);
-			sendPlain(message.toString());
+			conflate(socket, event, key, EncodedEvent.encode(event, args));
 		} catch (JSONException e) {
 			error(new SocketIOException(
 					"Error while emitting an event. Make sure you only try to send arguments, which can be serialized into JSON."));
 		}
+	}
+
+	/**
+	 * emits an encoded event from {@link SocketIO} to the
+	 * {@link IOTransport}, replacing an emit of the same event and key which
+	 * has not been sent yet.
+	 * 
+	 * @param socket
+	 *            the socket
+	 * @param event
+	 *            the event
+	 * @param key
+	 *            identifies the emits of the event replacing each other
+	 */
+	public void emitConflated(SocketIO socket, EncodedEvent event, String key) {
+		conflate(socket, event.getName(), key, event.getData());
+	}
+
+	/**
+	 * Queues the message of an event, replacing the one of the same event
+	 * and key if it has not been sent yet.
+	 * 
+	 * @param socket
+	 *            the socket
+	 * @param event
+	 *            the event name
+	 * @param key
+	 *            identifies the emits of the event replacing each other
+	 * @param data
+	 *            the data of the message
+	 */
+	private void conflate(SocketIO socket, String event, String key,
+			String data) {
+		String text = eventFrame(socket.getFramePrefixes(), 0, data);
+		if (outputBuffer.offer(socket.getNamespace() + '\0' + event + '\0'
+				+ key, text))
+			flushData();
+	}
+
+	/**
+	 * emits an event from {@link SocketIO} and returns a future for the
+	 * server's acknowledge.
+	 * If the maximum of pending acknowledges is reached, the future of the
+	 * oldest one fails.
+	 * 
+	 * @param socket
+	 *            the socket
+	 * @param event
+	 *            the event
+	 * @param timeout
+	 *            the time to wait for the acknowledge in milliseconds, 0 to
+	 *            use the ack timeout of the socket
+	 * @param args
+	 *            the arguments to be send
+	 * @return the future
+	 */
+	public IOFuture emitWithAck(SocketIO socket, String event, long timeout,
+			Object... args) {
+		IOFuture future = new IOFuture(timeout);
+		return pending(future, emit(socket, event, future.acknowledge, args));
+	}
+
+	/**
+	 * emits an encoded event from {@link SocketIO} and returns a future for
+	 * the server's acknowledge.
+	 * If the maximum of pending acknowledges is reached, the future of the
+	 * oldest one fails.
+	 * 
+	 * @param socket
+	 *            the socket
+	 * @param event
+	 *            the event
+	 * @param timeout
+	 *            the time to wait for the acknowledge in milliseconds, 0 to
+	 *            use the ack timeout of the socket
+	 * @return the future
+	 */
+	public IOFuture emitWithAck(SocketIO socket, EncodedEvent event,
+			long timeout) {
+		IOFuture future = new IOFuture(timeout);
+		return pending(future, emit(socket, event, future.acknowledge));
+	}
+
+	/**
+	 * Marks a future as waiting for the acknowledge of an emitted event.
+	 * 
+	 * @param future
+	 *            the future
+	 * @param id
+	 *            the message id of the event, 0 if emitting failed
+	 * @return the future
+	 */
+	private IOFuture pending(IOFuture future, int id) {
+		if (id == 0)
+			future.acknowledge.expired(new SocketIOException(
+					"Error while emitting an event."));
+		else
+			future.pending(this, id);
+		return future;
+	}
 
+	/**
+	 * Returns the number of reconnects which resumed the session.
+	 * 
+	 * @return the number of resumes
+	 */
+	int getResumes() {
+		return resumes;
+	}
+
+	/**
+	 * Returns the number of reconnects which needed a new session.
+	 * 
+	 * @return the number of new sessions
+	 */
+	int getRehandshakes() {
+		return rehandshakes;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be sent.
+	 * 
+	 * @return the number of messages
+	 */
+	int getQueuedMessages() {
+		return controlBuffer.size() + outputBuffer.size()
+				+ journalTrailer.size()
+				+ (journal != null ? journal.size() : 0);
+	}
+
+	/**
+	 * Returns the number of bytes waiting to be sent, two per char in memory
+	 * and their size in UTF-8 in the journal.
+	 * 
+	 * @return the number of bytes
+	 */
+	long getQueuedBytes() {
+		return outputBuffer.bytes() + (journal != null ? journal.bytes() : 0);
 	}
 
 	/**
@@ -852,19 +2101,44 @@ class IOConnection implements IOCallback {
 	 * 
 	 * @return current state
 	 */
-	private synchronized int getState() {
-		return state;
+	private int getState() {
+		return state.get();
 	}
 
 	/**
-	 * Sets the current state of this IOConnection.
+	 * Sets the current state of this IOConnection. Once invalid, the state
+	 * does not change anymore.
 	 * 
 	 * @param state
 	 *            the new state
 	 */
-	private synchronized void setState(int state) {
-		if (getState() != STATE_INVALID)
-			this.state = state;
+	private void setState(int state) {
+		int current;
+		do {
+			current = this.state.get();
+			if (current == STATE_INVALID)
+				return;
+		} while (!this.state.compareAndSet(current, state));
+	}
+
+	/**
+	 * Returns if xhr-polling should send messages while the poll request is
+	 * open. This should be called from a {@link IOTransport}
+	 * 
+	 * @return true if sending and polling run concurrently
+	 */
+	public boolean isXhrDuplex() {
+		return xhrDuplex;
+	}
+
+	/**
+	 * Returns the pacing of xhr-polling. This should be called from a
+	 * {@link IOTransport}
+	 * 
+	 * @return the pacing
+	 */
+	public Backoff getXhrPollBackoff() {
+		return xhrPollBackoff;
 	}
 
 	/**
@@ -880,37 +2154,74 @@ class IOConnection implements IOCallback {
 	public void onDisconnect() {
 		SocketIO socket = sockets.get("");
 		if (socket != null)
-			socket.getCallback().onDisconnect();
+			socket.getDispatchingCallback().onDisconnect();
 	}
 
 	@Override
 	public void onConnect() {
 		SocketIO socket = sockets.get("");
 		if (socket != null)
-			socket.getCallback().onConnect();
+			socket.getDispatchingCallback().onConnect();
 	}
 
 	@Override
 	public void onMessage(String data, IOAcknowledge ack) {
 		for (SocketIO socket : sockets.values())
-			socket.getCallback().onMessage(data, ack);
+			socket.getDispatchingCallback().onMessage(data, ack);
 	}
 
 	@Override
 	public void onMessage(JSONObject json, IOAcknowledge ack) {
 		for (SocketIO socket : sockets.values())
-			socket.getCallback().onMessage(json, ack);
+			socket.getDispatchingCallback().onMessage(json, ack);
 	}
 
 	@Override
 	public void on(String event, IOAcknowledge ack, Object... args) {
 		for (SocketIO socket : sockets.values())
-			socket.getCallback().on(event, ack, args);
+			socket.getDispatchingCallback().on(event, ack, args);
+	}
+
+	@Override
+	public void onEvent(String event, IOAcknowledge ack, EventArguments args) {
+		for (SocketIO socket : sockets.values())
+			deliver(socket.getDispatchingCallback(), event, ack, args);
+	}
+
+	/**
+	 * Hands an event to a callback, decoding all arguments first unless the
+	 * callback is an {@link IOLazyCallback}. If an argument cannot be
+	 * decoded, the callback gets an error instead of the event.
+	 * 
+	 * @param callback
+	 *            the callback
+	 * @param event
+	 *            the name of the event
+	 * @param ack
+	 *            the acknowledge, may be null
+	 * @param args
+	 *            the arguments
+	 */
+	static void deliver(IOCallback callback, String event, IOAcknowledge ack,
+			EventArguments args) {
+		if (callback instanceof IOLazyCallback) {
+			((IOLazyCallback) callback).onEvent(event, ack, args);
+			return;
+		}
+		Object[] array;
+		try {
+			array = args.toArray();
+		} catch (JSONException e) {
+			callback.onError(new SocketIOException(
+					"Malformed arguments of event " + event, e));
+			return;
+		}
+		callback.on(event, ack, array);
 	}
 
 	@Override
 	public void onError(SocketIOException socketIOException) {
 		for (SocketIO socket : sockets.values())
-			socket.getCallback().onError(socketIOException);
+			socket.getDispatchingCallback().onError(socketIOException);
 	}
 }
@@ -0,0 +1,34 @@
+/*
+ * socket.io-java-client IOExpiringAcknowledge.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+/**
+ * The Interface IOExpiringAcknowledge. An {@link IOAcknowledge} which is told
+ * when the server's acknowledge will not arrive anymore.
+ */
+public interface IOExpiringAcknowledge extends IOAcknowledge {
+
+	/**
+	 * Returns how long to wait for the server's acknowledge.
+	 * 
+	 * @return the timeout in milliseconds, 0 to use the ack timeout of the
+	 *         socket
+	 */
+	long getTimeout();
+
+	/**
+	 * Called instead of {@link #ack(Object...)} if the server did not
+	 * acknowledge in time, too many acknowledges were pending or the
+	 * connection has been closed.
+	 * 
+	 * @param e
+	 *            the reason
+	 */
+	void expired(SocketIOException e);
+}
@@ -0,0 +1,243 @@
+/*
+ * socket.io-java-client IOFuture.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The Class IOFuture. The result of an event emitted with
+ * {@link SocketIO#emitWithAck(String, long, Object...)}: the arguments the
+ * server acknowledged with. Waiting needs no thread, listeners are run when
+ * the acknowledge arrives, expires or the future is cancelled.
+ */
+public class IOFuture implements Future<Object[]> {
+
+	/** The Constant STATE_PENDING. */
+	private static final int STATE_PENDING = 0;
+
+	/** The Constant STATE_ACKNOWLEDGED. */
+	private static final int STATE_ACKNOWLEDGED = 1;
+
+	/** The Constant STATE_EXPIRED. */
+	private static final int STATE_EXPIRED = 2;
+
+	/** The Constant STATE_CANCELLED. */
+	private static final int STATE_CANCELLED = 3;
+
+	/** The state. Guarded by this. */
+	private int state = STATE_PENDING;
+
+	/** The arguments of the acknowledge. */
+	private Object[] args;
+
+	/** The reason if expired. */
+	private SocketIOException exception;
+
+	/** Listeners to run once done. Null afterwards. Guarded by this. */
+	private List<Runnable> listeners = new ArrayList<Runnable>(1);
+
+	/** The connection holding the pending acknowledge. */
+	private IOConnection connection;
+
+	/** The message id of the pending acknowledge. */
+	private int id;
+
+	/** Registered as acknowledge of the emitted message. */
+	final IOExpiringAcknowledge acknowledge;
+
+	/**
+	 * Instantiates a new future.
+	 * 
+	 * @param timeout
+	 *            the time to wait for the acknowledge in milliseconds, 0 to
+	 *            use the ack timeout of the socket
+	 */
+	IOFuture(final long timeout) {
+		acknowledge = new IOExpiringAcknowledge() {
+			@Override
+			public void ack(Object... args) {
+				complete(STATE_ACKNOWLEDGED, args, null);
+			}
+
+			@Override
+			public long getTimeout() {
+				return timeout;
+			}
+
+			@Override
+			public void expired(SocketIOException e) {
+				complete(STATE_EXPIRED, null, e);
+			}
+		};
+	}
+
+	/**
+	 * Remembers where the acknowledge is pending, so cancelling can remove
+	 * it.
+	 * 
+	 * @param connection
+	 *            the connection
+	 * @param id
+	 *            the message id
+	 */
+	synchronized void pending(IOConnection connection, int id) {
+		this.connection = connection;
+		this.id = id;
+	}
+
+	/**
+	 * Completes this future and runs the listeners.
+	 * 
+	 * @param state
+	 *            the final state
+	 * @param args
+	 *            the acknowledged arguments
+	 * @param exception
+	 *            the reason if expired
+	 * @return true, if this future had not been completed before
+	 */
+	private boolean complete(int state, Object[] args,
+			SocketIOException exception) {
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (this.state != STATE_PENDING)
+				return false;
+			this.state = state;
+			this.args = args;
+			this.exception = exception;
+			listeners = this.listeners;
+			this.listeners = null;
+			notifyAll();
+		}
+		for (Runnable listener : listeners)
+			listener.run();
+		return true;
+	}
+
+	/**
+	 * Adds a listener which is run on the given executor once this future is
+	 * done. Runs it right away if done already.
+	 * 
+	 * @param listener
+	 *            the listener
+	 * @param executor
+	 *            the executor to run the listener on
+	 */
+	public void addListener(final Runnable listener, final Executor executor) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					executor.execute(listener);
+				} catch (RuntimeException e) {
+					IOConnection.logger.warning("Cannot run listener: " + e);
+				}
+			}
+		};
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	/**
+	 * Cancels waiting for the acknowledge and removes it from the
+	 * connection. The event has been sent already or will be.
+	 * 
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!complete(STATE_CANCELLED, null, null))
+			return false;
+		IOConnection connection;
+		int id;
+		synchronized (this) {
+			connection = this.connection;
+			id = this.id;
+		}
+		if (connection != null)
+			connection.removeAck(id);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return state == STATE_CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return state != STATE_PENDING;
+	}
+
+	/**
+	 * Waits for the acknowledge.
+	 * 
+	 * @return the arguments the server acknowledged with
+	 * @throws ExecutionException
+	 *             caused by a {@link SocketIOException} if the acknowledge
+	 *             expired
+	 * @see java.util.concurrent.Future#get()
+	 */
+	@Override
+	public synchronized Object[] get() throws InterruptedException,
+			ExecutionException {
+		while (state == STATE_PENDING)
+			wait();
+		return result();
+	}
+
+	/**
+	 * Waits for the acknowledge at most the given time.
+	 * 
+	 * @return the arguments the server acknowledged with
+	 * @throws ExecutionException
+	 *             caused by a {@link SocketIOException} if the acknowledge
+	 *             expired
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public synchronized Object[] get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (state == STATE_PENDING) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return result();
+	}
+
+	/**
+	 * Returns the result of a completed future.
+	 * 
+	 * @return the acknowledged arguments
+	 * @throws ExecutionException
+	 *             if the acknowledge expired
+	 */
+	private Object[] result() throws ExecutionException {
+		if (state == STATE_CANCELLED)
+			throw new CancellationException();
+		if (state == STATE_EXPIRED)
+			throw new ExecutionException(exception);
+		return args;
+	}
+}
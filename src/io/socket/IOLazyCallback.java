@@ -0,0 +1,32 @@
+/*
+ * socket.io-java-client IOLazyCallback.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+/**
+ * The Interface IOLazyCallback. An {@link IOCallback} receiving the arguments
+ * of events undecoded. Only the name of an event is decoded before the
+ * callback is called, each argument is decoded when it is first asked for.
+ * Events nobody looks at closely cost little more than checking their syntax.
+ */
+public interface IOLazyCallback extends IOCallback {
+
+	/**
+	 * On [Event]. Called when server emits an event, instead of
+	 * {@link IOCallback#on(String, IOAcknowledge, Object...)}.
+	 *
+	 * @param event
+	 *            Name of the event
+	 * @param ack
+	 *            an {@link IOAcknowledge} instance, may be <code>null</code>
+	 *            if there's none
+	 * @param args
+	 *            Arguments of the event
+	 */
+	void onEvent(String event, IOAcknowledge ack, EventArguments args);
+}
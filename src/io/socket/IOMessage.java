@@ -40,27 +40,42 @@ class IOMessage {
 	/** Message type noop */
 	public static final int TYPE_NOOP = 8;
 
-	/** Index of the type field in a message */
-	public static final int FIELD_TYPE = 0;
+	/** The frame this message has been parsed from. Null if constructed. */
+	private final String frame;
 
-	/** Index of the id field in a message */
-	public static final int FIELD_ID = 1;
+	/** Type */
+	private int type;
 
-	/** Index of the end point field in a message */
-	public static final int FIELD_ENDPOINT = 2;
+	/** Offset of the id field in {@link #frame}, -1 if absent. */
+	private int idStart = -1;
 
-	/** Index of the data field in a message */
-	public static final int FIELD_DATA = 3;
+	/** Offset of the end point field in {@link #frame}, -1 if absent. */
+	private int endpointStart = -1;
 
-	/** Number of fields in a message. */
-	public static final int NUM_FIELDS = 4;
+	/** Offset of the data field in {@link #frame}, -1 if absent. */
+	private int dataStart = -1;
 
-	/** The field values */
-	private final String[] fields = new String[NUM_FIELDS];
+	/** The id, materialised on first access. */
+	private String id;
+
+	/** The end point, materialised on first access. */
+	private String endpoint;
+
+	/** The data, materialised on first access. */
+	private String data;
+
+	/** true if {@link #id} has been materialised or set. */
+	private boolean idSet;
+
+	/** true if {@link #endpoint} has been materialised. */
+	private boolean endpointSet;
+
+	/** true if {@link #data} has been materialised. */
+	private boolean dataSet;
+
+	/** true if {@link #frame} does not represent this message anymore. */
+	private boolean modified;
 
-	/** Type */
-	private int type;
-	
 	/**
 	 * Instantiates a new IOMessage by given data.
 	 * 
@@ -74,11 +89,13 @@ class IOMessage {
 	 *            the data
 	 */
 	public IOMessage(int type, String id, String namespace, String data) {
+		this.frame = null;
 		this.type = type;
-		this.fields[FIELD_ID] = id;
-		this.fields[FIELD_TYPE] = "" + type;
-		this.fields[FIELD_ENDPOINT] = namespace;
-		this.fields[FIELD_DATA] = data;
+		this.id = id;
+		this.endpoint = namespace;
+		this.data = data;
+		this.idSet = this.endpointSet = this.dataSet = true;
+		this.modified = true;
 	}
 
 	/**
@@ -97,18 +114,57 @@ class IOMessage {
 
 	/**
 	 * Instantiates a new IOMessage from a String representation. If the String
-	 * is not well formated, the result is undefined.
+	 * is not well formated, the result is undefined. The frame is scanned
+	 * once, id, end point and data are only copied out of it when requested.
 	 * 
 	 * @param message
 	 *            the message
+	 * @throws NumberFormatException
+	 *             if the type is not a number
 	 */
 	public IOMessage(String message) {
-		String[] fields = message.split(":", NUM_FIELDS);
-		for (int i = 0; i < fields.length; i++) {
-			this.fields[i] = fields[i];
-			if(i == FIELD_TYPE)
-				this.type = Integer.parseInt(fields[i]);
+		this.frame = message;
+		int length = message.length();
+		int i = 0;
+		int type = 0;
+		char c;
+		while (i < length && (c = message.charAt(i)) != ':') {
+			if (c < '0' || c > '9')
+				throw new NumberFormatException("Invalid type in: " + message);
+			type = type * 10 + (c - '0');
+			i++;
 		}
+		if (i == 0)
+			throw new NumberFormatException("Missing type in: " + message);
+		this.type = type;
+		if (i == length)
+			return;
+		idStart = ++i;
+		i = message.indexOf(':', i);
+		if (i == -1)
+			return;
+		endpointStart = ++i;
+		i = message.indexOf(':', i);
+		if (i == -1)
+			return;
+		dataStart = i + 1;
+	}
+
+	/**
+	 * Copies a field out of {@link #frame}.
+	 * 
+	 * @param start
+	 *            offset of the field, -1 if absent
+	 * @param next
+	 *            offset of the following field, -1 if there is none
+	 * @return the field, null if absent
+	 */
+	private String field(int start, int next) {
+		if (start == -1)
+			return null;
+		if (next == -1)
+			return frame.substring(start);
+		return frame.substring(start, next - 1);
 	}
 
 	/**
@@ -116,13 +172,25 @@ class IOMessage {
 	 */
 	@Override
 	public String toString() {
-		StringBuilder builder = new StringBuilder();
-		for(int i = 0; i < fields.length; i++) {
-			builder.append(':');
-			if (fields[i] != null)
-				builder.append(fields[i]);
-		}
-		return builder.substring(1);
+		if (!modified)
+			return frame;
+		String id = getId();
+		String endpoint = getEndpoint();
+		String data = getData();
+		StringBuilder builder = new StringBuilder(8
+				+ (id != null ? id.length() : 0)
+				+ (endpoint != null ? endpoint.length() : 0)
+				+ (data != null ? data.length() : 0));
+		builder.append(type).append(':');
+		if (id != null)
+			builder.append(id);
+		builder.append(':');
+		if (endpoint != null)
+			builder.append(endpoint);
+		builder.append(':');
+		if (data != null)
+			builder.append(data);
+		return builder.toString();
 	}
 
 	/**
@@ -140,7 +208,11 @@ class IOMessage {
 	 * @return the id
 	 */
 	public String getId() {
-		return fields[FIELD_ID];
+		if (!idSet) {
+			id = field(idStart, endpointStart);
+			idSet = true;
+		}
+		return id;
 	}
 
 	/**
@@ -149,7 +221,9 @@ class IOMessage {
 	 * @param id
 	 */
 	public void setId(String id) {
-		fields[FIELD_ID] = id;
+		this.id = id;
+		this.idSet = true;
+		this.modified = true;
 	}
 
 	/**
@@ -158,7 +232,11 @@ class IOMessage {
 	 * @return the endpoint
 	 */
 	public String getEndpoint() {
-		return fields[FIELD_ENDPOINT];
+		if (!endpointSet) {
+			endpoint = field(endpointStart, dataStart);
+			endpointSet = true;
+		}
+		return endpoint;
 	}
 
 	/**
@@ -167,7 +245,11 @@ class IOMessage {
 	 * @return the data
 	 */
 	public String getData() {
-		return fields[FIELD_DATA];
+		if (!dataSet) {
+			data = field(dataStart, -1);
+			dataSet = true;
+		}
+		return data;
 	}
 
 }
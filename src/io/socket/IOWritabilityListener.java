@@ -0,0 +1,28 @@
+/*
+ * socket.io-java-client IOWritabilityListener.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+/**
+ * The Interface IOWritabilityListener. Told when a connection starts or
+ * stops falling behind, so producers can throttle themselves. See
+ * {@link SocketIO#setWriteBufferWatermarks(long, long)}.
+ */
+public interface IOWritabilityListener {
+
+	/**
+	 * Called when {@link SocketIO#isWritable()} has changed. Called in order
+	 * with the callback of the socket, possibly more than once with the same
+	 * value.
+	 * 
+	 * @param writable
+	 *            true if the queued data has dropped to the low watermark,
+	 *            false if it has risen above the high watermark
+	 */
+	void onWritabilityChanged(boolean writable);
+}
@@ -0,0 +1,25 @@
+/*
+ * socket.io-java-client JournalSync.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+/**
+ * The Enum JournalSync. When a {@link MessageJournal} forces its messages to
+ * the disk. Until then they survive the process dying, but not the machine.
+ */
+public enum JournalSync {
+
+	/** Leaves writing to the operating system. */
+	NEVER,
+
+	/** Forces once per {@link MessageJournal#SYNC_INTERVAL}. */
+	INTERVAL,
+
+	/** Forces after every message. Slow, but nothing is ever lost. */
+	ALWAYS
+}
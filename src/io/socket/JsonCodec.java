@@ -0,0 +1,49 @@
+/*
+ * socket.io-java-client JsonCodec.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import org.json.JSONException;
+
+/**
+ * The Interface JsonCodec. Encodes the arguments of outgoing events, json
+ * messages and acknowledges and decodes the incoming ones. Values are the
+ * ones org.json works with, so callbacks see {@link org.json.JSONObject}s and
+ * {@link org.json.JSONArray}s whichever codec is used. Implementations must
+ * be thread safe, one codec is shared by all connections.
+ *
+ * @see SocketIO#setDefaultJsonCodec(JsonCodec)
+ */
+public interface JsonCodec {
+
+	/**
+	 * Appends the JSON text of a value. Accepts everything
+	 * {@link org.json.JSONArray#put(Object)} does, arrays included.
+	 *
+	 * @param value
+	 *            the value, may be null
+	 * @param out
+	 *            receives the text
+	 * @throws JSONException
+	 *             if the value can't be represented in JSON
+	 */
+	void encode(Object value, StringBuilder out) throws JSONException;
+
+	/**
+	 * Parses a JSON text.
+	 *
+	 * @param text
+	 *            the text
+	 * @return a {@link org.json.JSONObject}, {@link org.json.JSONArray},
+	 *         {@link String}, {@link Number}, {@link Boolean} or
+	 *         {@link org.json.JSONObject#NULL}
+	 * @throws JSONException
+	 *             if the text is malformed
+	 */
+	Object decode(String text) throws JSONException;
+}
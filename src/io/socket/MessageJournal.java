@@ -0,0 +1,616 @@
+/*
+ * socket.io-java-client MessageJournal.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * The Class MessageJournal. Keeps messages waiting to be sent on disk, so
+ * they survive the process and do not take up the heap. Pass it to
+ * {@link SocketIO#setJournal(MessageJournal)}.
+ * 
+ * Messages are appended to memory mapped segment files in a directory, each
+ * record made of its length, a CRC32 and the message in UTF-8. A small head
+ * file holds the position of the oldest message not sent yet. Segments are
+ * deleted once all their messages have been sent. After a crash, the journal
+ * is read up to the first incomplete record.
+ * 
+ * Messages left over by an earlier process are sent without their
+ * acknowledge, as nobody is waiting for it anymore. A directory may only be
+ * used by one journal at a time.
+ */
+public class MessageJournal {
+
+	/** Default size of a segment in bytes. */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+	/** Interval of {@link JournalSync#INTERVAL} in milliseconds. */
+	public static final long SYNC_INTERVAL = 1000;
+
+	/** Size of the length and the CRC preceding each message. */
+	private static final int HEADER_SIZE = 8;
+
+	/** Length marking the rest of a segment as unused. */
+	private static final int SKIP = -1;
+
+	/** File name suffix of segments. */
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/** The charset messages are stored in. */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The directory. */
+	private final File directory;
+
+	/** Size of new segments in bytes. */
+	private final int segmentSize;
+
+	/** When messages are forced to the disk. */
+	private final JournalSync sync;
+
+	/** Keeps other journals out of {@link #directory}. */
+	private final FileLock lock;
+
+	/** Holds {@link #readPosition}. */
+	private final MappedByteBuffer head;
+
+	/** The segments by index. Guarded by this. */
+	private final TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<Integer, MappedByteBuffer>();
+
+	/** The segment being appended to. Guarded by this. */
+	private MappedByteBuffer writeSegment;
+
+	/**
+	 * Position after the last message. Positions hold the index of the
+	 * segment in the upper and the offset in the lower 32 bits.
+	 */
+	private volatile long writePosition;
+
+	/** Position of the oldest message not sent yet. */
+	private long readPosition;
+
+	/** Position after the messages returned by the last {@link #peek(String[], int)}. */
+	private long peekPosition;
+
+	/** Number of messages returned by the last {@link #peek(String[], int)}. */
+	private int peekCount = 0;
+
+	/** Bytes of the messages returned by the last {@link #peek(String[], int)}. */
+	private long peekBytes = 0;
+
+	/** Messages before this position were written by an earlier process. */
+	private final long recoveredPosition;
+
+	/** The segment being read. */
+	private ByteBuffer readSegment = null;
+
+	/** Index of {@link #readSegment}. */
+	private int readIndex = -1;
+
+	/** Number of messages not sent yet. */
+	private final AtomicInteger size = new AtomicInteger();
+
+	/** Bytes of the messages not sent yet, in UTF-8. */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/** true if there are messages or a read position not forced to the disk. */
+	private volatile boolean dirty = false;
+
+	/** Forces periodically with {@link JournalSync#INTERVAL}. */
+	private ScheduledFuture<?> syncTask = null;
+
+	/** true after {@link #close()}. Guarded by this. */
+	private boolean closed = false;
+
+	/**
+	 * Opens a journal with segments of {@link #DEFAULT_SEGMENT_SIZE}.
+	 * 
+	 * @param directory
+	 *            the directory, created if missing
+	 * @param sync
+	 *            when messages are forced to the disk
+	 * @throws IOException
+	 *             if the journal can't be opened or is in use
+	 */
+	public MessageJournal(File directory, JournalSync sync) throws IOException {
+		this(directory, sync, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens a journal.
+	 * 
+	 * @param directory
+	 *            the directory, created if missing
+	 * @param sync
+	 *            when messages are forced to the disk
+	 * @param segmentSize
+	 *            size of new segments in bytes. Larger messages get a
+	 *            segment of their own.
+	 * @throws IOException
+	 *             if the journal can't be opened or is in use
+	 */
+	public MessageJournal(File directory, JournalSync sync, int segmentSize)
+			throws IOException {
+		if (segmentSize < HEADER_SIZE)
+			throw new IllegalArgumentException("segmentSize too small");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create " + directory);
+		this.directory = directory;
+		this.sync = sync;
+		this.segmentSize = segmentSize;
+		FileChannel lockChannel = new RandomAccessFile(new File(directory,
+				"lock"), "rw").getChannel();
+		FileLock lock = null;
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Held by another journal of this process.
+		}
+		if (lock == null) {
+			lockChannel.close();
+			throw new IOException(directory + " is used by another journal");
+		}
+		this.lock = lock;
+		try {
+			head = map(new File(directory, "head"), 8);
+			recover();
+		} catch (IOException e) {
+			lock.channel().close();
+			throw e;
+		}
+		recoveredPosition = writePosition;
+		if (sync == JournalSync.INTERVAL)
+			syncTask = IOConnection.getScheduler().scheduleWithFixedDelay(
+					new Runnable() {
+						@Override
+						public void run() {
+							sync();
+						}
+					}, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Appends a message.
+	 * 
+	 * @param text
+	 *            the message
+	 * @throws IOException
+	 *             if the journal is closed or the disk is full
+	 */
+	public void append(String text) throws IOException {
+		byte[] data = text.getBytes(UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		int recordSize = HEADER_SIZE + data.length;
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Journal closed");
+			int index = index(writePosition);
+			int offset = offset(writePosition);
+			int remaining = writeSegment.capacity() - offset;
+			if (remaining < recordSize) {
+				if (remaining >= 4)
+					writeSegment.putInt(offset, SKIP);
+				// The sync task only forces the current segment.
+				if (sync != JournalSync.NEVER)
+					writeSegment.force();
+				index++;
+				writeSegment = openSegment(index,
+						Math.max(segmentSize, recordSize));
+				offset = 0;
+			}
+			ByteBuffer record = writeSegment.duplicate();
+			record.position(offset + 4);
+			record.putInt((int) crc.getValue());
+			record.put(data);
+			writeSegment.putInt(offset, data.length);
+			if (sync == JournalSync.ALWAYS)
+				writeSegment.force();
+			else
+				dirty = true;
+			size.incrementAndGet();
+			bytes.addAndGet(data.length);
+			writePosition = position(index, offset + recordSize);
+		}
+	}
+
+	/**
+	 * Returns the oldest messages without removing them. Messages are
+	 * removed by {@link #remove()}. Must only be called by one thread at a
+	 * time.
+	 * 
+	 * @param messages
+	 *            receives the messages
+	 * @param max
+	 *            the maximum number of messages
+	 * @return the number of messages, 0 if there are none
+	 */
+	int peek(String[] messages, int max) {
+		long end = writePosition;
+		long position = readPosition;
+		int count = 0;
+		long bytes = 0;
+		while (count < max && position != end) {
+			ByteBuffer segment = readSegment(index(position));
+			if (segment == null)
+				break;
+			int offset = offset(position);
+			int length = segment.capacity() - offset < 4 ? SKIP : segment
+					.getInt(offset);
+			if (length == SKIP) {
+				position = position(index(position) + 1, 0);
+				continue;
+			}
+			byte[] data = new byte[length];
+			ByteBuffer record = segment.duplicate();
+			record.position(offset + HEADER_SIZE);
+			record.get(data);
+			String text = new String(data, UTF_8);
+			if (position < recoveredPosition)
+				text = withoutAck(text);
+			messages[count++] = text;
+			bytes += length;
+			position = position(index(position), offset + HEADER_SIZE
+					+ length);
+		}
+		peekPosition = position;
+		peekCount = count;
+		peekBytes = bytes;
+		return count;
+	}
+
+	/**
+	 * Removes the messages returned by the last {@link #peek(String[], int)}.
+	 */
+	void remove() {
+		if (peekCount == 0)
+			return;
+		int first = index(readPosition);
+		readPosition = peekPosition;
+		size.addAndGet(-peekCount);
+		bytes.addAndGet(-peekBytes);
+		peekCount = 0;
+		synchronized (this) {
+			if (closed)
+				return;
+			head.putLong(0, readPosition);
+			if (sync == JournalSync.ALWAYS)
+				head.force();
+			else
+				dirty = true;
+			for (int index = first; index < index(readPosition); index++)
+				deleteSegment(index);
+		}
+	}
+
+	/**
+	 * Returns the position after the last message appended so far.
+	 * 
+	 * @return the position
+	 */
+	long endPosition() {
+		return writePosition;
+	}
+
+	/**
+	 * Checks if all messages before a position have been removed. Must only
+	 * be called by the thread reading the journal.
+	 * 
+	 * @param position
+	 *            a position returned by {@link #endPosition()}
+	 * @return true, if the messages before the position have been sent
+	 */
+	boolean isReadPast(long position) {
+		return readPosition >= position;
+	}
+
+	/**
+	 * Checks if empty.
+	 * 
+	 * @return true, if all messages have been sent
+	 */
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/**
+	 * Returns the number of messages not sent yet.
+	 * 
+	 * @return the number of messages
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the size of the messages not sent yet.
+	 * 
+	 * @return the number of bytes in UTF-8, without the record headers
+	 */
+	public long bytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Forces all messages to the disk. Segments filled up in the meantime
+	 * have been forced when the next one was started.
+	 */
+	public synchronized void sync() {
+		if (closed || !dirty)
+			return;
+		dirty = false;
+		writeSegment.force();
+		head.force();
+	}
+
+	/**
+	 * Forces all messages to the disk and closes the journal. Messages not
+	 * sent yet are sent by the next journal opened on the directory.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		sync();
+		closed = true;
+		if (syncTask != null)
+			syncTask.cancel(false);
+		segments.clear();
+		writeSegment = null;
+		try {
+			lock.channel().close();
+		} catch (IOException e) {
+			IOConnection.logger.warning("Closing " + directory + " failed: "
+					+ e);
+		}
+	}
+
+	/**
+	 * Finds the messages left over by an earlier journal and the position
+	 * to append at.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(SEGMENT_SUFFIX))
+				continue;
+			try {
+				int index = Integer.parseInt(name.substring(0, name.length()
+						- SEGMENT_SUFFIX.length()));
+				segments.put(index, map(file, 0));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+		readPosition = head.getLong(0);
+		if (segments.isEmpty() || index(readPosition) < segments.firstKey())
+			readPosition = position(segments.isEmpty() ? index(readPosition)
+					: segments.firstKey(), 0);
+		while (!segments.isEmpty()
+				&& segments.firstKey() < index(readPosition))
+			deleteSegment(segments.firstKey());
+		long position = readPosition;
+		int count = 0;
+		long bytes = 0;
+		boolean torn = false;
+		scan: for (Map.Entry<Integer, MappedByteBuffer> entry : segments
+				.entrySet()) {
+			MappedByteBuffer segment = entry.getValue();
+			int offset = entry.getKey() == index(position) ? offset(position)
+					: 0;
+			position = position(entry.getKey(), offset);
+			while (segment.capacity() - offset >= HEADER_SIZE) {
+				int length = segment.getInt(offset);
+				if (length == SKIP)
+					continue scan;
+				if (length <= 0
+						|| length > segment.capacity() - offset - HEADER_SIZE
+						|| !valid(segment, offset, length)) {
+					torn = length != 0;
+					break scan;
+				}
+				offset += HEADER_SIZE + length;
+				position = position(entry.getKey(), offset);
+				count++;
+				bytes += length;
+			}
+			if (segment.capacity() - offset >= 4 && segment.getInt(offset) != SKIP)
+				break;
+		}
+		writePosition = position;
+		size.set(count);
+		this.bytes.set(bytes);
+		while (!segments.isEmpty() && segments.lastKey() > index(position))
+			deleteSegment(segments.lastKey());
+		writeSegment = segments.get(index(position));
+		if (writeSegment == null) {
+			writeSegment = openSegment(index(position), segmentSize);
+		} else if (torn) {
+			for (int i = offset(position); i < writeSegment.capacity(); i++)
+				writeSegment.put(i, (byte) 0);
+		}
+		head.putLong(0, readPosition);
+	}
+
+	/**
+	 * Checks the CRC of a record.
+	 * 
+	 * @param segment
+	 *            the segment
+	 * @param offset
+	 *            the offset of the record
+	 * @param length
+	 *            the length of the message
+	 * @return true, if the record is complete
+	 */
+	private static boolean valid(ByteBuffer segment, int offset, int length) {
+		byte[] data = new byte[length];
+		ByteBuffer record = segment.duplicate();
+		record.position(offset + HEADER_SIZE);
+		record.get(data);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return segment.getInt(offset + 4) == (int) crc.getValue();
+	}
+
+	/**
+	 * Returns a segment for reading.
+	 * 
+	 * @param index
+	 *            the index
+	 * @return the segment
+	 */
+	private ByteBuffer readSegment(int index) {
+		if (index != readIndex) {
+			synchronized (this) {
+				readSegment = segments.get(index);
+			}
+			readIndex = index;
+		}
+		return readSegment;
+	}
+
+	/**
+	 * Creates a new segment. Must hold the lock.
+	 * 
+	 * @param index
+	 *            the index
+	 * @param size
+	 *            the size in bytes
+	 * @return the segment
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private MappedByteBuffer openSegment(int index, int size)
+			throws IOException {
+		MappedByteBuffer segment = map(segmentFile(index), size);
+		segments.put(index, segment);
+		return segment;
+	}
+
+	/**
+	 * Deletes a segment. Must hold the lock.
+	 * 
+	 * @param index
+	 *            the index
+	 */
+	private void deleteSegment(int index) {
+		segments.remove(index);
+		File file = segmentFile(index);
+		// Fails on some platforms while the segment is still mapped, it is
+		// deleted by the next journal then.
+		if (file.exists() && !file.delete())
+			IOConnection.logger.info("Can't delete " + file + " yet");
+	}
+
+	/**
+	 * Returns the file of a segment.
+	 * 
+	 * @param index
+	 *            the index
+	 * @return the file
+	 */
+	private File segmentFile(int index) {
+		return new File(directory, String.format("%010d", index)
+				+ SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Maps a file into memory.
+	 * 
+	 * @param file
+	 *            the file
+	 * @param size
+	 *            the size, 0 to keep the size of an existing file
+	 * @return the mapped file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static MappedByteBuffer map(File file, long size)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (size == 0)
+				size = raf.length();
+			// The mapping stays valid after closing the file.
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Removes the acknowledge from a message.
+	 * 
+	 * @param text
+	 *            the message
+	 * @return the message without acknowledge
+	 */
+	private static String withoutAck(String text) {
+		IOMessage message = new IOMessage(text);
+		if (message.getId().length() == 0)
+			return text;
+		message.setId("");
+		return message.toString();
+	}
+
+	/**
+	 * Builds a position.
+	 * 
+	 * @param index
+	 *            the index of the segment
+	 * @param offset
+	 *            the offset within the segment
+	 * @return the position
+	 */
+	private static long position(int index, int offset) {
+		return ((long) index << 32) | (offset & 0xffffffffL);
+	}
+
+	/**
+	 * Returns the index of the segment of a position.
+	 * 
+	 * @param position
+	 *            the position
+	 * @return the index
+	 */
+	private static int index(long position) {
+		return (int) (position >>> 32);
+	}
+
+	/**
+	 * Returns the offset within the segment of a position.
+	 * 
+	 * @param position
+	 *            the position
+	 * @return the offset
+	 */
+	private static int offset(long position) {
+		return (int) position;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * socket.io-java-client OrgJsonCodec.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.json.JSONTokener;
+
+/**
+ * The Class OrgJsonCodec. Leaves encoding and decoding to org.json, the way
+ * IOConnection did before codecs could be plugged in. Every nested object
+ * and array is turned into a String of its own before it is appended.
+ */
+public class OrgJsonCodec implements JsonCodec {
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.JsonCodec#encode(java.lang.Object,
+	 * java.lang.StringBuilder)
+	 */
+	@Override
+	public void encode(Object value, StringBuilder out) throws JSONException {
+		if (value == null || JSONObject.NULL.equals(value))
+			out.append("null");
+		else if (value instanceof String)
+			out.append(JSONObject.quote((String) value));
+		else if (value instanceof Number)
+			out.append(JSONObject.numberToString((Number) value));
+		else if (value instanceof Boolean || value instanceof JSONObject
+				|| value instanceof JSONArray)
+			out.append(value.toString());
+		else if (value instanceof JSONString)
+			out.append(((JSONString) value).toJSONString());
+		else if (value instanceof Map)
+			out.append(new JSONObject((Map<?, ?>) value).toString());
+		else if (value instanceof Collection)
+			out.append(new JSONArray((Collection<?>) value).toString());
+		else if (value.getClass().isArray())
+			out.append(new JSONArray(value).toString());
+		else
+			out.append(JSONObject.quote(value.toString()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.JsonCodec#decode(java.lang.String)
+	 */
+	@Override
+	public Object decode(String text) throws JSONException {
+		return new JSONTokener(text).nextValue();
+	}
+}
@@ -0,0 +1,434 @@
+/*
+ * socket.io-java-client OutputBuffer.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The Class OutputBuffer. Queues messages to be sent and keeps them within
+ * a number of messages and of bytes. Bytes are counted as the strings take
+ * them in memory, two per UTF-16 char. Any thread may add messages, but only
+ * one at a time may remove them. Adding locks only while waiting for room.
+ * 
+ * Conflated messages are queued in a {@link Slot} and replaced in place by
+ * newer messages with the same key until they have been sent.
+ */
+class OutputBuffer implements Iterable<String> {
+
+	/**
+	 * The Class Slot. Holds the latest conflated message of a key while it
+	 * is queued.
+	 */
+	private static class Slot {
+
+		/** The key. */
+		final String key;
+
+		/** The message, null once it has been removed from the queue. */
+		final AtomicReference<String> text;
+
+		/**
+		 * Instantiates a new slot.
+		 * 
+		 * @param key
+		 *            the key
+		 * @param text
+		 *            the message
+		 */
+		Slot(String key, String text) {
+			this.key = key;
+			this.text = new AtomicReference<String>(text);
+		}
+	}
+
+	/** The messages, either Strings or {@link Slot}s. */
+	private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+
+	/** The queued slots by key. */
+	private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+	/** Number of queued messages. */
+	private final AtomicInteger messages = new AtomicInteger();
+
+	/** Number of queued bytes. */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/** Maximum number of messages. */
+	private final int maxMessages;
+
+	/** Maximum number of bytes. */
+	private final long maxBytes;
+
+	/** What to do with messages which do not fit. */
+	private final OverflowPolicy policy;
+
+	/** Nanoseconds to wait for room with {@link OverflowPolicy#BLOCK}. */
+	private final long blockTimeout;
+
+	/** Guards waiting for room. */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** Signalled when messages have been removed. */
+	private final Condition notFull = lock.newCondition();
+
+	/** Number of threads waiting for room. */
+	private volatile int waiters = 0;
+
+	/**
+	 * Instantiates a new output buffer.
+	 * 
+	 * @param maxMessages
+	 *            the maximum number of messages
+	 * @param maxBytes
+	 *            the maximum number of bytes
+	 * @param policy
+	 *            what to do with messages which do not fit
+	 * @param blockTimeout
+	 *            milliseconds to wait for room with
+	 *            {@link OverflowPolicy#BLOCK}
+	 */
+	OutputBuffer(int maxMessages, long maxBytes, OverflowPolicy policy,
+			long blockTimeout) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		this.blockTimeout = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+	}
+
+	/**
+	 * Adds a message regardless of the limits. Used for messages of the
+	 * protocol, which are small and must not be lost.
+	 * 
+	 * @param text
+	 *            the message
+	 */
+	void add(String text) {
+		messages.incrementAndGet();
+		bytes.addAndGet(sizeOf(text));
+		queue.add(text);
+	}
+
+	/**
+	 * Adds a message within the limits, applying the {@link OverflowPolicy}
+	 * if it does not fit. With {@link OverflowPolicy#DROP_OLDEST} the message
+	 * is always added and {@link #trim()} has to be called afterwards.
+	 * 
+	 * @param text
+	 *            the message
+	 * @return false if the message has been dropped
+	 * @throws OutputBufferFullException
+	 *             if the message does not fit and the policy says so
+	 */
+	boolean offer(String text) {
+		if (!admit(text))
+			return false;
+		queue.add(text);
+		return true;
+	}
+
+	/**
+	 * Replaces the queued message with the same key, or adds the message
+	 * like {@link #offer(String)} if there is none. A message replaced while
+	 * being sent is queued again.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param text
+	 *            the message
+	 * @return false if the message has been dropped
+	 * @throws OutputBufferFullException
+	 *             if the message does not fit and the policy says so
+	 */
+	boolean offer(String key, String text) {
+		while (true) {
+			Slot slot = slots.get(key);
+			if (slot != null) {
+				String current = slot.text.get();
+				if (current == null) {
+					slots.remove(key, slot);
+				} else if (slot.text.compareAndSet(current, text)) {
+					bytes.addAndGet(sizeOf(text) - sizeOf(current));
+					return true;
+				}
+				continue;
+			}
+			if (!admit(text))
+				return false;
+			slot = new Slot(key, text);
+			if (slots.putIfAbsent(key, slot) == null) {
+				queue.add(slot);
+				return true;
+			}
+			release(text);
+		}
+	}
+
+	/**
+	 * Counts in a message, applying the {@link OverflowPolicy} if it does
+	 * not fit.
+	 * 
+	 * @param text
+	 *            the message
+	 * @return false if the message has to be dropped
+	 * @throws OutputBufferFullException
+	 *             if the message does not fit and the policy says so
+	 */
+	private boolean admit(String text) {
+		long size = sizeOf(text);
+		switch (policy) {
+		case DROP_OLDEST:
+			messages.incrementAndGet();
+			bytes.addAndGet(size);
+			return true;
+		case DROP_NEWEST:
+			if (!reserve(size)) {
+				IOConnection.logger.warning("Output buffer full, dropped "
+						+ text);
+				return false;
+			}
+			return true;
+		case BLOCK:
+			if (reserve(size))
+				return true;
+			// The thread might have to send the messages it waits for.
+			if (IOConnection.isIoThread())
+				throw new OutputBufferFullException(
+						"Output buffer full, cannot wait for room on an I/O thread.");
+			if (!await(size))
+				throw new OutputBufferFullException(
+						"Output buffer full, timed out waiting for room.");
+			return true;
+		default:
+			if (!reserve(size))
+				throw new OutputBufferFullException("Output buffer full.");
+			return true;
+		}
+	}
+
+	/**
+	 * Drops the oldest messages while the limits are exceeded. Must only be
+	 * called by the thread removing messages.
+	 * 
+	 * @return the dropped messages, oldest first
+	 */
+	List<String> trim() {
+		if (messages.get() <= maxMessages && bytes.get() <= maxBytes)
+			return Collections.emptyList();
+		List<String> dropped = new ArrayList<String>();
+		while (messages.get() > maxMessages || bytes.get() > maxBytes) {
+			Object head = queue.poll();
+			if (head == null)
+				break;
+			String text = head instanceof Slot ? close((Slot) head)
+					: (String) head;
+			release(text);
+			dropped.add(text);
+		}
+		if (!dropped.isEmpty())
+			IOConnection.logger.warning("Output buffer full, dropped "
+					+ dropped.size() + " messages");
+		return dropped;
+	}
+
+	/**
+	 * Returns the oldest message without removing it.
+	 * 
+	 * @return the message, or null if empty
+	 */
+	String peek() {
+		Object head = queue.peek();
+		return head instanceof Slot ? ((Slot) head).text.get() : (String) head;
+	}
+
+	/**
+	 * Removes the oldest messages after they have been sent. Conflated
+	 * messages replaced meanwhile are queued again. Must only be called by
+	 * one thread at a time.
+	 * 
+	 * @param sent
+	 *            the messages as they have been sent, oldest first
+	 * @param count
+	 *            the number of messages
+	 */
+	void remove(String[] sent, int count) {
+		for (int i = 0; i < count; i++) {
+			Object head = queue.poll();
+			if (head instanceof Slot) {
+				Slot slot = (Slot) head;
+				if (!slot.text.compareAndSet(sent[i], null)) {
+					queue.add(slot);
+					continue;
+				}
+				slots.remove(slot.key, slot);
+			}
+			release(sent[i]);
+		}
+	}
+
+	/**
+	 * Checks if empty.
+	 * 
+	 * @return true, if no message is queued
+	 */
+	boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Returns the number of queued messages.
+	 * 
+	 * @return the number of messages
+	 */
+	int size() {
+		return messages.get();
+	}
+
+	/**
+	 * Returns the number of queued bytes.
+	 * 
+	 * @return the number of bytes
+	 */
+	long bytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Iterates over the queued messages, oldest first.
+	 * 
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		final Iterator<Object> iterator = queue.iterator();
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public String next() {
+				Object next = iterator.next();
+				return next instanceof Slot ? ((Slot) next).text.get()
+						: (String) next;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Takes the message out of a slot removed from the queue.
+	 * 
+	 * @param slot
+	 *            the slot
+	 * @return the message
+	 */
+	private String close(Slot slot) {
+		String text = slot.text.getAndSet(null);
+		slots.remove(slot.key, slot);
+		return text;
+	}
+
+	/**
+	 * Counts out a message which has been removed.
+	 * 
+	 * @param text
+	 *            the message
+	 */
+	private void release(String text) {
+		bytes.addAndGet(-sizeOf(text));
+		messages.decrementAndGet();
+		if (waiters > 0) {
+			lock.lock();
+			try {
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Counts a message in if it fits.
+	 * 
+	 * @param size
+	 *            the size of the message in bytes
+	 * @return true, if it fits and has been counted
+	 */
+	private boolean reserve(long size) {
+		long current;
+		do {
+			current = bytes.get();
+			if (current + size > maxBytes && current > 0)
+				return false;
+		} while (!bytes.compareAndSet(current, current + size));
+		int count;
+		do {
+			count = messages.get();
+			if (count >= maxMessages) {
+				bytes.addAndGet(-size);
+				return false;
+			}
+		} while (!messages.compareAndSet(count, count + 1));
+		return true;
+	}
+
+	/**
+	 * Waits for room for a message.
+	 * 
+	 * @param size
+	 *            the size of the message in bytes
+	 * @return true, if it has been counted in before the timeout
+	 */
+	private boolean await(long size) {
+		long remaining = blockTimeout;
+		lock.lock();
+		waiters++;
+		try {
+			while (!reserve(size)) {
+				if (remaining <= 0)
+					return false;
+				remaining = notFull.awaitNanos(remaining);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			waiters--;
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the size of a message.
+	 * 
+	 * @param text
+	 *            the message
+	 * @return the size in bytes
+	 */
+	private static long sizeOf(String text) {
+		return 2L * text.length();
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * socket.io-java-client OutputBufferFullException.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+/**
+ * The Class OutputBufferFullException. Thrown when sending a message while
+ * the output buffer is full, depending on the {@link OverflowPolicy}.
+ */
+public class OutputBufferFullException extends RuntimeException {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = -3194736250529614412L;
+
+	/**
+	 * Instantiates a new OutputBufferFullException.
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	public OutputBufferFullException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * socket.io-java-client OverflowPolicy.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+/**
+ * The Enum OverflowPolicy. What happens to a message sent while the output
+ * buffer of a connection is full. See
+ * {@link SocketIO#setOutputBufferLimits(int, long)}.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Drops the oldest queued messages until the new one fits. Their
+	 * acknowledges expire.
+	 */
+	DROP_OLDEST,
+
+	/** Drops the new message. */
+	DROP_NEWEST,
+
+	/**
+	 * Waits for room, at most {@link SocketIO#getOverflowTimeout()}, and
+	 * throws an {@link OutputBufferFullException} afterwards. Threads of this
+	 * library never wait but throw right away, as they may be the ones to
+	 * make room. That is the case when emitting from a callback, unless it
+	 * runs on the executor set with
+	 * {@link SocketIO#setDispatchExecutor(java.util.concurrent.Executor)},
+	 * and from tasks of the built in scheduler.
+	 */
+	BLOCK,
+
+	/** Throws an {@link OutputBufferFullException}. */
+	FAIL_FAST
+}
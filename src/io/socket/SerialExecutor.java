@@ -0,0 +1,75 @@
+/*
+ * socket.io-java-client SerialExecutor.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class SerialExecutor. Runs tasks one after another in submission order
+ * on an underlying {@link Executor}, which may be shared with other
+ * instances. Tasks of different instances run in parallel.
+ */
+class SerialExecutor implements Executor {
+
+	/** The executor running the tasks. */
+	private final Executor executor;
+
+	/** Tasks not run yet. */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/** Number of tasks submitted but not run yet. */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/** Runs queued tasks until none are left. */
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			do {
+				Runnable task = tasks.poll();
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					IOConnection.logger.warning("Exception was thrown in callback: "
+							+ e);
+				}
+			} while (pending.decrementAndGet() != 0);
+		}
+	};
+
+	/**
+	 * Instantiates a new serial executor.
+	 *
+	 * @param executor
+	 *            the executor running the tasks
+	 */
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (pending.getAndIncrement() != 0)
+			return;
+		try {
+			executor.execute(drain);
+		} catch (RejectedExecutionException e) {
+			// Keep the order even if the executor has been shut down.
+			drain.run();
+		}
+	}
+}
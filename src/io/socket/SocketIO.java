@@ -11,6 +11,8 @@ package io.socket;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -25,15 +27,91 @@ public class SocketIO {
 	/** callback of this Socket. */
 	private IOCallback callback;
 
+	/** The executor callbacks are run on. Null to run them on I/O threads. */
+	private Executor dispatchExecutor = null;
+
+	/**
+	 * true if {@link #dispatchExecutor} has been set, otherwise the default
+	 * one of {@link #setDefaultDispatchExecutor(Executor)} is used.
+	 */
+	private boolean dispatchExecutorSet = false;
+
+	/**
+	 * Runs the callbacks of this socket in order on {@link #dispatchExecutor}.
+	 * Null if callbacks are run on I/O threads.
+	 */
+	private SerialExecutor dispatcher = null;
+
+	/** {@link #callback}, or a wrapper calling it through {@link #dispatcher}. */
+	private IOCallback dispatchingCallback;
+
 	/** connection of this Socket. */
 	private IOConnection connection;
 
 	/** namespace. */
 	private String namespace;
 
+	/** The cached parts of the event messages of {@link #namespace}. */
+	private FramePrefixes framePrefixes;
+
 	/** Used for setting header during handshaking. */
 	private Properties headers = new Properties();
 
+	/** true if xhr-polling should send while the poll request is open. */
+	private boolean xhrDuplex = false;
+
+	/** Paces xhr-polling requests after empty responses. */
+	private Backoff xhrPollBackoff = new Backoff(100, 1000);
+
+	/** Paces reconnect attempts. */
+	private Backoff reconnectBackoff = new Backoff(1000, 30000, 2, true);
+
+	/** Reconnect attempts before giving up, 0 for no limit. */
+	private int maxReconnectAttempts = 0;
+
+	/** Milliseconds to wait for the server's acknowledges, 0 for ever. */
+	private volatile long ackTimeout = 0;
+
+	/**
+	 * Maximum number of acknowledges waiting for the server. The table grows
+	 * with the acknowledges actually pending, so the default costs nothing
+	 * until they are.
+	 */
+	private int maxPendingAcks = 1 << 20;
+
+	/** Maximum number of messages waiting to be sent. */
+	private int maxQueuedMessages = Integer.MAX_VALUE;
+
+	/** Maximum number of bytes waiting to be sent. */
+	private long maxQueuedBytes = Long.MAX_VALUE;
+
+	/** What happens to messages sent while the output buffer is full. */
+	private OverflowPolicy overflowPolicy = OverflowPolicy.FAIL_FAST;
+
+	/** Milliseconds to wait for room with {@link OverflowPolicy#BLOCK}. */
+	private long overflowTimeout = 0;
+
+	/** Keeps messages waiting to be sent on disk, null to keep them in memory. */
+	private MessageJournal journal = null;
+
+	/** Milliseconds data may wait for more data, 0 to send right away. */
+	private long lingerDelay = 0;
+
+	/** Number of queued messages which are sent without lingering. */
+	private int lingerMessages = Integer.MAX_VALUE;
+
+	/** Number of queued bytes which are sent without lingering. */
+	private long lingerBytes = Long.MAX_VALUE;
+
+	/** Queued bytes at which the connection becomes writable again. */
+	private long lowWatermark = Long.MAX_VALUE;
+
+	/** Queued bytes above which the connection is not writable. */
+	private long highWatermark = Long.MAX_VALUE;
+
+	/** Told when the connection becomes (un)writable. */
+	private volatile IOWritabilityListener writabilityListener = null;
+
 	private URL url;
 
 	/**
@@ -131,6 +209,92 @@ public class SocketIO {
 	public static void setDefaultSSLSocketFactory(SSLContext sslContext) {
 		IOConnection.setSslContext(sslContext);
 	}
+
+	/**
+	 * Sets the scheduler used for heartbeat timeouts and reconnects. All
+	 * connections created afterwards share this scheduler. By default a single
+	 * daemon thread is used for the whole process.
+	 * 
+	 * @param scheduler
+	 *            the scheduler, or null to use the built in one
+	 */
+	public static void setDefaultScheduler(ScheduledExecutorService scheduler) {
+		IOConnection.setScheduler(scheduler);
+	}
+
+	/**
+	 * Sets the executor callbacks and acknowledges of sockets are called on
+	 * if they have none set with {@link #setDispatchExecutor(Executor)}. By
+	 * default a pool of daemon threads shared by all sockets is used.
+	 * 
+	 * Callbacks called on the I/O threads instead must return quickly: all
+	 * websocket connections share a few selector threads, so a slow callback
+	 * stalls every websocket of the process, not only its own.
+	 * 
+	 * @param executor
+	 *            the executor, or null to call callbacks on the I/O threads
+	 */
+	public static void setDefaultDispatchExecutor(Executor executor) {
+		IOConnection.setDispatchExecutor(executor);
+	}
+
+	/**
+	 * Sets the codec encoding the arguments of events, json messages and
+	 * acknowledges and decoding the received ones, for all connections of
+	 * this process. {@link StreamingJsonCodec} is used by default,
+	 * {@link OrgJsonCodec} leaves everything to org.json.
+	 * 
+	 * Note that the default codec is stricter than org.json used to be: it
+	 * rejects trailing commas as in <code>[1,]</code> or
+	 * <code>{"a":1,}</code>, single quotes, unquoted keys and strings,
+	 * unknown escapes, raw control characters in strings and numbers like
+	 * <code>.5</code> or <code>0x10</code>. Messages carrying such data are
+	 * dropped. Use {@link OrgJsonCodec} if a server sends them.
+	 *
+	 * @param codec
+	 *            the codec, or null to use the default one
+	 */
+	public static void setDefaultJsonCodec(JsonCodec codec) {
+		IOConnection.setJsonCodec(codec);
+	}
+
+	/**
+	 * Limits the connection attempts, handshakes included, running at once in
+	 * this process, so that many clients do not overrun a server coming back.
+	 * Connections over the limit wait for a running attempt to succeed or
+	 * fail. Not limited by default.
+	 * 
+	 * @param max
+	 *            the maximum number of attempts, 0 for no limit
+	 */
+	public static void setMaxConcurrentReconnects(int max) {
+		IOConnection.setMaxConcurrentAttempts(max);
+	}
+
+	/**
+	 * Sets the number of selector threads shared by all websocket
+	 * connections of this process. Must be called before the first
+	 * connection is established.
+	 * 
+	 * @param threads
+	 *            number of threads, at least 1
+	 */
+	public static void setWebsocketThreads(int threads) {
+		WebsocketReactor.setDefaultThreads(threads);
+	}
+
+	/**
+	 * Sets whether websocket connections of this process encode outgoing
+	 * frames into direct buffers, which the operating system can write
+	 * without copying them first. Heap buffers are used by default. Must be
+	 * called before the first connection is established.
+	 * 
+	 * @param direct
+	 *            true for direct buffers
+	 */
+	public static void setWebsocketDirectBuffers(boolean direct) {
+		WebsocketReactor.setDefaultDirectBuffers(direct);
+	}
 	
 	/**
 	 * connects to supplied host using callback. Do only use this method if you
@@ -211,12 +375,24 @@ public class SocketIO {
 			this.callback = callback;
 		}
 		if (this.callback != null && this.url != null) {
+			if (!dispatchExecutorSet) {
+				dispatchExecutor = IOConnection.getDispatchExecutor();
+				dispatchExecutorSet = true;
+			}
+			if (dispatchExecutor != null) {
+				dispatcher = new SerialExecutor(dispatchExecutor);
+				dispatchingCallback = new DispatchingCallback(this.callback,
+						dispatcher);
+			} else {
+				dispatchingCallback = this.callback;
+			}
 			final String origin = this.url.getProtocol() + "://"
 					+ this.url.getAuthority();
 			this.namespace = this.url.getPath();
 			if (this.namespace.equals("/")) {
 				this.namespace = "";
 			}
+			this.framePrefixes = new FramePrefixes(this.namespace);
 			this.connection = IOConnection.register(origin, this);
 			return true;
 		}
@@ -254,6 +430,104 @@ public class SocketIO {
 		this.connection.emit(this, event, ack, args);
 	}
 
+	/**
+	 * Emits an event encoded beforehand, see {@link EncodedEvent}. If the
+	 * connection is not established, the call will be buffered and sent as
+	 * soon as it is possible.
+	 * 
+	 * @param event
+	 *            the encoded event
+	 */
+	public void emit(final EncodedEvent event) {
+		this.connection.emit(this, event, null);
+	}
+
+	/**
+	 * Emits an event encoded beforehand, see {@link EncodedEvent}. If the
+	 * connection is not established, the call will be buffered and sent as
+	 * soon as it is possible.
+	 * 
+	 * @param event
+	 *            the encoded event
+	 * @param ack
+	 *            an acknowledge implementation
+	 */
+	public void emit(final EncodedEvent event, IOAcknowledge ack) {
+		this.connection.emit(this, event, ack);
+	}
+
+	/**
+	 * Emits an event whose latest value is all that matters, like a position
+	 * or a gauge. While the connection is not established or congested, a
+	 * newer emit of the same event and key replaces the one waiting to be
+	 * sent, so only the current state is sent after reconnecting. The order
+	 * relative to other messages is not kept.
+	 * 
+	 * @param event
+	 *            the event name
+	 * @param key
+	 *            identifies the emits replacing each other, e.g. the id of
+	 *            the object the value belongs to
+	 * @param args
+	 *            arguments. can be any argument {@link org.json.JSONArray#put(Object)} can take. 
+	 */
+	public void emitConflated(final String event, String key,
+			final Object... args) {
+		this.connection.emitConflated(this, event, key, args);
+	}
+
+	/**
+	 * Emits an event encoded beforehand whose latest value is all that
+	 * matters, see {@link #emitConflated(String, String, Object...)}.
+	 * 
+	 * @param event
+	 *            the encoded event
+	 * @param key
+	 *            identifies the emits replacing each other
+	 */
+	public void emitConflated(final EncodedEvent event, String key) {
+		this.connection.emitConflated(this, event, key);
+	}
+
+	/**
+	 * Emits an event to the Socket.IO server and returns a future for the
+	 * server's acknowledge. If the connection is not established, the call
+	 * will be buffered and sent as soon as it is possible. No thread waits
+	 * for the acknowledge, but at most {@link #getMaxPendingAcks()}
+	 * acknowledges can be pending at once. Emitting beyond that fails the
+	 * future of the oldest pending one with a {@link SocketIOException}, so
+	 * raise the limit with {@link #setMaxPendingAcks(int)} before connecting
+	 * if more are kept in flight.
+	 * 
+	 * @param event
+	 *            the event name
+	 * @param timeout
+	 *            the time to wait for the acknowledge in milliseconds, 0 to
+	 *            use {@link #getAckTimeout()}
+	 * @param args
+	 *            arguments. can be any argument {@link org.json.JSONArray#put(Object)} can take. 
+	 * @return the future, completed with the arguments of the acknowledge
+	 */
+	public IOFuture emitWithAck(final String event, long timeout,
+			final Object... args) {
+		return this.connection.emitWithAck(this, event, timeout, args);
+	}
+
+	/**
+	 * Emits an event encoded beforehand and returns a future for the
+	 * server's acknowledge, see {@link #emitWithAck(String, long, Object...)}.
+	 * 
+	 * @param event
+	 *            the encoded event
+	 * @param timeout
+	 *            the time to wait for the acknowledge in milliseconds, 0 to
+	 *            use {@link #getAckTimeout()}
+	 * @return the future, completed with the arguments of the acknowledge
+	 */
+	public IOFuture emitWithAck(final EncodedEvent event, long timeout) {
+		return this.connection.emitWithAck(this, event, timeout);
+	}
+
 	/**
 	 * Gets the callback. Internally used.
 	 * 
@@ -263,6 +537,29 @@ public class SocketIO {
 		return this.callback;
 	}
 
+	/**
+	 * Gets the callback to be called by the connection. Calls
+	 * {@link #getCallback()} on the dispatch executor if there is one.
+	 * 
+	 * @return the callback
+	 */
+	IOCallback getDispatchingCallback() {
+		return this.dispatchingCallback;
+	}
+
+	/**
+	 * Runs a task in order with the callbacks of this socket.
+	 * 
+	 * @param task
+	 *            the task
+	 */
+	void dispatch(Runnable task) {
+		if (dispatcher != null)
+			dispatcher.execute(task);
+		else
+			task.run();
+	}
+
 	/**
 	 * Gets the namespace. Internally used.
 	 * 
@@ -272,6 +569,15 @@ public class SocketIO {
 		return this.namespace;
 	}
 
+	/**
+	 * Gets the cached parts of the event messages of the namespace.
+	 * 
+	 * @return the prefixes
+	 */
+	FramePrefixes getFramePrefixes() {
+		return this.framePrefixes;
+	}
+
 	/**
 	 * Send JSON data to the Socket.io server.
 	 * 
@@ -391,6 +697,527 @@ public class SocketIO {
 		return this;
 	}
 
+	/**
+	 * Lets xhr-polling send messages on a separate connection while the poll
+	 * request stays open, like browsers do. Otherwise every message sent while
+	 * polling aborts the poll request. Applies to the underlying connection if
+	 * this is the first socket connecting to the server.
+	 * 
+	 * @param duplex
+	 *            true to send and poll concurrently
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setXhrDuplex(boolean duplex) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only change the xhr mode before connecting.");
+		this.xhrDuplex = duplex;
+		return this;
+	}
+
+	/**
+	 * Returns if xhr-polling sends messages while the poll request is open.
+	 * 
+	 * @return true if sending and polling run concurrently
+	 */
+	public boolean isXhrDuplex() {
+		return xhrDuplex;
+	}
+
+	/**
+	 * Sets the pacing of xhr-polling. After a response carrying messages the
+	 * next poll is sent immediately. After empty responses the next poll waits
+	 * for {@link Backoff#getDelay(int)} with the number of empty responses in
+	 * a row. Defaults to 100ms doubling up to 1s. Applies to the underlying
+	 * connection if this is the first socket connecting to the server.
+	 * 
+	 * @param backoff
+	 *            the pacing
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setXhrPollBackoff(Backoff backoff) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only change the xhr poll pacing before connecting.");
+		if (backoff == null)
+			throw new RuntimeException("backoff may not be null.");
+		this.xhrPollBackoff = backoff;
+		return this;
+	}
+
+	/**
+	 * Returns the pacing of xhr-polling.
+	 * 
+	 * @return the pacing
+	 */
+	public Backoff getXhrPollBackoff() {
+		return xhrPollBackoff;
+	}
+
+	/**
+	 * Sets how long acknowledges of this socket wait for the server.
+	 * {@link IOExpiringAcknowledge}s are told when they expire and may
+	 * override this. Expired {@link IOAcknowledge}s are dropped silently.
+	 * Defaults to 0, which waits as long as the connection lives.
+	 * 
+	 * @param timeout
+	 *            the timeout in milliseconds, 0 to wait for ever
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setAckTimeout(long timeout) {
+		if (timeout < 0)
+			throw new RuntimeException("timeout may not be negative.");
+		this.ackTimeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Returns how long acknowledges of this socket wait for the server.
+	 * 
+	 * @return the timeout in milliseconds, 0 if they wait for ever
+	 */
+	public long getAckTimeout() {
+		return ackTimeout;
+	}
+
+	/**
+	 * Sets how long to wait before each attempt to reconnect. Defaults to
+	 * exponential backoff from 1 to 30 seconds with full jitter, which keeps
+	 * clients from reconnecting in lockstep after a server restart. Applies
+	 * to the underlying connection if this is the first socket connecting to
+	 * the server.
+	 * 
+	 * @param backoff
+	 *            the backoff
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setReconnectBackoff(Backoff backoff) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only set the reconnect backoff before connecting.");
+		if (backoff == null)
+			throw new RuntimeException("backoff may not be null.");
+		this.reconnectBackoff = backoff;
+		return this;
+	}
+
+	/**
+	 * Returns how long to wait before each attempt to reconnect.
+	 * 
+	 * @return the backoff
+	 */
+	public Backoff getReconnectBackoff() {
+		return reconnectBackoff;
+	}
+
+	/**
+	 * Sets the number of unsuccessful reconnect attempts in a row after which
+	 * the connection gives up and calls {@link IOCallback#onError}. Without a
+	 * limit it keeps trying, with a new session once the server has
+	 * forgotten the old one.
+	 * Applies to the underlying connection if this is the first socket
+	 * connecting to the server.
+	 * 
+	 * @param max
+	 *            the maximum number of attempts, 0 for no limit
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setMaxReconnectAttempts(int max) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only set the reconnect attempts before connecting.");
+		if (max < 0)
+			throw new RuntimeException("max may not be negative.");
+		this.maxReconnectAttempts = max;
+		return this;
+	}
+
+	/**
+	 * Returns the number of reconnect attempts before giving up.
+	 * 
+	 * @return the maximum number of attempts, 0 for no limit
+	 */
+	public int getMaxReconnectAttempts() {
+		return maxReconnectAttempts;
+	}
+
+	/**
+	 * Sets the maximum number of acknowledges waiting for the server. If
+	 * exceeded, the oldest pending acknowledge is dropped. Defaults to
+	 * 1048576, which only guards against acknowledges the server never
+	 * sends; lower it to fail old futures sooner.
+	 * Applies to the underlying connection if this is the first socket
+	 * connecting to the server.
+	 * 
+	 * @param max
+	 *            the maximum number of pending acknowledges
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setMaxPendingAcks(int max) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only change the maximum of pending acknowledges before connecting.");
+		if (max < 1)
+			throw new RuntimeException("max must be at least 1.");
+		this.maxPendingAcks = max;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum number of acknowledges waiting for the server.
+	 * 
+	 * @return the maximum number of pending acknowledges
+	 */
+	public int getMaxPendingAcks() {
+		return maxPendingAcks;
+	}
+
+	/**
+	 * Limits the messages waiting to be sent, e.g. while reconnecting. Bytes
+	 * are counted as the messages take them in memory, two per char. Messages
+	 * of the protocol itself are queued apart and not limited.
+	 * What happens to messages which do not fit is set by
+	 * {@link #setOverflowPolicy(OverflowPolicy)}. Unlimited by default.
+	 * Applies to the underlying connection if this is the first socket
+	 * connecting to the server.
+	 * 
+	 * @param maxMessages
+	 *            the maximum number of messages
+	 * @param maxBytes
+	 *            the maximum number of bytes
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setOutputBufferLimits(int maxMessages, long maxBytes) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only limit the output buffer before connecting.");
+		if (maxMessages < 1 || maxBytes < 1)
+			throw new RuntimeException("limits must be at least 1.");
+		this.maxQueuedMessages = maxMessages;
+		this.maxQueuedBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum number of messages waiting to be sent.
+	 * 
+	 * @return the maximum number of messages
+	 */
+	public int getMaxQueuedMessages() {
+		return maxQueuedMessages;
+	}
+
+	/**
+	 * Returns the maximum number of bytes waiting to be sent.
+	 * 
+	 * @return the maximum number of bytes
+	 */
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * Sets what happens to messages sent while the output buffer is full.
+	 * Acknowledges of messages which are dropped right away expire, those of
+	 * messages dropped by {@link OverflowPolicy#DROP_OLDEST} wait for
+	 * {@link #getAckTimeout()}. Defaults to {@link OverflowPolicy#FAIL_FAST}.
+	 * Applies to the underlying connection if this is the first socket
+	 * connecting to the server.
+	 * 
+	 * @param policy
+	 *            the policy
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setOverflowPolicy(OverflowPolicy policy) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only set the overflow policy before connecting.");
+		if (policy == null)
+			throw new RuntimeException("policy may not be null.");
+		this.overflowPolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Returns what happens to messages sent while the output buffer is full.
+	 * 
+	 * @return the policy
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Sets how long sending waits for room with {@link OverflowPolicy#BLOCK}.
+	 * Applies to the underlying connection if this is the first socket
+	 * connecting to the server.
+	 * 
+	 * @param timeout
+	 *            the timeout in milliseconds
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setOverflowTimeout(long timeout) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only set the overflow timeout before connecting.");
+		if (timeout < 0)
+			throw new RuntimeException("timeout may not be negative.");
+		this.overflowTimeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Returns how long sending waits for room with {@link OverflowPolicy#BLOCK}.
+	 * 
+	 * @return the timeout in milliseconds
+	 */
+	public long getOverflowTimeout() {
+		return overflowTimeout;
+	}
+
+	/**
+	 * Keeps messages waiting to be sent in a journal on disk instead of the
+	 * output buffer, e.g. to hold hours of data while offline. Messages left
+	 * in the journal by an earlier process are sent after connecting. The
+	 * limits of the output buffer do not apply to them. The journal is forced
+	 * to the disk but stays open when the underlying connection closes, close
+	 * it with {@link MessageJournal#close()} once it is not needed anymore.
+	 * Applies to the underlying connection if this is the first socket
+	 * connecting to the server.
+	 * 
+	 * @param journal
+	 *            the journal, or null to keep messages in memory
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setJournal(MessageJournal journal) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only set the journal before connecting.");
+		this.journal = journal;
+		return this;
+	}
+
+	/**
+	 * Returns the journal messages waiting to be sent are kept in.
+	 * 
+	 * @return the journal, null if they are kept in memory
+	 */
+	public MessageJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Lets data wait to be sent together with more data, from all sockets of
+	 * the underlying connection. Fewer, larger writes save an HTTP request
+	 * per emit with xhr-polling and system calls with websockets, at the cost
+	 * of latency. Data is sent after the delay, or as soon as the given
+	 * number of messages or bytes, counted like {@link #getQueuedBytes()},
+	 * is queued. Messages of the protocol are sent right away and take
+	 * queued data with them. Disabled by default. Applies to the underlying
+	 * connection if this is the first socket connecting to the server.
+	 * 
+	 * @param delay
+	 *            the maximum delay in milliseconds, 0 to send right away
+	 * @param maxMessages
+	 *            the number of messages sent without waiting
+	 * @param maxBytes
+	 *            the number of bytes sent without waiting
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setLinger(long delay, int maxMessages, long maxBytes) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only set lingering before connecting.");
+		if (delay < 0 || maxMessages < 1 || maxBytes < 1)
+			throw new RuntimeException("Invalid linger parameters.");
+		this.lingerDelay = delay;
+		this.lingerMessages = maxMessages;
+		this.lingerBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Returns how long data may wait to be sent together with more data.
+	 * 
+	 * @return the delay in milliseconds, 0 if data is sent right away
+	 */
+	public long getLingerDelay() {
+		return lingerDelay;
+	}
+
+	/**
+	 * Returns the number of queued messages which are sent without waiting.
+	 * 
+	 * @return the number of messages
+	 */
+	public int getLingerMessages() {
+		return lingerMessages;
+	}
+
+	/**
+	 * Returns the number of queued bytes which are sent without waiting.
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getLingerBytes() {
+		return lingerBytes;
+	}
+
+	/**
+	 * Sets when the underlying connection is considered to fall behind. It
+	 * stops being writable when more than the high watermark of bytes wait to
+	 * be sent, and becomes writable again when they have dropped to the low
+	 * watermark. Bytes are counted like {@link #getQueuedBytes()} does. Emitting is still possible
+	 * while not writable, see {@link #setOutputBufferLimits(int, long)} for
+	 * hard limits. Always writable by default. Applies to the underlying
+	 * connection if this is the first socket connecting to the server.
+	 * 
+	 * @param low
+	 *            the low watermark in bytes
+	 * @param high
+	 *            the high watermark in bytes
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setWriteBufferWatermarks(long low, long high) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only set the watermarks before connecting.");
+		if (low < 0 || high < low)
+			throw new RuntimeException("Invalid watermarks.");
+		this.lowWatermark = low;
+		this.highWatermark = high;
+		return this;
+	}
+
+	/**
+	 * Returns the queued bytes at which the connection becomes writable.
+	 * 
+	 * @return the low watermark in bytes
+	 */
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+
+	/**
+	 * Returns the queued bytes above which the connection is not writable.
+	 * 
+	 * @return the high watermark in bytes
+	 */
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+
+	/**
+	 * Checks if the underlying connection keeps up with the data emitted.
+	 * 
+	 * @return false while the queued data has risen above the high watermark
+	 *         and not dropped to the low watermark again
+	 */
+	public boolean isWritable() {
+		IOConnection connection = this.connection;
+		return connection == null || connection.isWritable();
+	}
+
+	/**
+	 * Sets the listener told when {@link #isWritable()} changes.
+	 * 
+	 * @param listener
+	 *            the listener, or null
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setWritabilityListener(IOWritabilityListener listener) {
+		this.writabilityListener = listener;
+		return this;
+	}
+
+	/**
+	 * Returns the listener told when {@link #isWritable()} changes.
+	 * 
+	 * @return the listener, or null
+	 */
+	public IOWritabilityListener getWritabilityListener() {
+		return writabilityListener;
+	}
+
+	/**
+	 * Returns how often the underlying connection has reconnected and resumed
+	 * its session.
+	 * 
+	 * @return the number of resumes, 0 if not connected
+	 */
+	public int getSessionResumes() {
+		IOConnection connection = this.connection;
+		return connection == null ? 0 : connection.getResumes();
+	}
+
+	/**
+	 * Returns how often the underlying connection has reconnected with a new
+	 * session, because the server had forgotten the old one or resuming it
+	 * failed repeatedly. Namespaces are connected again then, and
+	 * acknowledges of the old session expire.
+	 * 
+	 * @return the number of new sessions, 0 if not connected
+	 */
+	public int getSessionRehandshakes() {
+		IOConnection connection = this.connection;
+		return connection == null ? 0 : connection.getRehandshakes();
+	}
+
+	/**
+	 * Returns the number of messages of the underlying connection waiting to
+	 * be sent, including those in its journal.
+	 * 
+	 * @return the number of messages, 0 if not connected
+	 */
+	public int getQueuedMessages() {
+		IOConnection connection = this.connection;
+		return connection == null ? 0 : connection.getQueuedMessages();
+	}
+
+	/**
+	 * Returns the number of bytes of the underlying connection waiting to be
+	 * sent, two per char in memory and their size in UTF-8 in the journal.
+	 * 
+	 * @return the number of bytes, 0 if not connected
+	 */
+	public long getQueuedBytes() {
+		IOConnection connection = this.connection;
+		return connection == null ? 0 : connection.getQueuedBytes();
+	}
+
+	/**
+	 * Sets the executor the callback and acknowledges of this socket are
+	 * called on. They are called one at a time and in the order the server
+	 * sent them, while other sockets sharing the executor run in parallel.
+	 * Exceptions thrown by them are logged and do not close the connection.
+	 * By default the executor of
+	 * {@link #setDefaultDispatchExecutor(Executor)} is used. Use
+	 * {@link #SocketIO()} and {@link #connect(String, IOCallback)} to set
+	 * this before connecting.
+	 * 
+	 * @param executor
+	 *            the executor, or null to call on the I/O thread
+	 * @return SocketIO.this for daisy chaining.
+	 */
+	public SocketIO setDispatchExecutor(Executor executor) {
+		if (this.connection != null)
+			throw new RuntimeException(
+					"You may only set the dispatch executor before connecting.");
+		this.dispatchExecutor = executor;
+		this.dispatchExecutorSet = true;
+		return this;
+	}
+
+	/**
+	 * Returns the executor callbacks are called on.
+	 * 
+	 * @return the executor, null if they are called on the I/O thread
+	 */
+	public Executor getDispatchExecutor() {
+		return dispatchExecutorSet ? dispatchExecutor : IOConnection
+				.getDispatchExecutor();
+	}
+
 	/**
 	 * Returns the header value
 	 * 
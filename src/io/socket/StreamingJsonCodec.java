@@ -0,0 +1,657 @@
+/*
+ * socket.io-java-client StreamingJsonCodec.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+/**
+ * The Class StreamingJsonCodec. The default {@link JsonCodec}. Writes nested
+ * values straight into the output instead of building a String for each of
+ * them and parses in a single pass over the text, cutting strings without
+ * escapes directly out of it. Produces the same text as org.json, but only
+ * accepts strict JSON.
+ */
+public class StreamingJsonCodec implements JsonCodec {
+
+	/** Hex digits for \\u escapes. */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.JsonCodec#encode(java.lang.Object,
+	 * java.lang.StringBuilder)
+	 */
+	@Override
+	public void encode(Object value, StringBuilder out) throws JSONException {
+		if (value == null || JSONObject.NULL.equals(value))
+			out.append("null");
+		else if (value instanceof String)
+			quote((String) value, out);
+		else if (value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte)
+			out.append(((Number) value).longValue());
+		else if (value instanceof Number)
+			out.append(JSONObject.numberToString((Number) value));
+		else if (value instanceof Boolean)
+			out.append(((Boolean) value).booleanValue());
+		else if (value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			out.append('{');
+			Iterator<?> keys = object.keys();
+			while (keys.hasNext()) {
+				String key = keys.next().toString();
+				quote(key, out);
+				out.append(':');
+				encode(object.opt(key), out);
+				if (keys.hasNext())
+					out.append(',');
+			}
+			out.append('}');
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			out.append('[');
+			for (int i = 0, length = array.length(); i < length; i++) {
+				if (i > 0)
+					out.append(',');
+				encode(array.opt(i), out);
+			}
+			out.append(']');
+		} else if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			out.append('[');
+			for (int i = 0; i < array.length; i++) {
+				if (i > 0)
+					out.append(',');
+				encode(array[i], out);
+			}
+			out.append(']');
+		} else if (value instanceof JSONString) {
+			Object text = ((JSONString) value).toJSONString();
+			if (!(text instanceof String))
+				throw new JSONException("Bad value from toJSONString: " + text);
+			out.append(text);
+		} else if (value instanceof Map) {
+			out.append('{');
+			Iterator<? extends Map.Entry<?, ?>> entries = ((Map<?, ?>) value)
+					.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<?, ?> entry = entries.next();
+				quote(String.valueOf(entry.getKey()), out);
+				out.append(':');
+				encode(entry.getValue(), out);
+				if (entries.hasNext())
+					out.append(',');
+			}
+			out.append('}');
+		} else if (value instanceof Collection) {
+			out.append('[');
+			Iterator<?> elements = ((Collection<?>) value).iterator();
+			while (elements.hasNext()) {
+				encode(elements.next(), out);
+				if (elements.hasNext())
+					out.append(',');
+			}
+			out.append(']');
+		} else if (value.getClass().isArray()) {
+			out.append('[');
+			for (int i = 0, length = Array.getLength(value); i < length; i++) {
+				if (i > 0)
+					out.append(',');
+				encode(Array.get(value, i), out);
+			}
+			out.append(']');
+		} else
+			quote(value.toString(), out);
+	}
+
+	/**
+	 * Appends a quoted string, escaped like {@link JSONObject#quote(String)}
+	 * does. Runs of characters which need no escaping are appended at once.
+	 *
+	 * @param s
+	 *            the string
+	 * @param out
+	 *            receives the quoted string
+	 */
+	static void quote(String s, StringBuilder out) {
+		out.append('"');
+		int length = s.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			String escape;
+			if (c == '"' || c == '\\')
+				escape = null;
+			else if (c == '/' && i > 0 && s.charAt(i - 1) == '<')
+				escape = null;
+			else if (c == '\b')
+				escape = "\\b";
+			else if (c == '\t')
+				escape = "\\t";
+			else if (c == '\n')
+				escape = "\\n";
+			else if (c == '\f')
+				escape = "\\f";
+			else if (c == '\r')
+				escape = "\\r";
+			else if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
+					|| (c >= '\u2000' && c < '\u2100'))
+				escape = "";
+			else
+				continue;
+			out.append(s, start, i);
+			start = i + 1;
+			if (escape == null)
+				out.append('\\').append(c);
+			else if (escape.length() > 0)
+				out.append(escape);
+			else
+				out.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 15])
+						.append(HEX[(c >> 4) & 15]).append(HEX[c & 15]);
+		}
+		out.append(s, start, length).append('"');
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.JsonCodec#decode(java.lang.String)
+	 */
+	@Override
+	public Object decode(String text) throws JSONException {
+		Parser parser = new Parser(text);
+		Object value = parser.value();
+		if (parser.skipWhitespace() != -1)
+			throw parser.error("Unexpected data after the value");
+		return value;
+	}
+
+	/**
+	 * The Class Parser. Reads a single JSON text. Values can be skipped
+	 * without decoding them, see {@link EventArguments}.
+	 */
+	static class Parser {
+
+		/** The text. */
+		private final String text;
+
+		/** Position of the next character. */
+		private int position = 0;
+
+		/** Collects strings containing escapes. Created when first needed. */
+		private StringBuilder builder = null;
+
+		/**
+		 * Instantiates a new parser.
+		 *
+		 * @param text
+		 *            the text
+		 */
+		Parser(String text) {
+			this.text = text;
+		}
+
+		/**
+		 * Skips whitespace.
+		 *
+		 * @return the next character, -1 at the end of the text
+		 */
+		int skipWhitespace() {
+			int length = text.length();
+			while (position < length) {
+				char c = text.charAt(position);
+				if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+					return c;
+				position++;
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the position of the next character.
+		 *
+		 * @return the position
+		 */
+		int position() {
+			return position;
+		}
+
+		/**
+		 * Consumes a character if it follows, skipping whitespace before.
+		 *
+		 * @param c
+		 *            the character
+		 * @return true if it has been consumed
+		 */
+		boolean next(char c) {
+			if (skipWhitespace() != c)
+				return false;
+			position++;
+			return true;
+		}
+
+		/**
+		 * Consumes a character which must follow, skipping whitespace
+		 * before.
+		 *
+		 * @param c
+		 *            the character
+		 * @throws JSONException
+		 *             if another character follows
+		 */
+		void expect(char c) throws JSONException {
+			if (!next(c))
+				throw error("Expected '" + c + "'");
+		}
+
+		/**
+		 * Returns an exception pointing at the current position.
+		 *
+		 * @param message
+		 *            what went wrong
+		 * @return the exception
+		 */
+		JSONException error(String message) {
+			return new JSONException(message + " at character " + position);
+		}
+
+		/**
+		 * Reads a value.
+		 *
+		 * @return the value
+		 * @throws JSONException
+		 *             if the text is malformed
+		 */
+		Object value() throws JSONException {
+			int c = skipWhitespace();
+			switch (c) {
+			case '{':
+				position++;
+				return object();
+			case '[':
+				position++;
+				return array();
+			case '"':
+				position++;
+				return string();
+			case 't':
+				return literal("true", Boolean.TRUE);
+			case 'f':
+				return literal("false", Boolean.FALSE);
+			case 'n':
+				return literal("null", JSONObject.NULL);
+			default:
+				if (c == '-' || (c >= '0' && c <= '9'))
+					return number();
+				throw error(c == -1 ? "Unexpected end" : "Unexpected character");
+			}
+		}
+
+		/**
+		 * Skips a value, checking its syntax.
+		 *
+		 * @throws JSONException
+		 *             if the text is malformed
+		 */
+		void skip() throws JSONException {
+			int c = skipWhitespace();
+			switch (c) {
+			case '{':
+				position++;
+				if (next('}'))
+					return;
+				do {
+					expect('"');
+					skipString();
+					expect(':');
+					skip();
+				} while (next(','));
+				expect('}');
+				return;
+			case '[':
+				position++;
+				if (next(']'))
+					return;
+				do {
+					skip();
+				} while (next(','));
+				expect(']');
+				return;
+			case '"':
+				position++;
+				skipString();
+				return;
+			default:
+				if (c == '-' || (c >= '0' && c <= '9'))
+					scanNumber();
+				else
+					value();
+			}
+		}
+
+		/**
+		 * Skips an array, recording where its elements are.
+		 *
+		 * @return start and end of each element, one after the other
+		 * @throws JSONException
+		 *             if the text is malformed
+		 */
+		int[] elements() throws JSONException {
+			expect('[');
+			if (next(']'))
+				return new int[0];
+			int[] bounds = new int[8];
+			int count = 0;
+			do {
+				if (count == bounds.length)
+					bounds = Arrays.copyOf(bounds, count * 2);
+				skipWhitespace();
+				bounds[count++] = position;
+				skip();
+				bounds[count++] = position;
+			} while (next(','));
+			expect(']');
+			return Arrays.copyOf(bounds, count);
+		}
+
+		/**
+		 * Skips a string after its opening quote, checking its escapes like
+		 * {@link #string()} does.
+		 *
+		 * @throws JSONException
+		 *             if the string is malformed
+		 */
+		private void skipString() throws JSONException {
+			int length = text.length();
+			while (position < length) {
+				char c = text.charAt(position++);
+				if (c == '"')
+					return;
+				if (c < ' ')
+					throw error("Unescaped control character");
+				if (c != '\\')
+					continue;
+				if (position == length)
+					break;
+				switch (text.charAt(position++)) {
+				case 'u':
+					hex();
+					break;
+				case 'b':
+				case 't':
+				case 'n':
+				case 'f':
+				case 'r':
+				case '"':
+				case '\\':
+				case '/':
+					break;
+				default:
+					throw error("Illegal escape");
+				}
+			}
+			throw error("Unterminated string");
+		}
+
+		/**
+		 * Reads an object after its opening brace.
+		 *
+		 * @return the object
+		 * @throws JSONException
+		 *             if the text is malformed
+		 */
+		private JSONObject object() throws JSONException {
+			JSONObject object = new JSONObject();
+			if (skipWhitespace() == '}') {
+				position++;
+				return object;
+			}
+			while (true) {
+				if (skipWhitespace() != '"')
+					throw error("Expected a key");
+				position++;
+				String key = string();
+				if (skipWhitespace() != ':')
+					throw error("Expected ':'");
+				position++;
+				object.put(key, value());
+				int c = skipWhitespace();
+				position++;
+				if (c == '}')
+					return object;
+				if (c != ',')
+					throw error("Expected ',' or '}'");
+			}
+		}
+
+		/**
+		 * Reads an array after its opening bracket.
+		 *
+		 * @return the array
+		 * @throws JSONException
+		 *             if the text is malformed
+		 */
+		private JSONArray array() throws JSONException {
+			JSONArray array = new JSONArray();
+			if (skipWhitespace() == ']') {
+				position++;
+				return array;
+			}
+			while (true) {
+				array.put(value());
+				int c = skipWhitespace();
+				position++;
+				if (c == ']')
+					return array;
+				if (c != ',')
+					throw error("Expected ',' or ']'");
+			}
+		}
+
+		/**
+		 * Reads a string after its opening quote.
+		 *
+		 * @return the string
+		 * @throws JSONException
+		 *             if the text is malformed
+		 */
+		String string() throws JSONException {
+			int length = text.length();
+			int start = position;
+			while (position < length) {
+				char c = text.charAt(position);
+				if (c == '"') {
+					return text.substring(start, position++);
+				} else if (c == '\\') {
+					break;
+				} else if (c < ' ') {
+					throw error("Unescaped control character");
+				}
+				position++;
+			}
+			if (position == length)
+				throw error("Unterminated string");
+			if (builder == null)
+				builder = new StringBuilder();
+			builder.setLength(0);
+			builder.append(text, start, position);
+			while (position < length) {
+				char c = text.charAt(position++);
+				if (c == '"')
+					return builder.toString();
+				if (c < ' ')
+					throw error("Unescaped control character");
+				if (c != '\\') {
+					builder.append(c);
+					continue;
+				}
+				if (position == length)
+					break;
+				c = text.charAt(position++);
+				switch (c) {
+				case 'b':
+					builder.append('\b');
+					break;
+				case 't':
+					builder.append('\t');
+					break;
+				case 'n':
+					builder.append('\n');
+					break;
+				case 'f':
+					builder.append('\f');
+					break;
+				case 'r':
+					builder.append('\r');
+					break;
+				case 'u':
+					builder.append(hex());
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					builder.append(c);
+					break;
+				default:
+					throw error("Illegal escape");
+				}
+			}
+			throw error("Unterminated string");
+		}
+
+		/**
+		 * Reads the four hex digits of a \\u escape.
+		 *
+		 * @return the character
+		 * @throws JSONException
+		 *             if the digits are malformed
+		 */
+		private char hex() throws JSONException {
+			if (position + 4 > text.length())
+				throw error("Illegal escape");
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(text.charAt(position++), 16);
+				if (digit < 0)
+					throw error("Illegal escape");
+				value = (value << 4) | digit;
+			}
+			return (char) value;
+		}
+
+		/**
+		 * Reads a number. Numbers without fraction and exponent become
+		 * Integers or Longs if they fit, everything else Doubles, like
+		 * org.json does.
+		 *
+		 * @return the number
+		 * @throws JSONException
+		 *             if the number is malformed
+		 */
+		private Number number() throws JSONException {
+			int start = position;
+			if (scanNumber())
+				return Double.valueOf(text.substring(start, position));
+			boolean negative = text.charAt(start) == '-';
+			int digits = position - start - (negative ? 1 : 0);
+			if (digits > 18) {
+				String number = text.substring(start, position);
+				try {
+					return Long.valueOf(number);
+				} catch (NumberFormatException e) {
+					return Double.valueOf(number);
+				}
+			}
+			long integer = 0;
+			for (int i = negative ? start + 1 : start; i < position; i++)
+				integer = integer * 10 + (text.charAt(i) - '0');
+			if (negative)
+				integer = -integer;
+			if (integer >= Integer.MIN_VALUE && integer <= Integer.MAX_VALUE)
+				return Integer.valueOf((int) integer);
+			return Long.valueOf(integer);
+		}
+
+		/**
+		 * Moves past a number, checking its syntax. Like org.json, leading
+		 * zeros and a point without digits after it are let through.
+		 *
+		 * @return true if the number has a fraction or an exponent
+		 * @throws JSONException
+		 *             if the number is malformed
+		 */
+		private boolean scanNumber() throws JSONException {
+			int length = text.length();
+			if (text.charAt(position) == '-')
+				position++;
+			if (skipDigits() == 0)
+				throw error("Malformed number");
+			boolean fraction = false;
+			if (position < length && text.charAt(position) == '.') {
+				position++;
+				skipDigits();
+				fraction = true;
+			}
+			if (position < length
+					&& (text.charAt(position) == 'e' || text.charAt(position) == 'E')) {
+				position++;
+				if (position < length
+						&& (text.charAt(position) == '+' || text.charAt(position) == '-'))
+					position++;
+				if (skipDigits() == 0)
+					throw error("Malformed number");
+				fraction = true;
+			}
+			return fraction;
+		}
+
+		/**
+		 * Moves past decimal digits.
+		 *
+		 * @return the number of digits
+		 */
+		private int skipDigits() {
+			int length = text.length();
+			int start = position;
+			while (position < length && text.charAt(position) >= '0'
+					&& text.charAt(position) <= '9')
+				position++;
+			return position - start;
+		}
+
+		/**
+		 * Reads true, false or null.
+		 *
+		 * @param literal
+		 *            the expected text
+		 * @param value
+		 *            the value it stands for
+		 * @return the value
+		 * @throws JSONException
+		 *             if the text doesn't match
+		 */
+		private Object literal(String literal, Object value)
+				throws JSONException {
+			if (!text.startsWith(literal, position))
+				throw error("Unexpected character");
+			position += literal.length();
+			return value;
+		}
+	}
+}
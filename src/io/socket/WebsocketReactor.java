@@ -0,0 +1,283 @@
+/*
+ * socket.io-java-client WebsocketReactor.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.DefaultSSLWebSocketClientFactory;
+
+/**
+ * The Class WebsocketReactor. A small pool of {@link Selector} threads shared
+ * by all {@link WebsocketTransport}s of this process.
+ */
+class WebsocketReactor {
+
+	/** Maximum number of frames written with one system call. */
+	private static final int WRITE_BATCH = 256;
+
+	/** Number of selector threads used by the default reactor. */
+	private static int defaultThreads = 1;
+
+	/** true if the default reactor writes from direct buffers. */
+	private static boolean defaultDirectBuffers = false;
+
+	/** The default reactor. Created on first use. */
+	private static WebsocketReactor defaultReactor = null;
+
+	/** The buffers outgoing frames are encoded into. */
+	final BufferPool bufferPool;
+
+	/** The selector threads of this reactor. */
+	private final SelectorThread[] threads;
+
+	/** Round robin counter used to distribute transports. */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/** Executor for delegated SSL tasks. Created on first use. */
+	private ExecutorService sslExecutor = null;
+
+	/** Executor for name lookups. Created on first use. */
+	private ExecutorService resolver = null;
+
+	/** The SSL factory used for wss connections. */
+	private DefaultSSLWebSocketClientFactory sslFactory = null;
+
+	/** The {@link SSLContext} {@link #sslFactory} has been created for. */
+	private SSLContext sslFactoryContext = null;
+
+	/**
+	 * The Class SelectorThread. Runs the event loop for a subset of all
+	 * {@link WebsocketTransport}s.
+	 */
+	class SelectorThread extends Thread {
+
+		/** The selector of this thread. */
+		final Selector selector;
+
+		/** Tasks to be run inside of this thread. */
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/**
+		 * Buffer for reading from channels. Only used by this thread, so it is
+		 * shared by all transports of this thread.
+		 */
+		final ByteBuffer readBuffer = ByteBuffer.allocate(WebSocket.RCVBUF);
+
+		/**
+		 * Frames handed to a single gathering write. Only used by this thread,
+		 * so it is shared by all transports of this thread.
+		 */
+		final ByteBuffer[] writeBuffers = new ByteBuffer[WRITE_BATCH];
+
+		/**
+		 * Instantiates a new selector thread.
+		 *
+		 * @param id
+		 *            the number of this thread
+		 * @throws IOException
+		 *             if the selector cannot be opened
+		 */
+		SelectorThread(int id) throws IOException {
+			super("WebsocketReactor-" + id);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Runs a task inside of this thread.
+		 *
+		 * @param task
+		 *            the task
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Checks if the caller runs inside of this thread.
+		 *
+		 * @return true, if the current thread is this thread
+		 */
+		boolean inReactor() {
+			return Thread.currentThread() == this;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Thread#run()
+		 */
+		@Override
+		public void run() {
+			IOConnection.markIoThread();
+			while (true) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					IOConnection.logger.warning("Selector failed: " + e);
+					continue;
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						IOConnection.logger.warning("Reactor task failed: " + e);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					WebsocketTransport transport = (WebsocketTransport) key
+							.attachment();
+					try {
+						transport.process(key);
+					} catch (RuntimeException e) {
+						transport.failed(e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of selector threads of the default reactor. Has no
+	 * effect after the first websocket connection has been made.
+	 *
+	 * @param threads
+	 *            the number of threads
+	 */
+	static synchronized void setDefaultThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException(
+					"A reactor needs at least one thread.");
+		defaultThreads = threads;
+	}
+
+	/**
+	 * Sets whether the default reactor encodes outgoing frames into direct
+	 * buffers. Has no effect after the first websocket connection has been
+	 * made.
+	 *
+	 * @param direct
+	 *            true for direct buffers
+	 */
+	static synchronized void setDefaultDirectBuffers(boolean direct) {
+		defaultDirectBuffers = direct;
+	}
+
+	/**
+	 * Returns the default reactor, starting it if necessary.
+	 *
+	 * @return the default reactor
+	 */
+	static synchronized WebsocketReactor getDefault() {
+		if (defaultReactor == null) {
+			try {
+				defaultReactor = new WebsocketReactor(defaultThreads,
+						defaultDirectBuffers);
+			} catch (IOException e) {
+				throw new RuntimeException("Cannot open selector", e);
+			}
+		}
+		return defaultReactor;
+	}
+
+	/**
+	 * Instantiates and starts a new reactor.
+	 *
+	 * @param threads
+	 *            the number of selector threads
+	 * @param directBuffers
+	 *            true to encode outgoing frames into direct buffers
+	 * @throws IOException
+	 *             if a selector cannot be opened
+	 */
+	WebsocketReactor(int threads, boolean directBuffers) throws IOException {
+		this.bufferPool = new BufferPool(directBuffers);
+		this.threads = new SelectorThread[threads];
+		for (int i = 0; i < threads; i++) {
+			this.threads[i] = new SelectorThread(i);
+			this.threads[i].start();
+		}
+	}
+
+	/**
+	 * Returns the selector thread the next transport should be bound to.
+	 *
+	 * @return a selector thread
+	 */
+	SelectorThread nextThread() {
+		int i = (next.getAndIncrement() & Integer.MAX_VALUE) % threads.length;
+		return threads[i];
+	}
+
+	/**
+	 * Returns the executor for name lookups, which block and must run neither
+	 * on the selector threads nor on the scheduler of the connections.
+	 *
+	 * @return the executor
+	 */
+	synchronized ExecutorService getResolver() {
+		if (resolver == null) {
+			resolver = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "WebsocketReactor-resolver");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return resolver;
+	}
+
+	/**
+	 * Returns a factory for wrapping channels into SSL. The factory and its
+	 * executor are shared by all transports of this reactor.
+	 *
+	 * @param context
+	 *            the SSL context
+	 * @return the factory
+	 */
+	synchronized DefaultSSLWebSocketClientFactory getSslFactory(
+			SSLContext context) {
+		if (sslFactory == null || sslFactoryContext != context) {
+			if (sslExecutor == null) {
+				sslExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "WebsocketReactor-ssl");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			sslFactory = new DefaultSSLWebSocketClientFactory(context,
+					sslExecutor);
+			sslFactoryContext = context;
+		}
+		return sslFactory;
+	}
+}
@@ -1,101 +1,571 @@
+/*
+ * socket.io-java-client WebsocketTransport.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
 package io.socket;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-
-import org.java_websocket.client.DefaultSSLWebSocketClientFactory;
-import org.java_websocket.client.WebSocketClient;
-import org.java_websocket.handshake.ServerHandshake;
-
-class WebsocketTransport extends WebSocketClient implements IOTransport {
-    private final static Pattern PATTERN_HTTP = Pattern.compile("^http");
-    public static final String TRANSPORT_NAME = "websocket";
-    private IOConnection connection;
-    public static IOTransport create(URL url, IOConnection connection) {
-        URI uri = URI.create(
-                PATTERN_HTTP.matcher(url.toString()).replaceFirst("ws")
-                + IOConnection.SOCKET_IO_1 + TRANSPORT_NAME
-                + "/" + connection.getSessionId());
-
-        return new WebsocketTransport(uri, connection);
-    }
-
-    public WebsocketTransport(URI uri, IOConnection connection) {
-        super(uri);
-        this.connection = connection;
-        SSLContext context = IOConnection.getSslContext();
-        if("wss".equals(uri.getScheme()) && context != null) {
-	        this.setWebSocketFactory(new DefaultSSLWebSocketClientFactory(context));
-        }
-    }
-
-    /* (non-Javadoc)
-     * @see io.socket.IOTransport#disconnect()
-     */
-    @Override
-    public void disconnect() {
-        try {
-            this.close();
-        } catch (Exception e) {
-            connection.transportError(e);
-        }
-    }
-
-    /* (non-Javadoc)
-     * @see io.socket.IOTransport#canSendBulk()
-     */
-    @Override
-    public boolean canSendBulk() {
-        return false;
-    }
-
-    /* (non-Javadoc)
-     * @see io.socket.IOTransport#sendBulk(java.lang.String[])
-     */
-    @Override
-    public void sendBulk(String[] texts) throws IOException {
-        throw new RuntimeException("Cannot send Bulk!");
-    }
-
-    /* (non-Javadoc)
-     * @see io.socket.IOTransport#invalidate()
-     */
-    @Override
-    public void invalidate() {
-        connection = null;
-    }
-
-    @Override
-    public void onClose(int code, String reason, boolean remote) {
-        if(connection != null)
-            connection.transportDisconnected();
-    }
-
-    @Override
-    public void onMessage(String text) {
-        if(connection != null)
-            connection.transportMessage(text);
-    }
-
-    @Override
-    public void onOpen(ServerHandshake handshakedata) {
-        if(connection != null)
-            connection.transportConnected();
-    }
-
-    @Override
-    public String getName() {
-        return TRANSPORT_NAME;
-    }
-
-    @Override
-    public void onError(Exception ex) {
-        // TODO Auto-generated method stub
-
-    }
-}
\ No newline at end of file
+
+import org.java_websocket.SocketChannelIOHelper;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WrappedByteChannel;
+import org.java_websocket.drafts.Draft_10;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.Handshakedata;
+import org.java_websocket.handshake.HandshakeImpl1Client;
+
+/**
+ * The Class WebsocketTransport. All instances share the selector threads of
+ * a {@link WebsocketReactor}, so no thread is needed per connection.
+ */
+class WebsocketTransport extends WebSocketAdapter implements IOTransport {
+	private final static Pattern PATTERN_HTTP = Pattern.compile("^http");
+
+	/** The String to identify this Transport. */
+	public static final String TRANSPORT_NAME = "websocket";
+
+	/** First byte of a frame holding a complete text message. */
+	private static final int FIN_TEXT = 0x81;
+
+	/** Set in the second byte of a frame if the payload is masked. */
+	private static final int MASKED = 0x80;
+
+	/** Largest header of a masked frame. */
+	private static final int MAX_HEADER = 14;
+
+	/** The connection. */
+	private volatile IOConnection connection;
+
+	/** The uri of the websocket endpoint. */
+	private final URI uri;
+
+	/** The selector thread handling this transport. */
+	private final WebsocketReactor.SelectorThread reactor;
+
+	/** The buffers outgoing frames are encoded into. */
+	private final BufferPool bufferPool;
+
+	/** Chooses the masks of outgoing frames. */
+	private final Random masks = new Random();
+
+	/** The underlying channel. Only accessed by {@link #reactor}. */
+	private SocketChannel channel;
+
+	/**
+	 * The channel used for reading and writing. Either {@link #channel} or an
+	 * SSL wrapper around it.
+	 */
+	private ByteChannel wrappedChannel;
+
+	/** The selection key of {@link #channel}. */
+	private SelectionKey key;
+
+	/** The websocket protocol state. Null until the tcp connection is up. */
+	private volatile WebSocketImpl webSocket;
+
+	/** true once {@link #disconnect()} has been called. */
+	private volatile boolean closed;
+
+	/** true if {@link #flushTask} is already queued on {@link #reactor}. */
+	private final AtomicBoolean writeDemand = new AtomicBoolean();
+
+	/** Flushes the outgoing queue from within {@link #reactor}. */
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			writeDemand.set(false);
+			if (key != null && key.isValid())
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	};
+
+	/**
+	 * Creates a new Transport for the given url an {@link IOConnection}.
+	 *
+	 * @param url
+	 *            the url
+	 * @param connection
+	 *            the connection
+	 * @return the iO transport
+	 */
+	public static IOTransport create(URL url, IOConnection connection) {
+		URI uri = URI.create(PATTERN_HTTP.matcher(url.toString())
+				.replaceFirst("ws")
+				+ IOConnection.SOCKET_IO_1
+				+ TRANSPORT_NAME
+				+ "/"
+				+ connection.getSessionId());
+
+		return new WebsocketTransport(uri, connection);
+	}
+
+	/**
+	 * Instantiates a new websocket transport.
+	 *
+	 * @param uri
+	 *            the uri
+	 * @param connection
+	 *            the connection
+	 */
+	public WebsocketTransport(URI uri, IOConnection connection) {
+		this.uri = uri;
+		this.connection = connection;
+		WebsocketReactor reactor = WebsocketReactor.getDefault();
+		this.reactor = reactor.nextThread();
+		this.bufferPool = reactor.bufferPool;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.IOTransport#connect()
+	 */
+	@Override
+	public void connect() {
+		WebsocketReactor.getDefault().getResolver().execute(new Runnable() {
+			@Override
+			public void run() {
+				open(new InetSocketAddress(uri.getHost(), getPort()));
+			}
+		});
+	}
+
+	/**
+	 * Opens the channel and starts connecting it within {@link #reactor}.
+	 *
+	 * @param address
+	 *            the resolved address of the server
+	 */
+	private void open(final InetSocketAddress address) {
+		reactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed)
+					return;
+				try {
+					if (address.isUnresolved())
+						throw new UnknownHostException(address.getHostName());
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					channel.connect(address);
+					key = channel.register(reactor.selector,
+							SelectionKey.OP_CONNECT, WebsocketTransport.this);
+				} catch (IOException e) {
+					failed(e);
+				}
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.IOTransport#disconnect()
+	 */
+	@Override
+	public void disconnect() {
+		closed = true;
+		final WebSocketImpl webSocket = this.webSocket;
+		if (webSocket != null && webSocket.isOpen())
+			webSocket.close(CloseFrame.NORMAL);
+		reactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				// Sends the close frame if the channel takes it right away,
+				// but does not wait for the server to answer, it might never.
+				try {
+					if (webSocket != null && key != null && key.isValid())
+						flush();
+				} catch (IOException e) {
+				}
+				closeChannel();
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.IOTransport#send(java.lang.String)
+	 */
+	@Override
+	public void send(String text) throws Exception {
+		sendBulk(new String[] { text });
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.IOTransport#canSendBulk()
+	 */
+	@Override
+	public boolean canSendBulk() {
+		return true;
+	}
+
+	/**
+	 * Queues one frame per message and requests a single flush for all of
+	 * them. socket.io does not decode framed payloads received by websocket,
+	 * so the messages cannot share a frame. The frames are encoded one after
+	 * the other into pooled buffers instead, which are written with
+	 * gathering writes by {@link #flush()}.
+	 *
+	 * @see io.socket.IOTransport#sendBulk(java.lang.String[])
+	 */
+	@Override
+	public void sendBulk(String[] texts) throws IOException {
+		WebSocketImpl webSocket = this.webSocket;
+		if (webSocket == null || !webSocket.isOpen())
+			throw new IOException("Websocket is not connected");
+		ByteBuffer buffer = null;
+		for (String text : texts) {
+			int length = BufferPool.utf8Length(text);
+			if (buffer != null && buffer.remaining() < MAX_HEADER + length) {
+				buffer.flip();
+				webSocket.outQueue.add(buffer);
+				buffer = null;
+			}
+			if (buffer == null)
+				buffer = bufferPool.acquire(MAX_HEADER + length);
+			encodeFrame(text, length, masks.nextInt(), buffer);
+		}
+		if (buffer != null) {
+			buffer.flip();
+			webSocket.outQueue.add(buffer);
+			onWriteDemand(webSocket);
+		}
+	}
+
+	/**
+	 * Encodes a text message into a masked frame, as a client has to send
+	 * them.
+	 *
+	 * @param text
+	 *            the message
+	 * @param length
+	 *            the length of the message in UTF-8
+	 * @param mask
+	 *            the mask
+	 * @param buffer
+	 *            receives the frame, must have room for it
+	 */
+	static void encodeFrame(String text, int length, int mask,
+			ByteBuffer buffer) {
+		buffer.put((byte) FIN_TEXT);
+		if (length < 126) {
+			buffer.put((byte) (MASKED | length));
+		} else if (length <= 0xffff) {
+			buffer.put((byte) (MASKED | 126));
+			buffer.putShort((short) length);
+		} else {
+			buffer.put((byte) (MASKED | 127));
+			buffer.putLong(length);
+		}
+		buffer.putInt(mask);
+		int start = buffer.position();
+		BufferPool.encode(text, 0, buffer);
+		int end = buffer.position();
+		int i = start;
+		for (; i + 4 <= end; i += 4)
+			buffer.putInt(i, buffer.getInt(i) ^ mask);
+		for (int shift = 24; i < end; i++, shift -= 8)
+			buffer.put(i, (byte) (buffer.get(i) ^ (mask >>> shift)));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.IOTransport#invalidate()
+	 */
+	@Override
+	public void invalidate() {
+		connection = null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see io.socket.IOTransport#getName()
+	 */
+	@Override
+	public String getName() {
+		return TRANSPORT_NAME;
+	}
+
+	/**
+	 * Handles a selected key. Called by {@link #reactor}.
+	 *
+	 * @param key
+	 *            the selected key
+	 */
+	void process(SelectionKey key) {
+		try {
+			if (key.isValid() && key.isConnectable())
+				finishConnect();
+			if (key.isValid() && key.isReadable())
+				read();
+			if (key.isValid() && key.isWritable())
+				flush();
+		} catch (Exception e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Shuts this transport down after an unrecoverable error. Called by
+	 * {@link #reactor}.
+	 *
+	 * @param e
+	 *            the cause
+	 */
+	void failed(Exception e) {
+		WebSocketImpl webSocket = this.webSocket;
+		if (webSocket != null) {
+			// closes the channel and reports through onWebsocketClose()
+			webSocket.eot(e);
+			return;
+		}
+		closeChannel();
+		IOConnection connection = this.connection;
+		if (connection != null)
+			connection.transportError(e);
+	}
+
+	/**
+	 * Finishes the tcp connect and starts the websocket handshake.
+	 *
+	 * @throws Exception
+	 *             if connecting or handshaking fails
+	 */
+	private void finishConnect() throws Exception {
+		if (channel.isConnectionPending())
+			channel.finishConnect();
+		key.interestOps(SelectionKey.OP_READ);
+		SSLContext context = IOConnection.getSslContext();
+		if ("wss".equals(uri.getScheme()) && context != null) {
+			wrappedChannel = WebsocketReactor.getDefault()
+					.getSslFactory(context)
+					.wrapChannel(key, uri.getHost(), getPort());
+		} else {
+			wrappedChannel = channel;
+		}
+		WebSocketImpl webSocket = new WebSocketImpl(this, new Draft_10(),
+				channel.socket());
+		webSocket.key = key;
+		webSocket.channel = wrappedChannel;
+		this.webSocket = webSocket;
+
+		String path = uri.getPath();
+		String query = uri.getQuery();
+		if (path == null || path.length() == 0)
+			path = "/";
+		if (query != null)
+			path += "?" + query;
+		HandshakeImpl1Client handshake = new HandshakeImpl1Client();
+		handshake.setResourceDescriptor(path);
+		handshake.put("Host", uri.getHost()
+				+ (uri.getPort() != -1 ? ":" + uri.getPort() : ""));
+		webSocket.startHandshake(handshake);
+	}
+
+	/**
+	 * Reads available data and feeds it to {@link #webSocket}.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void read() throws IOException {
+		ByteBuffer buffer = reactor.readBuffer;
+		if (SocketChannelIOHelper.read(buffer, webSocket, wrappedChannel))
+			webSocket.decode(buffer);
+		if (wrappedChannel instanceof WrappedByteChannel) {
+			WrappedByteChannel wrapped = (WrappedByteChannel) wrappedChannel;
+			while (key.isValid() && wrapped.isNeedRead()) {
+				boolean more = SocketChannelIOHelper.readMore(buffer,
+						webSocket, wrapped);
+				if (buffer.hasRemaining())
+					webSocket.decode(buffer);
+				if (!more)
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Writes queued frames of {@link #webSocket} to the channel.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void flush() throws IOException {
+		boolean done;
+		if (wrappedChannel == channel)
+			done = gather();
+		else
+			done = batch();
+		if (key.isValid())
+			key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ
+					| SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Writes queued frames of {@link #webSocket} to {@link #channel}, many at
+	 * a time. Behaves like {@link SocketChannelIOHelper#batch} otherwise.
+	 *
+	 * @return true if all frames have been written
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private boolean gather() throws IOException {
+		BlockingQueue<ByteBuffer> outQueue = webSocket.outQueue;
+		ByteBuffer[] buffers = reactor.writeBuffers;
+		while (true) {
+			int count = 0;
+			for (ByteBuffer buffer : outQueue) {
+				buffers[count++] = buffer;
+				if (count == buffers.length)
+					break;
+			}
+			if (count == 0)
+				break;
+			channel.write(buffers, 0, count);
+			int written = 0;
+			while (written < count && !buffers[written].hasRemaining()) {
+				bufferPool.release(outQueue.poll());
+				written++;
+			}
+			Arrays.fill(buffers, 0, count, null);
+			if (written < count)
+				return false;
+		}
+		if (webSocket.isClosed()) {
+			synchronized (webSocket) {
+				channel.close();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes queued frames of {@link #webSocket} to {@link #wrappedChannel}
+	 * one at a time, as it encrypts each buffer separately. Behaves like
+	 * {@link SocketChannelIOHelper#batch} but gives the written buffers back
+	 * to the pool.
+	 *
+	 * @return true if all frames have been written
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private boolean batch() throws IOException {
+		BlockingQueue<ByteBuffer> outQueue = webSocket.outQueue;
+		WrappedByteChannel wrapped = null;
+		if (wrappedChannel instanceof WrappedByteChannel)
+			wrapped = (WrappedByteChannel) wrappedChannel;
+		ByteBuffer buffer = outQueue.peek();
+		if (buffer == null && wrapped != null && wrapped.isNeedWrite()) {
+			wrapped.writeMore();
+			return !wrapped.isNeedWrite();
+		}
+		while (buffer != null) {
+			wrappedChannel.write(buffer);
+			if (buffer.hasRemaining())
+				return false;
+			// The channel has taken the bytes, the buffer is free again.
+			bufferPool.release(outQueue.poll());
+			buffer = outQueue.peek();
+		}
+		if (webSocket.isClosed()) {
+			synchronized (webSocket) {
+				wrappedChannel.close();
+			}
+		}
+		return wrapped == null || !wrapped.isNeedWrite();
+	}
+
+	/**
+	 * Closes the channel without notifying anyone.
+	 */
+	private void closeChannel() {
+		if (key != null)
+			key.cancel();
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Returns the port to connect to.
+	 *
+	 * @return the port
+	 */
+	private int getPort() {
+		int port = uri.getPort();
+		if (port != -1)
+			return port;
+		return "wss".equals(uri.getScheme()) ? WebSocket.DEFAULT_WSS_PORT
+				: WebSocket.DEFAULT_PORT;
+	}
+
+	@Override
+	public void onWriteDemand(WebSocket conn) {
+		if (reactor.inReactor()) {
+			if (key.isValid())
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else if (writeDemand.compareAndSet(false, true)) {
+			reactor.execute(flushTask);
+		}
+	}
+
+	@Override
+	public void onWebsocketOpen(WebSocket conn, Handshakedata handshake) {
+		IOConnection connection = this.connection;
+		if (connection != null) {
+			connection.transportConnected();
+			connection.transportConfirmed();
+		}
+	}
+
+	@Override
+	public void onWebsocketMessage(WebSocket conn, String text) {
+		IOConnection connection = this.connection;
+		if (connection != null)
+			connection.transportMessage(text);
+	}
+
+	@Override
+	public void onWebsocketClose(WebSocket conn, int code, String reason,
+			boolean remote) {
+		IOConnection connection = this.connection;
+		if (connection != null)
+			connection.transportDisconnected();
+	}
+
+	@Override
+	public void onWebsocketError(WebSocket conn, Exception ex) {
+		// onWebsocketClose() follows and triggers reconnecting.
+	}
+}
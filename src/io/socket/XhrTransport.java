@@ -8,7 +8,6 @@
  */
 package io.socket;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -16,8 +15,10 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -31,8 +32,21 @@ class XhrTransport implements IOTransport {
 	/** The String to identify this Transport. */
 	public static final String TRANSPORT_NAME = "xhr-polling";
 
-	/** The connection. */
-	private IOConnection connection;
+	/** The charset used for requests and responses. */
+	private static final String CHARSET = "UTF-8";
+
+	/** Prefix of a noop message, sent by the server when a poll times out. */
+	private static final String NOOP = IOMessage.TYPE_NOOP + ":";
+
+	/**
+	 * Time in milliseconds to wait after aborting a poll before posting. The
+	 * server has to notice the abort first, or it may write the answer to the
+	 * post into the dead poll request.
+	 */
+	private static final long ABORT_GRACE = 50;
+
+	/** The connection. Null once this transport has been invalidated. */
+	private volatile IOConnection connection;
 
 	/** The url. */
 	private URL url;
@@ -43,12 +57,27 @@ class XhrTransport implements IOTransport {
 	/** background thread for managing the server connection. */
 	PollThread pollThread = null;
 
+	/** background thread for sending messages. Only used in duplex mode. */
+	SendThread sendThread = null;
+
+	/**
+	 * true if messages are posted by {@link SendThread} while
+	 * {@link PollThread} keeps the poll request open.
+	 */
+	private final boolean duplex;
+
+	/** Paces poll requests after empty responses. */
+	private final Backoff pollBackoff;
+
 	/** Indicates whether the {@link IOConnection} wants us to be connected. */
 	private boolean connect;
 
 	/** Indicates whether {@link PollThread} is blocked. */
 	private boolean blocked;
 
+	/** true once a request has been answered by the server. */
+	private volatile boolean confirmed = false;
+
 	HttpURLConnection urlConnection;
 
 	/**
@@ -56,8 +85,6 @@ class XhrTransport implements IOTransport {
 	 */
 	private class PollThread extends Thread {
 
-		private static final String CHARSET = "UTF-8";
-
 		/**
 		 * Instantiates a new receiver thread.
 		 */
@@ -72,63 +99,234 @@ class XhrTransport implements IOTransport {
 		 */
 		@Override
 		public void run() {
-			connection.transportConnected();
+			IOConnection.markIoThread();
+			IOConnection connection = XhrTransport.this.connection;
+			if (connection != null)
+				connection.transportConnected();
+			int emptyPolls = 0;
+			long delay = 0;
 			while (isConnect()) {
+				// Forget aborts of requests which have completed anyway.
+				interrupted();
+				boolean aborted = false;
 				try {
-					String line;
-					URL url = new URL(XhrTransport.this.url.toString() + "?t="
-							+ System.currentTimeMillis());
-					urlConnection = (HttpURLConnection) url.openConnection();
-					SSLContext context = IOConnection.getSslContext();
-					if(urlConnection instanceof HttpsURLConnection && context != null) {
-						((HttpsURLConnection)urlConnection).setSSLSocketFactory(context.getSocketFactory());
-					}
-					if (!queue.isEmpty()) {
-						urlConnection.setDoOutput(true);
-						OutputStream output = urlConnection.getOutputStream();
-						if (queue.size() == 1) {
-							line = queue.poll();
-							output.write(line.getBytes(CHARSET));
-						} else {
-							Iterator<String> iter = queue.iterator();
-							while (iter.hasNext()) {
-								String junk = iter.next();
-								line = IOConnection.FRAME_DELIMITER + junk.length()
-										+ IOConnection.FRAME_DELIMITER + junk;
-								output.write(line.getBytes(CHARSET));
-								iter.remove();
-							}
-						}
-						output.close();
-						InputStream input = urlConnection.getInputStream();
-						byte[] buffer = new byte[1024];
-						while(input.read(buffer) > 0) {
-						}
-						input.close();
+					if (!duplex && !queue.isEmpty()) {
+						post(openConnection());
+						emptyPolls = 0;
+						delay = pollBackoff.getDelay(emptyPolls);
 					} else {
-						setBlocked(true);
+						HttpURLConnection poll = openConnection();
+						// Connect first, aborting cannot interrupt connecting.
+						poll.connect();
+						if (!startPoll(poll)) {
+							poll.disconnect();
+							continue;
+						}
+						String line;
+						int messages = 0;
 						InputStream plainInput = urlConnection.getInputStream();
-						BufferedReader input = new BufferedReader(
+						confirmed();
+						FrameDecoder input = new FrameDecoder(
 								new InputStreamReader(plainInput, CHARSET));
-						while ((line = input.readLine()) != null) {
+						while ((line = input.next()) != null) {
+							if (!line.startsWith(NOOP))
+								messages++;
+							connection = XhrTransport.this.connection;
 							if (connection != null)
-								connection.transportData(line);
+								connection.transportMessage(line);
 						}
+						plainInput.close();
 						setBlocked(false);
+						emptyPolls = messages == 0 ? emptyPolls + 1 : 0;
+						delay = pollBackoff.getDelay(emptyPolls);
 					}
 
 				} catch (IOException e) {
-					if (connection != null && interrupted() == false) {
-						connection.transportError(e);
+					aborted = interrupted();
+					if (aborted == false && isConnect()) {
+						failed(e);
+						return;
+					}
+				} catch (RuntimeException e) {
+					// HttpURLConnection may fail this way if it is aborted
+					// while reading.
+					aborted = interrupted();
+					if (aborted == false && isConnect()) {
+						failed(e);
 						return;
 					}
 				}
+				if (aborted) {
+					try {
+						sleep(ABORT_GRACE);
+					} catch (InterruptedException e) {
+					}
+				} else if (delay > 0) {
+					try {
+						synchronized (queue) {
+							// Messages to post end the pause early.
+							if (duplex || queue.isEmpty())
+								queue.wait(delay);
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+			connection = XhrTransport.this.connection;
+			if (connection != null)
+				connection.transportDisconnected();
+		}
+	}
+
+	/**
+	 * The Class SendThread. Posts queued messages on its own connection, so
+	 * sending never aborts the pending poll request. Only used in duplex mode.
+	 */
+	private class SendThread extends Thread {
+
+		/**
+		 * Instantiates a new sender thread.
+		 */
+		public SendThread() {
+			super(TRANSPORT_NAME + "-send");
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Thread#run()
+		 */
+		@Override
+		public void run() {
+			IOConnection.markIoThread();
+			while (isConnect()) {
 				try {
-					sleep(100);
+					synchronized (queue) {
+						while (queue.isEmpty() && isConnect())
+							queue.wait();
+					}
 				} catch (InterruptedException e) {
+					continue;
+				}
+				try {
+					if (!queue.isEmpty())
+						post(openConnection());
+				} catch (IOException e) {
+					if (isConnect()) {
+						failed(e);
+						return;
+					}
 				}
 			}
-			connection.transportDisconnected();
+		}
+	}
+
+	/**
+	 * Opens a new request to the server.
+	 * 
+	 * @return the connection
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private HttpURLConnection openConnection() throws IOException {
+		URL url = new URL(this.url.toString() + "?t="
+				+ System.currentTimeMillis());
+		HttpURLConnection urlConnection = (HttpURLConnection) url
+				.openConnection();
+		SSLContext context = IOConnection.getSslContext();
+		if (urlConnection instanceof HttpsURLConnection && context != null) {
+			((HttpsURLConnection) urlConnection).setSSLSocketFactory(context
+					.getSocketFactory());
+		}
+		return urlConnection;
+	}
+
+	/**
+	 * Posts all queued messages. They are encoded into a pooled buffer which
+	 * is written whenever it is full, and the length of the body is computed
+	 * beforehand, so neither the payload nor the request body is held as a
+	 * whole. Frame lengths count UTF-16 chars like JavaScript does. The
+	 * response is read completely, so the underlying connection can be kept
+	 * alive for the next request.
+	 * 
+	 * @param urlConnection
+	 *            the connection to post to
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void post(HttpURLConnection urlConnection) throws IOException {
+		List<String> messages = new ArrayList<String>(queue.size());
+		String message;
+		while ((message = queue.poll()) != null)
+			messages.add(message);
+		boolean framed = messages.size() > 1;
+		int delimiter = BufferPool.utf8Length(IOConnection.FRAME_DELIMITER);
+		int length = 0;
+		for (String text : messages) {
+			if (framed)
+				length += 2 * delimiter
+						+ String.valueOf(text.length()).length();
+			length += BufferPool.utf8Length(text);
+		}
+		urlConnection.setDoOutput(true);
+		urlConnection.setFixedLengthStreamingMode(length);
+		OutputStream output = urlConnection.getOutputStream();
+		ByteBuffer body = BufferPool.HEAP.acquire(BufferPool.BUFFER_SIZE);
+		try {
+			for (String text : messages) {
+				if (framed) {
+					write(IOConnection.FRAME_DELIMITER, body, output);
+					write(String.valueOf(text.length()), body, output);
+					write(IOConnection.FRAME_DELIMITER, body, output);
+				}
+				write(text, body, output);
+			}
+			output.write(body.array(), body.arrayOffset(), body.position());
+		} finally {
+			BufferPool.HEAP.release(body);
+		}
+		output.close();
+		InputStream input = urlConnection.getInputStream();
+		byte[] buffer = new byte[1024];
+		while (input.read(buffer) > 0) {
+		}
+		input.close();
+		confirmed();
+	}
+
+	/**
+	 * Tells the {@link IOConnection} about the first request the server has
+	 * answered, which makes the connection attempt successful.
+	 */
+	private void confirmed() {
+		if (confirmed)
+			return;
+		confirmed = true;
+		IOConnection connection = this.connection;
+		if (connection != null)
+			connection.transportConfirmed();
+	}
+
+	/**
+	 * Encodes a String into a buffer, writing the buffer out whenever it is
+	 * full.
+	 * 
+	 * @param text
+	 *            the text
+	 * @param buffer
+	 *            the buffer, a heap buffer
+	 * @param output
+	 *            receives the full buffer
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static void write(String text, ByteBuffer buffer,
+			OutputStream output) throws IOException {
+		int i = 0;
+		while ((i = BufferPool.encode(text, i, buffer)) < text.length()) {
+			output.write(buffer.array(), buffer.arrayOffset(),
+					buffer.position());
+			buffer.clear();
 		}
 	}
 
@@ -165,6 +363,8 @@ class XhrTransport implements IOTransport {
 	public XhrTransport(URL url, IOConnection connection) {
 		this.connection = connection;
 		this.url = url;
+		this.duplex = connection.isXhrDuplex();
+		this.pollBackoff = connection.getXhrPollBackoff();
 	}
 
 	/*
@@ -177,6 +377,10 @@ class XhrTransport implements IOTransport {
 		this.setConnect(true);
 		pollThread = new PollThread();
 		pollThread.start();
+		if (duplex) {
+			sendThread = new SendThread();
+			sendThread.start();
+		}
 	}
 
 	/*
@@ -186,8 +390,42 @@ class XhrTransport implements IOTransport {
 	 */
 	@Override
 	public void disconnect() {
-		this.setConnect(false);
-		pollThread.interrupt();
+		stop();
+	}
+
+	/**
+	 * Stops {@link PollThread} and {@link SendThread}, waking them up
+	 * wherever they wait.
+	 */
+	private void stop() {
+		setConnect(false);
+		synchronized (queue) {
+			queue.notifyAll();
+		}
+		if (sendThread != null)
+			sendThread.interrupt();
+		if (pollThread != null) {
+			pollThread.interrupt();
+			abortPoll();
+		}
+	}
+
+	/**
+	 * Stops this transport after an error of one of its threads and reports
+	 * the error, unless the transport has been invalidated already.
+	 * 
+	 * @param e
+	 *            the error
+	 */
+	private void failed(Exception e) {
+		IOConnection connection;
+		synchronized (this) {
+			connection = this.connection;
+			this.connection = null;
+		}
+		stop();
+		if (connection != null)
+			connection.transportError(e);
 	}
 
 	/*
@@ -218,7 +456,34 @@ class XhrTransport implements IOTransport {
 	@Override
 	public void sendBulk(String[] texts) throws IOException {
 		queue.addAll(Arrays.asList(texts));
-		if (isBlocked()) {
+		synchronized (queue) {
+			queue.notifyAll();
+		}
+		if (!duplex)
+			abortPoll();
+	}
+
+	/**
+	 * Marks the given request as the pending poll, unless there are messages
+	 * to post.
+	 * 
+	 * @param poll
+	 *            the connected poll request
+	 * @return true, if the poll may be issued
+	 */
+	private synchronized boolean startPoll(HttpURLConnection poll) {
+		if (!duplex && !queue.isEmpty())
+			return false;
+		urlConnection = poll;
+		blocked = true;
+		return true;
+	}
+
+	/**
+	 * Aborts the pending poll, so {@link PollThread} can post queued messages.
+	 */
+	private synchronized void abortPoll() {
+		if (blocked) {
 			pollThread.interrupt();
 			urlConnection.disconnect();
 		}
@@ -231,7 +496,10 @@ class XhrTransport implements IOTransport {
 	 */
 	@Override
 	public void invalidate() {
-		this.connection = null;
+		synchronized (this) {
+			this.connection = null;
+		}
+		stop();
 	}
 
 	/**
@@ -253,15 +521,6 @@ class XhrTransport implements IOTransport {
 		this.connect = connect;
 	}
 
-	/**
-	 * Checks if is blocked.
-	 * 
-	 * @return true, if is blocked
-	 */
-	private synchronized boolean isBlocked() {
-		return blocked;
-	}
-
 	/**
 	 * Sets the blocked.
 	 * 
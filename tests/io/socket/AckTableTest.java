@@ -0,0 +1,126 @@
+/*
+ * socket.io-java-client AckTableTest.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The Class AckTableTest.
+ */
+public class AckTableTest {
+
+	/**
+	 * Adds an entry with a fresh id.
+	 *
+	 * @param table
+	 *            the table
+	 * @param deadline
+	 *            the deadline of the entry
+	 * @return the entry
+	 */
+	private static AckTable.Entry put(AckTable table, long deadline) {
+		AckTable.Entry entry = new AckTable.Entry(table.nextId(), null, null,
+				deadline);
+		assertNull(table.put(entry));
+		return entry;
+	}
+
+	/**
+	 * A slow acknowledge survives any number of faster ones as long as fewer
+	 * than the maximum are pending at once.
+	 */
+	@Test
+	public void slowAckIsKept() {
+		AckTable table = new AckTable(4);
+		AckTable.Entry slow = put(table, 0);
+		for (int i = 0; i < 10000; i++) {
+			AckTable.Entry fast = put(table, 0);
+			assertSame(fast, table.remove(fast.id));
+		}
+		assertEquals(1, table.size());
+		assertSame(slow, table.remove(slow.id));
+		assertEquals(0, table.size());
+	}
+
+	/**
+	 * The oldest acknowledge is dropped only once the maximum is pending.
+	 */
+	@Test
+	public void oldestDroppedAtMaximum() {
+		AckTable table = new AckTable(3);
+		AckTable.Entry first = put(table, 0);
+		AckTable.Entry second = put(table, 0);
+		put(table, 0);
+		assertSame(first, table.remove(first.id));
+		put(table, 0);
+		AckTable.Entry next = new AckTable.Entry(table.nextId(), null, null, 0);
+		assertSame(second, table.put(next));
+		assertEquals(3, table.size());
+		assertNull(table.remove(second.id));
+		assertSame(next, table.remove(next.id));
+	}
+
+	/**
+	 * Many pending entries can be found again after the table has grown and
+	 * shrunk.
+	 */
+	@Test
+	public void growAndShrink() {
+		AckTable table = new AckTable(100000);
+		List<AckTable.Entry> entries = new ArrayList<AckTable.Entry>();
+		for (int i = 0; i < 5000; i++)
+			entries.add(put(table, 0));
+		for (int i = 0; i < entries.size(); i += 2)
+			assertSame(entries.get(i), table.remove(entries.get(i).id));
+		for (int i = 1; i < entries.size(); i += 2)
+			assertSame(entries.get(i), table.remove(entries.get(i).id));
+		assertEquals(0, table.size());
+		assertNull(table.remove(entries.get(0).id));
+	}
+
+	/**
+	 * Only due entries expire, entries without a deadline stay.
+	 */
+	@Test
+	public void removeExpired() {
+		AckTable table = new AckTable(10);
+		AckTable.Entry forever = put(table, 0);
+		AckTable.Entry early = put(table, 100);
+		AckTable.Entry late = put(table, 300);
+		List<AckTable.Entry> expired = new ArrayList<AckTable.Entry>();
+		table.removeExpired(200, expired);
+		assertEquals(1, expired.size());
+		assertSame(early, expired.get(0));
+		assertEquals(2, table.size());
+		assertSame(late, table.remove(late.id));
+		assertSame(forever, table.remove(forever.id));
+	}
+
+	/**
+	 * Clearing hands out the entries oldest first and empties the table.
+	 */
+	@Test
+	public void clear() {
+		AckTable table = new AckTable(10);
+		AckTable.Entry first = put(table, 0);
+		AckTable.Entry second = put(table, 0);
+		List<AckTable.Entry> removed = new ArrayList<AckTable.Entry>();
+		table.clear(removed);
+		assertEquals(2, removed.size());
+		assertSame(first, removed.get(0));
+		assertSame(second, removed.get(1));
+		assertEquals(0, table.size());
+		assertNull(table.remove(first.id));
+	}
+}
@@ -5,6 +5,10 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({ WebsocketTestSocketIO.class, XHRTestSocketIO.class })
+@SuiteClasses({ WebsocketTestSocketIO.class, XHRTestSocketIO.class,
+		FrameDecoderTest.class, OutputBufferTest.class,
+		MessageJournalTest.class, FrameEncodingTest.class,
+		AckTableTest.class, JsonCodecTest.class, EventArgumentsTest.class,
+		BackoffTest.class, AttemptLimitTest.class })
 public class AllTests {
 }
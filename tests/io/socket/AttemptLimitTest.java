@@ -0,0 +1,267 @@
+/*
+ * socket.io-java-client AttemptLimitTest.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The Class AttemptLimitTest. Checks
+ * {@link SocketIO#setMaxConcurrentReconnects(int)} against servers which
+ * take handshakes but leave them unanswered until told otherwise.
+ */
+public class AttemptLimitTest {
+
+	/** Milliseconds to wait for a handshake which is expected. */
+	private static final long TIMEOUT = 5000;
+
+	/** Milliseconds to wait for a handshake which must not come. */
+	private static final long QUIET = 1000;
+
+	/**
+	 * The Class Server. Accepts handshakes and holds them.
+	 */
+	private static class Server extends Thread {
+
+		/** The server socket. */
+		private final ServerSocket serverSocket;
+
+		/** The handshakes accepted and not answered yet. */
+		private final LinkedBlockingQueue<Socket> handshakes = new LinkedBlockingQueue<Socket>();
+
+		/**
+		 * Instantiates a new server listening on a free local port.
+		 *
+		 * @throws IOException
+		 *             if the port cannot be opened
+		 */
+		Server() throws IOException {
+			super("AttemptLimitTest.Server");
+			serverSocket = new ServerSocket(0, 50,
+					InetAddress.getByName("127.0.0.1"));
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true)
+					handshakes.add(serverSocket.accept());
+			} catch (IOException e) {
+			}
+		}
+
+		/**
+		 * Returns the URL of the server.
+		 *
+		 * @return the URL
+		 */
+		String getUrl() {
+			return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+		}
+
+		/**
+		 * Waits for a handshake.
+		 *
+		 * @param timeout
+		 *            milliseconds to wait
+		 * @return the connection of the handshake, null if none came
+		 * @throws InterruptedException
+		 *             if interrupted while waiting
+		 */
+		Socket await(long timeout) throws InterruptedException {
+			return handshakes.poll(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Fails a handshake once its request has been read.
+		 *
+		 * @param handshake
+		 *            the connection of the handshake
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		static void fail(Socket handshake) throws IOException {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					handshake.getInputStream(), "US-ASCII"));
+			String line;
+			while ((line = in.readLine()) != null && line.length() != 0)
+				;
+			OutputStream out = handshake.getOutputStream();
+			out.write(("HTTP/1.1 500 Internal Server Error\r\n"
+					+ "Content-Length: 0\r\nConnection: close\r\n\r\n")
+					.getBytes("US-ASCII"));
+			out.flush();
+			handshake.close();
+		}
+
+		/**
+		 * Stops accepting and drops all held handshakes.
+		 */
+		void close() {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+			}
+			for (Socket handshake : handshakes) {
+				try {
+					handshake.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * The Class Callback. Counts the errors of a socket.
+	 */
+	private static class Callback implements IOCallback {
+
+		/** The errors. */
+		final LinkedBlockingQueue<SocketIOException> errors = new LinkedBlockingQueue<SocketIOException>();
+
+		@Override
+		public void onDisconnect() {
+		}
+
+		@Override
+		public void onConnect() {
+		}
+
+		@Override
+		public void onMessage(String data, IOAcknowledge ack) {
+		}
+
+		@Override
+		public void onMessage(JSONObject json, IOAcknowledge ack) {
+		}
+
+		@Override
+		public void on(String event, IOAcknowledge ack, Object... args) {
+		}
+
+		@Override
+		public void onError(SocketIOException socketIOException) {
+			errors.add(socketIOException);
+		}
+	}
+
+	/** The servers started by the test. */
+	private final List<Server> servers = new ArrayList<Server>();
+
+	/** The sockets connected by the test. */
+	private final List<SocketIO> sockets = new ArrayList<SocketIO>();
+
+	/**
+	 * Starts a server.
+	 *
+	 * @return the server
+	 * @throws IOException
+	 *             if the server cannot be started
+	 */
+	private Server startServer() throws IOException {
+		Server server = new Server();
+		servers.add(server);
+		return server;
+	}
+
+	/**
+	 * Connects a socket to a server.
+	 *
+	 * @param server
+	 *            the server
+	 * @param callback
+	 *            the callback
+	 * @throws Exception
+	 *             if the URL is malformed
+	 */
+	private void connect(Server server, Callback callback) throws Exception {
+		sockets.add(new SocketIO(server.getUrl(), callback));
+	}
+
+	/**
+	 * Removes the limit and stops all sockets and servers.
+	 */
+	@After
+	public void tearDown() {
+		SocketIO.setMaxConcurrentReconnects(0);
+		for (SocketIO socket : sockets)
+			socket.disconnect();
+		for (Server server : servers)
+			server.close();
+	}
+
+	/**
+	 * Without a limit, all connections handshake at once.
+	 */
+	@Test
+	public void unlimited() throws Exception {
+		Server first = startServer();
+		Server second = startServer();
+		connect(first, new Callback());
+		connect(second, new Callback());
+		assertNotNull(first.await(TIMEOUT));
+		assertNotNull(second.await(TIMEOUT));
+	}
+
+	/**
+	 * A connection over the limit waits while another one is handshaking and
+	 * starts once that attempt has failed.
+	 */
+	@Test
+	public void waitsForPermit() throws Exception {
+		SocketIO.setMaxConcurrentReconnects(1);
+		Server first = startServer();
+		Server second = startServer();
+		Callback firstCallback = new Callback();
+		connect(first, firstCallback);
+		Socket handshake = first.await(TIMEOUT);
+		assertNotNull(handshake);
+		connect(second, new Callback());
+		assertNull(second.await(QUIET));
+
+		Server.fail(handshake);
+		assertNotNull(firstCallback.errors.poll(TIMEOUT,
+				TimeUnit.MILLISECONDS));
+		assertNotNull(second.await(TIMEOUT));
+	}
+
+	/**
+	 * Disconnecting while handshaking gives the permit back as well.
+	 */
+	@Test
+	public void disconnectReleasesPermit() throws Exception {
+		SocketIO.setMaxConcurrentReconnects(1);
+		Server first = startServer();
+		Server second = startServer();
+		connect(first, new Callback());
+		assertNotNull(first.await(TIMEOUT));
+		connect(second, new Callback());
+		assertNull(second.await(QUIET));
+
+		sockets.get(0).disconnect();
+		assertNotNull(second.await(TIMEOUT));
+	}
+}
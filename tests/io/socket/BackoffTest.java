@@ -0,0 +1,106 @@
+/*
+ * socket.io-java-client BackoffTest.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * The Class BackoffTest.
+ */
+public class BackoffTest {
+
+	/**
+	 * Checks that invalid parameters are rejected.
+	 *
+	 * @param initialDelay
+	 *            delay before the first retry in milliseconds
+	 * @param maxDelay
+	 *            upper bound of the delay in milliseconds
+	 * @param multiplier
+	 *            factor the delay grows with each attempt
+	 */
+	private static void assertInvalid(long initialDelay, long maxDelay,
+			double multiplier) {
+		try {
+			new Backoff(initialDelay, maxDelay, multiplier, false);
+			fail("Accepted " + initialDelay + ", " + maxDelay + ", "
+					+ multiplier);
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * No delay after a successful attempt, then the delay doubles with each
+	 * unsuccessful one up to the maximum.
+	 */
+	@Test
+	public void doubles() {
+		Backoff backoff = new Backoff(100, 1000);
+		assertEquals(0, backoff.getDelay(-1));
+		assertEquals(0, backoff.getDelay(0));
+		assertEquals(100, backoff.getDelay(1));
+		assertEquals(200, backoff.getDelay(2));
+		assertEquals(400, backoff.getDelay(3));
+		assertEquals(800, backoff.getDelay(4));
+		assertEquals(1000, backoff.getDelay(5));
+		assertEquals(1000, backoff.getDelay(100));
+		assertEquals(1000, backoff.getDelay(Integer.MAX_VALUE));
+	}
+
+	/**
+	 * The delay grows with any multiplier, 1 keeps it constant.
+	 */
+	@Test
+	public void multiplier() {
+		Backoff backoff = new Backoff(10, 100000, 3, false);
+		assertEquals(10, backoff.getDelay(1));
+		assertEquals(30, backoff.getDelay(2));
+		assertEquals(90, backoff.getDelay(3));
+		Backoff constant = new Backoff(250, 250, 1, false);
+		for (int attempt = 1; attempt < 50; attempt++)
+			assertEquals(250, constant.getDelay(attempt));
+	}
+
+	/**
+	 * Jittered delays lie between 0 and the computed delay and are spread
+	 * across that range.
+	 */
+	@Test
+	public void jitter() {
+		Backoff backoff = new Backoff(1000, 30000, 2, true);
+		assertEquals(0, backoff.getDelay(0));
+		for (int attempt = 1; attempt <= 10; attempt++) {
+			long max = Math.min(1000L << (attempt - 1), 30000);
+			long min = max;
+			long sum = 0;
+			for (int i = 0; i < 1000; i++) {
+				long delay = backoff.getDelay(attempt);
+				assertTrue(delay >= 0 && delay <= max);
+				min = Math.min(min, delay);
+				sum += delay;
+			}
+			assertTrue(min < max / 4);
+			assertTrue(sum / 1000 > max / 4 && sum / 1000 < 3 * max / 4);
+		}
+	}
+
+	/**
+	 * Negative delays, a maximum below the initial delay and multipliers
+	 * below 1 are rejected.
+	 */
+	@Test
+	public void invalidParameters() {
+		assertInvalid(-1, 1000, 2);
+		assertInvalid(1000, 999, 2);
+		assertInvalid(100, 1000, 0.5);
+		new Backoff(0, 0, 1, true);
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * socket.io-java-client EventArgumentsTest.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * The Class EventArgumentsTest.
+ */
+public class EventArgumentsTest {
+
+	/** The default codec. */
+	private final JsonCodec codec = new StreamingJsonCodec();
+
+	/** Arguments which are valid JSON. */
+	private static final String[] VALID = { "0", "-0", "12", "-1.5e3",
+			"1E+2", "2.5e-1", "01", "1.", "9223372036854775808", "\"\"",
+			"\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\\u00e9\\uD800\"", "true",
+			"false", "null", "[]", "{}", "[1,[2,[3]],{\"a\":{\"b\":[]}}]",
+			"{\"\\u0041\\n\":\"x\"}" };
+
+	/** Arguments with malformed numbers or strings. */
+	private static final String[] MALFORMED = { "1-2-3", "1.2.3", "1e",
+			"1e+", "-", "--1", "+1", ".5", "1e2e3", "0x10", "\"\\q\"",
+			"\"\\u12\"", "\"\\uZZZZ\"", "\"a\u0001\"", "\"a\nb\"",
+			"\"\\", "\"abc", "[1,]", "{\"a\":1,}", "{\"a\"}", "{a:1}", "'a'",
+			"nul", "[1 2]", "{\"k\":\"\\x\"}" };
+
+	/**
+	 * Wraps an argument into an event.
+	 *
+	 * @param argument
+	 *            the JSON text of the argument
+	 * @return the data of the event
+	 */
+	private static String event(String argument) {
+		return "{\"name\":\"x\",\"args\":[" + argument + "]}";
+	}
+
+	/**
+	 * The example from the review is rejected before anything is delivered.
+	 */
+	@Test(expected = JSONException.class)
+	public void rejectMalformedEvent() throws JSONException {
+		new EventArguments(
+				"{\"name\":\"x\",\"args\":[1-2-3,\"\\q\\u0001\"]}", codec);
+	}
+
+	/**
+	 * Malformed arguments are rejected when the event is read, not only when
+	 * they are decoded, also if they are not arguments but other fields.
+	 */
+	@Test
+	public void rejectMalformedArguments() {
+		for (String argument : MALFORMED) {
+			String[] events = { event(argument),
+					event("1," + argument + ",2"),
+					"{\"other\":" + argument + ",\"name\":\"x\"}" };
+			for (String data : events) {
+				try {
+					new EventArguments(data, codec);
+					fail("Accepted " + data);
+				} catch (JSONException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Everything accepted when the event is read can be decoded, and gives
+	 * the same as decoding the argument on its own.
+	 */
+	@Test
+	public void decodeAcceptedArguments() throws JSONException {
+		for (String argument : VALID) {
+			EventArguments args = new EventArguments(event(" " + argument
+					+ " ,\n" + argument), codec);
+			assertEquals("x", args.getEvent());
+			assertEquals(2, args.length());
+			assertEquals(argument, args.getRaw(0));
+			assertEquals(argument, args.getRaw(1));
+			Object expected = codec.decode(argument);
+			if (JSONObject.NULL.equals(expected))
+				expected = null;
+			Object[] array = args.toArray();
+			for (Object value : array) {
+				if (value instanceof JSONObject || value instanceof JSONArray) {
+					assertEquals(expected.toString(), value.toString());
+				} else
+					assertEquals(expected, value);
+			}
+		}
+	}
+
+	/**
+	 * Arguments are decoded once, when first asked for.
+	 */
+	@Test
+	public void decodeLazily() throws JSONException {
+		final List<String> decoded = new ArrayList<String>();
+		JsonCodec counting = new StreamingJsonCodec() {
+			@Override
+			public Object decode(String text) throws JSONException {
+				decoded.add(text);
+				return super.decode(text);
+			}
+		};
+		EventArguments args = new EventArguments(
+				"{\"args\":[{\"a\":1},\"b\"],\"name\":\"x\",\"other\":[1]}",
+				counting);
+		assertEquals(0, decoded.size());
+		assertEquals("b", args.get(1));
+		assertEquals("b", args.get(1));
+		assertEquals(1, decoded.size());
+		assertEquals("{\"a\":1}", args.getRaw(0));
+		assertEquals(1, decoded.size());
+	}
+
+	/**
+	 * An event without a name or with a wrong one is rejected.
+	 */
+	@Test
+	public void rejectMissingName() {
+		String[] events = { "{}", "{\"args\":[]}", "{\"name\":1}",
+				"{\"name\":\"x\"} x", "[]" };
+		for (String data : events) {
+			try {
+				new EventArguments(data, codec);
+				fail("Accepted " + data);
+			} catch (JSONException e) {
+			}
+		}
+	}
+
+	/**
+	 * A callback gets an error instead of the event if an argument cannot be
+	 * decoded.
+	 */
+	@Test
+	public void reportDecodeFailures() throws JSONException {
+		JsonCodec failing = new StreamingJsonCodec() {
+			@Override
+			public Object decode(String text) throws JSONException {
+				throw new JSONException("Cannot decode " + text);
+			}
+		};
+		final List<Object> received = new ArrayList<Object>();
+		IOCallback callback = new IOCallback() {
+			@Override
+			public void onDisconnect() {
+			}
+
+			@Override
+			public void onConnect() {
+			}
+
+			@Override
+			public void onMessage(String data, IOAcknowledge ack) {
+			}
+
+			@Override
+			public void onMessage(JSONObject json, IOAcknowledge ack) {
+			}
+
+			@Override
+			public void on(String event, IOAcknowledge ack, Object... args) {
+				received.add(event);
+			}
+
+			@Override
+			public void onError(SocketIOException socketIOException) {
+				received.add(socketIOException);
+			}
+		};
+		IOConnection.deliver(callback, "x", null, new EventArguments(
+				event("1"), failing));
+		assertEquals(1, received.size());
+		assertTrue(received.get(0) instanceof SocketIOException);
+		IOConnection.deliver(callback, "x", null, new EventArguments(
+				event("1"), codec));
+		assertEquals(2, received.size());
+		assertEquals("x", received.get(1));
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * socket.io-java-client FrameDecoderTest.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The Class FrameDecoderTest.
+ */
+public class FrameDecoderTest {
+
+	/** The frame delimiter. */
+	private static final String D = IOConnection.FRAME_DELIMITER;
+
+	/**
+	 * A reader handing out at most a few chars per read, like a slow
+	 * connection does.
+	 */
+	private static class ChoppyReader extends Reader {
+
+		/** The text. */
+		private final String text;
+
+		/** Maximum number of chars per read. */
+		private final int chunk;
+
+		/** Position of the next char. */
+		private int position = 0;
+
+		/**
+		 * Instantiates a new choppy reader.
+		 *
+		 * @param text
+		 *            the text
+		 * @param chunk
+		 *            maximum number of chars per read
+		 */
+		ChoppyReader(String text, int chunk) {
+			this.text = text;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read(char[] buffer, int offset, int length) {
+			if (position == text.length())
+				return -1;
+			int n = Math.min(Math.min(length, chunk), text.length() - position);
+			text.getChars(position, position + n, buffer, offset);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Frames a message.
+	 *
+	 * @param message
+	 *            the message
+	 * @return the frame
+	 */
+	private static String frame(String message) {
+		return D + message.length() + D + message;
+	}
+
+	/**
+	 * Decodes a payload completely.
+	 *
+	 * @param reader
+	 *            the payload
+	 * @return the messages
+	 * @throws IOException
+	 *             if the payload is malformed
+	 */
+	private static List<String> decode(Reader reader) throws IOException {
+		FrameDecoder decoder = new FrameDecoder(reader);
+		List<String> messages = new ArrayList<String>();
+		String message;
+		while ((message = decoder.next()) != null)
+			messages.add(message);
+		return messages;
+	}
+
+	/**
+	 * Checks that a malformed payload is rejected.
+	 *
+	 * @param payload
+	 *            the payload
+	 */
+	private static void assertGarbage(String payload) {
+		try {
+			decode(new StringReader(payload));
+			fail("Accepted " + payload);
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Garbage from server"));
+		}
+	}
+
+	/**
+	 * Returns a message of a given length.
+	 *
+	 * @param length
+	 *            the length
+	 * @return the message
+	 */
+	private static String message(int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			builder.append((char) ('a' + i % 26));
+		return builder.toString();
+	}
+
+	/**
+	 * A payload without frames is a single message, an empty one none.
+	 */
+	@Test
+	public void unframed() throws IOException {
+		List<String> messages = decode(new StringReader("5:::{\"a\":1}"));
+		assertEquals(1, messages.size());
+		assertEquals("5:::{\"a\":1}", messages.get(0));
+		assertEquals(0, decode(new StringReader("")).size());
+		String large = message(20000);
+		messages = decode(new ChoppyReader(large, 3));
+		assertEquals(1, messages.size());
+		assertEquals(large, messages.get(0));
+	}
+
+	/**
+	 * Frames come out the same however the payload is split into reads,
+	 * frames longer than the read buffer and empty ones included.
+	 */
+	@Test
+	public void splitReads() throws IOException {
+		String[] expected = { "1::", "", "3:::x", message(8191),
+				message(8192), message(8193), message(30000), "é😀\ud800",
+				"2::" };
+		StringBuilder payload = new StringBuilder();
+		for (String message : expected)
+			payload.append(frame(message));
+		int[] chunks = { 1, 2, 3, 7, 4096, 8191, 8192, 8193, 100000 };
+		for (int chunk : chunks) {
+			List<String> messages = decode(new ChoppyReader(
+					payload.toString(), chunk));
+			assertEquals(expected.length, messages.size());
+			for (int i = 0; i < expected.length; i++)
+				assertEquals(expected[i], messages.get(i));
+		}
+	}
+
+	/**
+	 * Lengths count UTF-16 chars, so surrogate pairs count twice.
+	 */
+	@Test
+	public void lengthInChars() throws IOException {
+		List<String> messages = decode(new StringReader(D + "2" + D + "😀"
+				+ D + "1" + D + "x"));
+		assertEquals(2, messages.size());
+		assertEquals("😀", messages.get(0));
+		assertEquals("x", messages.get(1));
+	}
+
+	/**
+	 * Lengths which are not numbers, overflow or point beyond the payload
+	 * are rejected, the latter without allocating the length.
+	 */
+	@Test
+	public void badLengths() {
+		assertGarbage(D + "x" + D + "a");
+		assertGarbage(D + "-1" + D + "a");
+		assertGarbage(D + D + "a");
+		assertGarbage(D + "99999999999" + D + "a");
+		assertGarbage(D + "2147483647" + D + "a");
+		assertGarbage(D + "2000000000" + D + message(20000));
+		assertGarbage(D + "3" + D + "ab");
+		assertGarbage(D + "12");
+	}
+
+	/**
+	 * Anything but a delimiter after a frame is rejected.
+	 */
+	@Test
+	public void missingDelimiter() throws IOException {
+		assertGarbage(frame("ab") + "x" + frame("c"));
+		FrameDecoder decoder = new FrameDecoder(new StringReader(frame("ab")
+				+ "3" + D + "abc"));
+		assertEquals("ab", decoder.next());
+		try {
+			decoder.next();
+			fail("Accepted a frame without delimiter");
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * socket.io-java-client FrameEncodingBenchmark.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import io.socket.testutils.Benchmark;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.java_websocket.WebSocket.Role;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_10;
+import org.java_websocket.framing.Framedata;
+
+/**
+ * The Class FrameEncodingBenchmark. Compares encoding a bulk of messages for
+ * sending the way the transports did before, through a String and a byte
+ * array per message, with encoding them straight into pooled buffers: once
+ * as the body of an xhr-polling post and once as websocket frames.
+ */
+public class FrameEncodingBenchmark {
+
+	/** Messages per bulk. */
+	private static final int BULK = 64;
+
+	/** Bulks encoded per round. */
+	private static final int BULKS = 1 << 14;
+
+	/** The message sent. */
+	private static final String TEXT = "5:::{\"name\":\"update\",\"args\":[{\"id\":4711,\"text\":\"Grüße, \\\"world\\\"\",\"x\":10.5}]}";
+
+	/** The bulk sent. */
+	private static final String[] TEXTS = new String[BULK];
+
+	/** Stands in for the request body, counts the bytes written. */
+	private static class CountingOutputStream extends OutputStream {
+
+		/** Bytes written. */
+		long written;
+
+		@Override
+		public void write(int b) {
+			written++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			written += len;
+		}
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            unused
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		for (int i = 0; i < BULK; i++)
+			TEXTS[i] = TEXT + i;
+		final CountingOutputStream output = new CountingOutputStream();
+		double before = new Benchmark("xhr body, String per message") {
+			@Override
+			protected void run(int iterations) throws Exception {
+				for (int i = 0; i < iterations; i++) {
+					for (String text : TEXTS) {
+						String line = IOConnection.FRAME_DELIMITER
+								+ text.length() + IOConnection.FRAME_DELIMITER
+								+ text;
+						output.write(line.getBytes("UTF-8"));
+					}
+				}
+			}
+		}.measure(BULKS);
+		double after = new Benchmark("xhr body, pooled buffer") {
+			@Override
+			protected void run(int iterations) throws Exception {
+				for (int i = 0; i < iterations; i++) {
+					ByteBuffer body = BufferPool.HEAP
+							.acquire(BufferPool.BUFFER_SIZE);
+					for (String text : TEXTS) {
+						XhrTransport.write(IOConnection.FRAME_DELIMITER, body,
+								output);
+						XhrTransport.write(String.valueOf(text.length()),
+								body, output);
+						XhrTransport.write(IOConnection.FRAME_DELIMITER, body,
+								output);
+						XhrTransport.write(text, body, output);
+					}
+					output.write(body.array(), body.arrayOffset(),
+							body.position());
+					BufferPool.HEAP.release(body);
+				}
+			}
+		}.measure(BULKS);
+		System.out.println(String.format("speedup: %.1fx", before / after));
+
+		final Draft draft = new Draft_10();
+		// Clients mask their frames.
+		draft.setParseMode(Role.CLIENT);
+		before = new Benchmark("websocket, Draft_10 frames") {
+			@Override
+			protected void run(int iterations) throws Exception {
+				for (int i = 0; i < iterations; i++) {
+					for (String text : TEXTS) {
+						for (Framedata frame : draft.createFrames(text, true))
+							output.written += draft.createBinaryFrame(frame)
+									.remaining();
+					}
+				}
+			}
+		}.measure(BULKS);
+		for (boolean direct : new boolean[] { false, true }) {
+			final BufferPool pool = new BufferPool(direct);
+			after = new Benchmark("websocket, pooled "
+					+ (direct ? "direct" : "heap") + " buffers") {
+				@Override
+				protected void run(int iterations) throws Exception {
+					for (int i = 0; i < iterations; i++) {
+						ByteBuffer buffer = pool.acquire(BufferPool.BUFFER_SIZE);
+						for (String text : TEXTS)
+							WebsocketTransport.encodeFrame(text,
+									BufferPool.utf8Length(text), i, buffer);
+						output.written += buffer.position();
+						pool.release(buffer);
+					}
+				}
+			}.measure(BULKS);
+			System.out.println(String.format("speedup: %.1fx", before / after));
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * socket.io-java-client FrameEncodingTest.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.java_websocket.WebSocket.Role;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_10;
+import org.java_websocket.framing.Framedata;
+import org.junit.Test;
+
+/**
+ * The Class FrameEncodingTest. Checks the UTF-8 encoding of
+ * {@link BufferPool} against {@link String#getBytes(String)} and the frames
+ * of {@link WebsocketTransport#encodeFrame(String, int, int, ByteBuffer)}
+ * against the ones Draft_10 builds as a client.
+ */
+public class FrameEncodingTest {
+
+	/** Longest text tested, beyond the 16 bit length of frames. */
+	private static final int MAX_LENGTH = 70000;
+
+	/** Text of one byte chars only, so chars and bytes are the same. */
+	private static final String ASCII;
+
+	/** Text of one to four byte chars, lone surrogates included. */
+	private static final String MIXED;
+
+	static {
+		StringBuilder ascii = new StringBuilder(MAX_LENGTH);
+		for (int i = 0; i < MAX_LENGTH; i++)
+			ascii.append((char) (' ' + i % 95));
+		ASCII = ascii.toString();
+		String pattern = "aé€😀\ud800b\udc00߿ࠀ￿\u0000\u007f\u0080􏿿";
+		StringBuilder mixed = new StringBuilder(MAX_LENGTH);
+		while (mixed.length() < MAX_LENGTH)
+			mixed.append(pattern);
+		mixed.setLength(MAX_LENGTH);
+		MIXED = mixed.toString();
+	}
+
+	/**
+	 * Returns the bytes left in a buffer.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @return the bytes from its position to its limit
+	 */
+	private static byte[] remaining(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Encodes a text with {@link BufferPool#encode(String, int, ByteBuffer)}.
+	 *
+	 * @param text
+	 *            the text
+	 * @param direct
+	 *            true to encode into a direct buffer
+	 * @return the bytes
+	 */
+	private static byte[] encode(String text, boolean direct) {
+		int length = BufferPool.utf8Length(text);
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(length)
+				: ByteBuffer.allocate(length);
+		assertEquals(text.length(), BufferPool.encode(text, 0, buffer));
+		assertEquals(length, buffer.position());
+		buffer.flip();
+		return remaining(buffer);
+	}
+
+	/**
+	 * Encodes a text into a frame with
+	 * {@link WebsocketTransport#encodeFrame(String, int, int, ByteBuffer)}.
+	 *
+	 * @param text
+	 *            the text
+	 * @param mask
+	 *            the mask
+	 * @return the frame
+	 */
+	private static ByteBuffer encodeFrame(String text, int mask) {
+		int length = BufferPool.utf8Length(text);
+		ByteBuffer buffer = ByteBuffer.allocate(14 + length);
+		WebsocketTransport.encodeFrame(text, length, mask, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Returns the length of the header of a masked frame, mask included.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @return the length in bytes
+	 */
+	private static int headerLength(ByteBuffer frame) {
+		int length = frame.get(1) & 0x7f;
+		return (length == 127 ? 10 : length == 126 ? 4 : 2) + 4;
+	}
+
+	/**
+	 * Returns the payload of a masked frame, unmasked.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @return the payload
+	 */
+	private static byte[] unmask(ByteBuffer frame) {
+		int header = headerLength(frame);
+		byte[] mask = new byte[4];
+		byte[] payload = new byte[frame.limit() - header];
+		ByteBuffer input = frame.duplicate();
+		input.position(header - 4);
+		input.get(mask).get(payload);
+		for (int i = 0; i < payload.length; i++)
+			payload[i] ^= mask[i & 3];
+		return payload;
+	}
+
+	/**
+	 * Compares a frame of a text with the one Draft_10 builds as a client
+	 * and checks that Draft_10 reads it back as the server.
+	 *
+	 * @param client
+	 *            the draft building frames
+	 * @param server
+	 *            the draft reading frames
+	 * @param text
+	 *            the text
+	 * @param mask
+	 *            the mask
+	 * @throws Exception
+	 *             if Draft_10 fails to read the frame
+	 */
+	private static void checkFrame(Draft client, Draft server, String text,
+			int mask) throws Exception {
+		byte[] bytes = text.getBytes("UTF-8");
+		ByteBuffer frame = encodeFrame(text, mask);
+		List<Framedata> frames = client.createFrames(text, true);
+		assertEquals(1, frames.size());
+		ByteBuffer expected = client.createBinaryFrame(frames.get(0));
+		int header = headerLength(expected);
+		assertEquals(expected.remaining(), frame.remaining());
+		assertEquals(header, headerLength(frame));
+		// Same header up to the mask, which is random.
+		for (int i = 0; i < header - 4; i++)
+			assertEquals(expected.get(i), frame.get(i));
+		assertEquals(mask, frame.getInt(header - 4));
+		assertArrayEquals(bytes, unmask(expected));
+		assertArrayEquals(bytes, unmask(frame));
+		List<Framedata> read = server.translateFrame(frame.duplicate());
+		assertEquals(1, read.size());
+		assertTrue(read.get(0).isFin());
+		assertEquals(Framedata.Opcode.TEXT, read.get(0).getOpcode());
+		assertArrayEquals(bytes, remaining(read.get(0).getPayloadData()));
+	}
+
+	/**
+	 * Lengths and bytes are the same as with String.getBytes for all lengths
+	 * up to {@link #MAX_LENGTH}, with lone surrogates written as '?'.
+	 */
+	@Test
+	public void encodeLikeGetBytes() throws Exception {
+		for (int length = 0; length <= MAX_LENGTH; length++) {
+			String text = MIXED.substring(0, length);
+			byte[] expected = text.getBytes("UTF-8");
+			assertEquals(expected.length, BufferPool.utf8Length(text));
+			assertArrayEquals(expected, encode(text, false));
+			if (length % 97 == 0)
+				assertArrayEquals(expected, encode(text, true));
+		}
+		String[] surrogates = { "\ud800", "\udc00", "\udc00\ud800",
+				"x\ud800", "\ud800x", "😀\ud83d", "\ude00😀" };
+		for (String text : surrogates) {
+			byte[] expected = text.getBytes("UTF-8");
+			assertEquals(expected.length, BufferPool.utf8Length(text));
+			assertArrayEquals(expected, encode(text, false));
+			assertArrayEquals(expected, encode(text, true));
+		}
+	}
+
+	/**
+	 * Encoding into buffers too small for the whole text continues where it
+	 * stopped and never splits a char.
+	 */
+	@Test
+	public void encodeInPieces() throws Exception {
+		String text = MIXED.substring(0, 1000);
+		byte[] expected = text.getBytes("UTF-8");
+		for (int size = 4; size <= 9; size++) {
+			ByteBuffer all = ByteBuffer.allocate(expected.length);
+			ByteBuffer piece = ByteBuffer.allocate(size);
+			int from = 0;
+			while (from < text.length()) {
+				piece.clear();
+				int next = BufferPool.encode(text, from, piece);
+				assertTrue(next > from);
+				piece.flip();
+				byte[] bytes = remaining(piece);
+				assertArrayEquals(text.substring(from, next).getBytes("UTF-8"),
+						bytes);
+				all.put(bytes);
+				from = next;
+			}
+			assertArrayEquals(expected, all.array());
+		}
+	}
+
+	/**
+	 * Frames match the ones of Draft_10 for all lengths up to
+	 * {@link #MAX_LENGTH}, which covers the 7, 16 and 64 bit lengths, and for
+	 * texts of multi byte chars.
+	 */
+	@Test
+	public void encodeFramesLikeDraft10() throws Exception {
+		Draft client = new Draft_10();
+		client.setParseMode(Role.CLIENT);
+		Draft server = new Draft_10();
+		server.setParseMode(Role.SERVER);
+		Random random = new Random(42);
+		for (int length = 0; length <= MAX_LENGTH; length++) {
+			checkFrame(client, server, ASCII.substring(0, length),
+					random.nextInt());
+			if (length % 31 == 0)
+				checkFrame(client, server, MIXED.substring(0, length),
+						random.nextInt());
+		}
+		int[] masks = { 0, -1, 0x01020304, 0x80000000 };
+		String[] texts = { "", "\ud800", "é", "😀",
+				ASCII.substring(0, 125), MIXED.substring(0, 125),
+				MIXED.substring(0, 65535), MIXED.substring(0, 65536) };
+		for (int mask : masks)
+			for (String text : texts)
+				checkFrame(client, server, text, mask);
+	}
+
+	/**
+	 * The length is written in the shortest form around its limits.
+	 */
+	@Test
+	public void lengthForms() {
+		int[][] forms = { { 0, 2 }, { 125, 2 }, { 126, 4 }, { 65535, 4 },
+				{ 65536, 10 }, { 70000, 10 } };
+		for (int[] form : forms) {
+			ByteBuffer frame = encodeFrame(ASCII.substring(0, form[0]), 0);
+			assertEquals(0x81, frame.get(0) & 0xff);
+			assertEquals(form[1] + 4, headerLength(frame));
+			if (form[1] == 4)
+				assertEquals(form[0], frame.getShort(2) & 0xffff);
+			else if (form[1] == 10)
+				assertEquals((long) form[0], frame.getLong(2));
+			else
+				assertEquals(0x80 | form[0], frame.get(1) & 0xff);
+		}
+	}
+}
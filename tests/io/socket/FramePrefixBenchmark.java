@@ -0,0 +1,70 @@
+/*
+ * socket.io-java-client FramePrefixBenchmark.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import io.socket.testutils.Benchmark;
+
+/**
+ * The Class FramePrefixBenchmark. Compares building event messages through
+ * {@link IOMessage#toString()}, encoding the name of the event every time,
+ * with appending the arguments to the prefix cached by {@link FramePrefixes},
+ * with and without a message id.
+ */
+public class FramePrefixBenchmark {
+
+	/** Messages built per round. */
+	private static final int MESSAGES = 1 << 21;
+
+	/** The namespace. */
+	private static final String NAMESPACE = "/game";
+
+	/** The event name. */
+	private static final String EVENT = "position";
+
+	/** Keeps the messages from being optimized away. */
+	static long sink;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            unused
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		final Object[] arguments = { "p1", 1250, -300 };
+		final FramePrefixes prefixes = new FramePrefixes(NAMESPACE);
+		for (final int id : new int[] { 0, 4711 }) {
+			String label = id == 0 ? "no ack" : "ack";
+			double before = new Benchmark("IOMessage.toString(), " + label) {
+				@Override
+				protected void run(int iterations) throws Exception {
+					for (int i = 0; i < iterations; i++) {
+						IOMessage message = new IOMessage(IOMessage.TYPE_EVENT,
+								NAMESPACE, EncodedEvent.encode(EVENT,
+										arguments));
+						if (id != 0)
+							message.setId(id + "+");
+						sink += message.toString().length();
+					}
+				}
+			}.measure(MESSAGES);
+			double after = new Benchmark("cached prefix, " + label) {
+				@Override
+				protected void run(int iterations) throws Exception {
+					for (int i = 0; i < iterations; i++)
+						sink += IOConnection.eventFrame(prefixes, id, EVENT,
+								arguments).length();
+				}
+			}.measure(MESSAGES);
+			System.out.println(String.format("speedup: %.1fx", before / after));
+		}
+	}
+}
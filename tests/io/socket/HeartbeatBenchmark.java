@@ -0,0 +1,89 @@
+/*
+ * socket.io-java-client HeartbeatBenchmark.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ * 
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import io.socket.testutils.Benchmark;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The Class HeartbeatBenchmark. Compares the per message cost of resetting
+ * the heartbeat timeout by rescheduling a {@link TimerTask} with writing the
+ * timestamp checked by the {@link ConnectionMonitor}.
+ */
+public class HeartbeatBenchmark {
+
+	/** Messages per round. */
+	private static final int MESSAGES = 1000000;
+
+	/** The heartbeat life time used by both variants. */
+	private static final long LIFE_TIME = 85000;
+
+	/** The timer used by the rescheduling variant. */
+	private final Timer timer = new Timer("backgroundTimer", true);
+
+	/** The currently scheduled task of the rescheduling variant. */
+	private TimerTask timeoutTask;
+
+	/** The timestamp of the deadline variant. */
+	private volatile long lastMessage;
+
+	/**
+	 * Resets the timeout as IOConnection did before: cancel and reschedule
+	 * while holding the connection monitor.
+	 */
+	private synchronized void rescheduleTimerTask() {
+		if (timeoutTask != null)
+			timeoutTask.cancel();
+		timeoutTask = new TimerTask() {
+			@Override
+			public void run() {
+			}
+		};
+		timer.schedule(timeoutTask, LIFE_TIME);
+	}
+
+	/**
+	 * Resets the timeout as IOConnection does now.
+	 */
+	private void writeTimestamp() {
+		lastMessage = System.nanoTime();
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param args
+	 *            unused
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		final HeartbeatBenchmark benchmark = new HeartbeatBenchmark();
+		double before = new Benchmark("TimerTask cancel + schedule") {
+			@Override
+			protected void run(int iterations) {
+				for (int i = 0; i < iterations; i++)
+					benchmark.rescheduleTimerTask();
+				// Cancelled tasks stay queued until they expire.
+				benchmark.timer.purge();
+			}
+		}.measure(MESSAGES);
+		double after = new Benchmark("volatile timestamp") {
+			@Override
+			protected void run(int iterations) {
+				for (int i = 0; i < iterations; i++)
+					benchmark.writeTimestamp();
+			}
+		}.measure(MESSAGES);
+		System.out.println(String.format("speedup: %.1fx", before / after));
+		benchmark.timer.cancel();
+	}
+}
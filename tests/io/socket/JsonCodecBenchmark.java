@@ -0,0 +1,158 @@
+/*
+ * socket.io-java-client JsonCodecBenchmark.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import io.socket.testutils.Benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The Class JsonCodecBenchmark. Compares {@link StreamingJsonCodec} with
+ * {@link OrgJsonCodec} encoding the arguments of an event and decoding a
+ * received event, for a small event of about 200 bytes and a large one of
+ * about 50 KB.
+ */
+public class JsonCodecBenchmark {
+
+	/** Size of the small event in chars. */
+	private static final int SMALL = 200;
+
+	/** Size of the large event in chars. */
+	private static final int LARGE = 50 * 1024;
+
+	/** Chars encoded or decoded per round. */
+	private static final int CHARS_PER_ROUND = 64 * 1024 * 1024;
+
+	/** Keeps the results from being optimized away. */
+	static long sink;
+
+	/**
+	 * Returns the data of an event whose arguments are a list of records,
+	 * growing the list until the data has at least the given size.
+	 *
+	 * @param size
+	 *            the size in chars
+	 * @return the data
+	 * @throws Exception
+	 *             the exception
+	 */
+	private static String event(int size) throws Exception {
+		JSONArray records = new JSONArray();
+		String data;
+		int i = 0;
+		do {
+			records.put(new JSONObject()
+					.put("id", 1000 + i)
+					.put("user", "user" + i)
+					.put("x", 10.5 + i)
+					.put("active", i % 2 == 0)
+					.put("tags", new JSONArray().put("a").put("b"))
+					.put("text", "Hello, \"world\" <3 ünïcode \n " + i));
+			data = new JSONObject().put("name", "update")
+					.put("args", new JSONArray().put(records)).toString();
+			i++;
+		} while (data.length() < size);
+		return data;
+	}
+
+	/**
+	 * Returns a benchmark encoding the arguments of an event.
+	 *
+	 * @param name
+	 *            the name printed in the report
+	 * @param codec
+	 *            the codec
+	 * @param args
+	 *            the arguments
+	 * @return the benchmark
+	 */
+	private static Benchmark encode(String name, final JsonCodec codec,
+			final Object[] args) {
+		return new Benchmark(name) {
+			@Override
+			protected void run(int iterations) throws Exception {
+				for (int i = 0; i < iterations; i++) {
+					StringBuilder out = new StringBuilder();
+					codec.encode(args, out);
+					sink += out.toString().length();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns a benchmark decoding an event.
+	 *
+	 * @param name
+	 *            the name printed in the report
+	 * @param codec
+	 *            the codec
+	 * @param text
+	 *            the event
+	 * @return the benchmark
+	 */
+	private static Benchmark decode(String name, final JsonCodec codec,
+			final String text) {
+		return new Benchmark(name) {
+			@Override
+			protected void run(int iterations) throws Exception {
+				for (int i = 0; i < iterations; i++)
+					sink += ((JSONObject) codec.decode(text)).length();
+			}
+		};
+	}
+
+	/**
+	 * Compares both codecs on an event.
+	 *
+	 * @param label
+	 *            describes the event
+	 * @param text
+	 *            the event
+	 * @throws Exception
+	 *             the exception
+	 */
+	private static void compare(String label, String text) throws Exception {
+		JsonCodec baseline = new OrgJsonCodec();
+		JsonCodec streaming = new StreamingJsonCodec();
+		JSONArray array = new JSONObject(text).getJSONArray("args");
+		Object[] args = new Object[array.length()];
+		for (int i = 0; i < args.length; i++)
+			args[i] = array.get(i);
+		int iterations = CHARS_PER_ROUND / text.length();
+		double before = encode("org.json encode, " + label, baseline, args)
+				.measure(iterations);
+		double after = encode("streaming encode, " + label, streaming, args)
+				.measure(iterations);
+		System.out.println(String.format("encode speedup: %.1fx", before
+				/ after));
+		before = decode("org.json decode, " + label, baseline, text).measure(
+				iterations);
+		after = decode("streaming decode, " + label, streaming, text)
+				.measure(iterations);
+		System.out.println(String.format("decode speedup: %.1fx", before
+				/ after));
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            unused
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String small = event(SMALL);
+		String large = event(LARGE);
+		compare(small.length() + " chars", small);
+		compare(large.length() + " chars", large);
+	}
+}
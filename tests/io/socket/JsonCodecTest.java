@@ -0,0 +1,230 @@
+/*
+ * socket.io-java-client JsonCodecTest.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * The Class JsonCodecTest. Checks that {@link StreamingJsonCodec} writes and
+ * reads JSON the way {@link OrgJsonCodec} does.
+ */
+public class JsonCodecTest {
+
+	/** The codec under test. */
+	private final JsonCodec streaming = new StreamingJsonCodec();
+
+	/** The codec it is compared to. */
+	private final JsonCodec org = new OrgJsonCodec();
+
+	/** Numbers decoded the same way by both codecs. */
+	private static final String[] NUMBERS = { "0", "-0", "7", "-7", "1.5",
+			"-1.5e10", "1E2", "1e+2", "1e-2", "0.1", "1.0", "100.0",
+			"1.5E300", "4.9E-324", "2147483647",
+			"2147483648", "-2147483648", "-2147483649",
+			"123456789012345678", "1234567890123456789",
+			"9223372036854775807", "9223372036854775808",
+			"-9223372036854775808", "-9223372036854775809",
+			"123456789012345678901234567890" };
+
+	/** Numbers too large for a Double, read as infinity by both codecs. */
+	private static final String[] OVERFLOWING = { "1e400", "-1e400" };
+
+	/** Valid JSON rejected by neither codec. */
+	private static final String[] TEXTS = { "true", "false", "null", "\"\"",
+			"\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\"", "\"\\u00e9\\u2028\\ud800\"",
+			"[]", " [ ] ", "{}", "[null,true,\"x\",[1,[2]],{}]",
+			"{\"a\":1,\"b\":[1.5,{\"c\":null}],\"d\":\"e\"}",
+			"\n{ \"a\" : [ 1 , 2 ] }\t" };
+
+	/** Sloppy JSON org.json accepts, but {@link StreamingJsonCodec} not. */
+	private static final String[] SLOPPY = { "[1,]", "{\"a\":1,}", "'a'",
+			"{a:1}", "[1 2]", "\"\\q\"", "\"a\u0001\"", "nul", "NaN",
+			"Infinity", "0x10", ".5", "1e", "-", "1.2.3", "1-2" };
+
+	/**
+	 * Describes a decoded value so values of both codecs can be compared.
+	 *
+	 * @param value
+	 *            the value
+	 * @return its class and text
+	 */
+	private static String describe(Object value) {
+		return value.getClass().getName() + ":" + value;
+	}
+
+	/**
+	 * Encodes a value.
+	 *
+	 * @param codec
+	 *            the codec
+	 * @param value
+	 *            the value
+	 * @return the text
+	 * @throws JSONException
+	 *             if encoding fails
+	 */
+	private static String encode(JsonCodec codec, Object value)
+			throws JSONException {
+		StringBuilder out = new StringBuilder();
+		codec.encode(value, out);
+		return out.toString();
+	}
+
+	/**
+	 * Values are written exactly like org.json writes them.
+	 */
+	@Test
+	public void encodeLikeOrgJson() throws JSONException {
+		JSONObject object = new JSONObject();
+		object.put("a", 1);
+		object.put("b", new JSONArray(Arrays.asList(1.5, "x", JSONObject.NULL)));
+		object.put("c", new JSONObject());
+		Object[] values = { null, JSONObject.NULL, true, false, 0, -1, 1.5,
+				1.0, 100.0, -0.0, 1e300, 1e-7, 1.5f, 0.1f, Double.MIN_VALUE,
+				Long.MAX_VALUE, Long.MIN_VALUE, Integer.MIN_VALUE, (byte) 3,
+				(short) 4, new BigInteger("123456789012345678901234567890"),
+				new BigDecimal("1.50"), "", "plain", object, new JSONArray(),
+				Collections.singletonMap("k", Arrays.asList(1, 2)),
+				Arrays.asList("a", null, 2), new int[] { 1, 2 },
+				new Object[] { "a", new Object[] { 1 } }, Thread.State.NEW };
+		for (Object value : values)
+			assertEquals(encode(org, value), encode(streaming, value));
+	}
+
+	/**
+	 * Every char is escaped like org.json does and decodes back to itself,
+	 * lone surrogates included.
+	 */
+	@Test
+	public void escapeLikeOrgJson() throws JSONException {
+		StringBuilder all = new StringBuilder();
+		for (int c = 0; c <= Character.MAX_VALUE; c++)
+			all.append((char) c);
+		String[] strings = { all.toString(), "</script>", "\ud800",
+				"a\udc00b", "\udbff\udfff", "\\\"", "\u0085\u2028\u2029" };
+		for (String s : strings) {
+			String text = encode(streaming, s);
+			assertEquals(encode(org, s), text);
+			assertEquals(s, streaming.decode(text));
+			assertEquals(s, org.decode(text));
+		}
+	}
+
+	/**
+	 * Numbers become Integers, Longs and Doubles like with org.json.
+	 */
+	@Test
+	public void decodeNumbersLikeOrgJson() throws JSONException {
+		for (String number : OVERFLOWING)
+			assertEquals(describe(org.decode(number)),
+					describe(streaming.decode(number)));
+		for (String number : NUMBERS) {
+			assertEquals(describe(org.decode(number)),
+					describe(streaming.decode(number)));
+			String array = "[" + number + "," + number + "]";
+			assertEquals(describe(org.decode(array)),
+					describe(streaming.decode(array)));
+		}
+	}
+
+	/**
+	 * Valid JSON decodes to the same values as with org.json.
+	 */
+	@Test
+	public void decodeLikeOrgJson() throws JSONException {
+		for (String text : TEXTS)
+			assertEquals(describe(org.decode(text)),
+					describe(streaming.decode(text)));
+	}
+
+	/**
+	 * Decoding what has been encoded gives back the same text, and the same
+	 * values as with org.json.
+	 */
+	@Test
+	public void roundTrip() throws JSONException {
+		for (String text : TEXTS) {
+			Object value = streaming.decode(text);
+			String encoded = encode(streaming, value);
+			assertEquals(encode(org, org.decode(text)), encoded);
+			assertEquals(describe(org.decode(encoded)),
+					describe(streaming.decode(encoded)));
+			assertEquals(encoded, encode(streaming, streaming.decode(encoded)));
+		}
+		for (String number : NUMBERS) {
+			// Both write whole Doubles without fraction, so 1.0 comes back
+			// as an Integer either way.
+			assertEquals(
+					describe(org.decode(encode(org, org.decode(number)))),
+					describe(streaming.decode(encode(streaming,
+							streaming.decode(number)))));
+		}
+	}
+
+	/**
+	 * Numbers JSON has no text for are rejected by both codecs.
+	 */
+	@Test
+	public void rejectNonFiniteNumbers() {
+		Object[] values = { Double.NaN, Double.POSITIVE_INFINITY,
+				Float.NEGATIVE_INFINITY };
+		for (Object value : values) {
+			for (JsonCodec codec : new JsonCodec[] { streaming, org }) {
+				try {
+					encode(codec, value);
+					fail("Encoded " + value);
+				} catch (JSONException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Events with sloppy JSON are still read if {@link OrgJsonCodec} is used.
+	 */
+	@Test
+	public void sloppyEventsWithOrgJson() throws JSONException {
+		EventArguments args = new EventArguments(
+				"{name:'x',\"args\":[1,{'a':[2,]},]}", org);
+		assertEquals("x", args.getEvent());
+		assertEquals(2, args.length());
+		assertEquals(1, args.get(0));
+		assertEquals("{\"a\":[2]}", args.getRaw(1));
+		try {
+			new EventArguments("{\"name\":\"x\",\"args\":[1,]}", streaming);
+			fail("Accepted a trailing comma");
+		} catch (JSONException e) {
+		}
+	}
+
+	/**
+	 * Sloppy JSON org.json lets through is rejected.
+	 */
+	@Test
+	public void rejectSloppyJson() throws JSONException {
+		for (String text : SLOPPY) {
+			assertNotNull(org.decode(text));
+			try {
+				streaming.decode(text);
+				fail("Accepted " + text);
+			} catch (JSONException e) {
+			}
+		}
+	}
+}
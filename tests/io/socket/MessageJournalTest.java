@@ -0,0 +1,272 @@
+/*
+ * socket.io-java-client MessageJournalTest.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The Class MessageJournalTest. Reopens journals the way a new process does
+ * after the old one has ended or crashed.
+ */
+public class MessageJournalTest {
+
+	/** Size of the length and the CRC preceding each message. */
+	private static final int HEADER_SIZE = 8;
+
+	/** The directory of the journal under test. */
+	private File directory;
+
+	/**
+	 * Creates an empty directory.
+	 */
+	@Before
+	public void createDirectory() throws IOException {
+		directory = File.createTempFile("journal", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	/**
+	 * Deletes the directory.
+	 */
+	@After
+	public void deleteDirectory() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Opens the journal.
+	 *
+	 * @param segmentSize
+	 *            size of new segments in bytes
+	 * @return the journal
+	 */
+	private MessageJournal open(int segmentSize) throws IOException {
+		return new MessageJournal(directory, JournalSync.NEVER, segmentSize);
+	}
+
+	/**
+	 * Returns the file of a segment.
+	 *
+	 * @param index
+	 *            the index
+	 * @return the file
+	 */
+	private File segment(int index) {
+		return new File(directory, String.format("%010d", index) + ".seg");
+	}
+
+	/**
+	 * Reads all messages without removing them.
+	 *
+	 * @param journal
+	 *            the journal
+	 * @return the messages, oldest first
+	 */
+	private static List<String> peekAll(MessageJournal journal) {
+		String[] messages = new String[journal.size() + 1];
+		int count = journal.peek(messages, messages.length);
+		return Arrays.asList(messages).subList(0, count);
+	}
+
+	/**
+	 * Appends messages.
+	 *
+	 * @param journal
+	 *            the journal
+	 * @param messages
+	 *            the messages
+	 */
+	private static void append(MessageJournal journal, String... messages)
+			throws IOException {
+		for (String message : messages)
+			journal.append(message);
+	}
+
+	/**
+	 * Overwrites a byte of a segment, like a crash in the middle of writing.
+	 *
+	 * @param index
+	 *            the index of the segment
+	 * @param offset
+	 *            the offset of the byte
+	 * @param value
+	 *            the new value
+	 */
+	private void corrupt(int index, int offset, int value) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment(index), "rw");
+		try {
+			file.seek(offset);
+			file.write(value);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Messages left over are read again by the next journal, without their
+	 * acknowledges. Messages appended afterwards keep theirs.
+	 */
+	@Test
+	public void recoverWithoutAcks() throws IOException {
+		MessageJournal journal = open(4096);
+		append(journal, "5:1+::{\"name\":\"a\"}", "3:2::x", "3:::y",
+				"5:3+:/ns:{\"name\":\"b\"}");
+		assertEquals(4, journal.size());
+		journal.close();
+
+		journal = open(4096);
+		assertEquals(4, journal.size());
+		append(journal, "5:4+::{\"name\":\"c\"}");
+		assertEquals(Arrays.asList("5:::{\"name\":\"a\"}", "3:::x", "3:::y",
+				"5::/ns:{\"name\":\"b\"}", "5:4+::{\"name\":\"c\"}"),
+				peekAll(journal));
+		journal.close();
+	}
+
+	/**
+	 * Removed messages are not read again, the size and bytes of the rest are
+	 * restored.
+	 */
+	@Test
+	public void recoverReadPosition() throws IOException {
+		MessageJournal journal = open(4096);
+		append(journal, "3:::a", "3:::bb", "3:::ccc");
+		String[] messages = new String[2];
+		assertEquals(2, journal.peek(messages, 2));
+		journal.remove();
+		journal.close();
+
+		journal = open(4096);
+		assertEquals(1, journal.size());
+		assertEquals(7, journal.bytes());
+		assertEquals(Arrays.asList("3:::ccc"), peekAll(journal));
+		journal.remove();
+		assertTrue(journal.isEmpty());
+		journal.close();
+
+		journal = open(4096);
+		assertTrue(journal.isEmpty());
+		assertEquals(0, journal.bytes());
+		journal.close();
+	}
+
+	/**
+	 * Reading stops at a record with a wrong CRC. It is overwritten by the
+	 * next message appended.
+	 */
+	@Test
+	public void recoverTornRecord() throws IOException {
+		MessageJournal journal = open(4096);
+		append(journal, "3:::one", "3:::two", "3:::three");
+		journal.close();
+		// The last byte of "3:::two".
+		corrupt(0, 2 * HEADER_SIZE + 7 + 6, 'x');
+
+		journal = open(4096);
+		assertEquals(1, journal.size());
+		assertEquals(Arrays.asList("3:::one"), peekAll(journal));
+		append(journal, "3:::four");
+		journal.close();
+
+		journal = open(4096);
+		assertEquals(Arrays.asList("3:::one", "3:::four"), peekAll(journal));
+		journal.close();
+	}
+
+	/**
+	 * Reading stops at a record whose length points beyond the segment.
+	 */
+	@Test
+	public void recoverTornLength() throws IOException {
+		MessageJournal journal = open(64);
+		append(journal, "3:::one");
+		journal.close();
+		// Length of the second record, as if only it had been written.
+		corrupt(0, HEADER_SIZE + 7, 0x7f);
+
+		journal = open(64);
+		assertEquals(Arrays.asList("3:::one"), peekAll(journal));
+		append(journal, "3:::two");
+		journal.close();
+
+		journal = open(64);
+		assertEquals(Arrays.asList("3:::one", "3:::two"), peekAll(journal));
+		journal.close();
+	}
+
+	/**
+	 * The rest of a segment too small for the next message is skipped, and
+	 * reading continues with the next segment.
+	 */
+	@Test
+	public void recoverAcrossSkip() throws IOException {
+		MessageJournal journal = open(64);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 20; i++)
+			expected.add("3:::message " + i);
+		append(journal, expected.toArray(new String[0]));
+		assertTrue(segment(1).exists());
+		journal.close();
+
+		journal = open(64);
+		assertEquals(expected, peekAll(journal));
+		journal.close();
+	}
+
+	/**
+	 * A message larger than a segment gets a segment of its own and is read
+	 * again like any other.
+	 */
+	@Test
+	public void recoverLargeRecord() throws IOException {
+		StringBuilder large = new StringBuilder("3:::");
+		for (int i = 0; i < 500; i++)
+			large.append((char) ('a' + i % 26));
+		MessageJournal journal = open(64);
+		append(journal, "3:::before", large.toString(), "3:::after");
+		assertTrue(segment(1).length() >= large.length() + HEADER_SIZE);
+		journal.close();
+
+		journal = open(64);
+		assertEquals(3, journal.size());
+		assertEquals(10 + large.length() + 9, journal.bytes());
+		assertEquals(Arrays.asList("3:::before", large.toString(),
+				"3:::after"), peekAll(journal));
+		journal.close();
+	}
+
+	/**
+	 * Only one journal may use a directory at a time.
+	 */
+	@Test
+	public void directoryLocked() throws IOException {
+		MessageJournal journal = open(4096);
+		try {
+			open(4096);
+			fail("Opened a directory in use");
+		} catch (IOException e) {
+		}
+		journal.close();
+		open(4096).close();
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * socket.io-java-client OutputBufferTest.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The Class OutputBufferTest.
+ */
+public class OutputBufferTest {
+
+	/**
+	 * Returns the queued messages.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @return the messages, oldest first
+	 */
+	private static List<String> queued(OutputBuffer buffer) {
+		List<String> messages = new ArrayList<String>();
+		for (String text : buffer)
+			messages.add(text);
+		return messages;
+	}
+
+	/**
+	 * Removes the oldest message the way a sending thread does.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @return the message
+	 */
+	private static String send(OutputBuffer buffer) {
+		String text = buffer.peek();
+		buffer.remove(new String[] { text }, 1);
+		return text;
+	}
+
+	/**
+	 * Messages beyond the limit of messages or of bytes are refused with
+	 * {@link OverflowPolicy#FAIL_FAST} until room has been made.
+	 */
+	@Test
+	public void failFast() {
+		OutputBuffer buffer = new OutputBuffer(2, 1000,
+				OverflowPolicy.FAIL_FAST, 0);
+		assertTrue(buffer.offer("a"));
+		assertTrue(buffer.offer("b"));
+		try {
+			buffer.offer("c");
+			fail("Exceeded the limit of messages");
+		} catch (OutputBufferFullException e) {
+		}
+		assertEquals(2, buffer.size());
+		assertEquals(4, buffer.bytes());
+		assertEquals("a", send(buffer));
+		assertTrue(buffer.offer("c"));
+
+		buffer = new OutputBuffer(100, 10, OverflowPolicy.FAIL_FAST, 0);
+		assertTrue(buffer.offer("abcd"));
+		try {
+			buffer.offer("xy");
+			fail("Exceeded the limit of bytes");
+		} catch (OutputBufferFullException e) {
+		}
+		assertTrue(buffer.offer("x"));
+		assertEquals(10, buffer.bytes());
+	}
+
+	/**
+	 * A message larger than the limit of bytes still fits into an empty
+	 * buffer, so it is not refused forever.
+	 */
+	@Test
+	public void largeMessageFitsWhenEmpty() {
+		OutputBuffer buffer = new OutputBuffer(100, 4,
+				OverflowPolicy.FAIL_FAST, 0);
+		assertTrue(buffer.offer("abcdef"));
+		assertEquals(12, buffer.bytes());
+	}
+
+	/**
+	 * {@link OverflowPolicy#DROP_NEWEST} refuses the new message and keeps
+	 * the queued ones.
+	 */
+	@Test
+	public void dropNewest() {
+		OutputBuffer buffer = new OutputBuffer(2, 1000,
+				OverflowPolicy.DROP_NEWEST, 0);
+		assertTrue(buffer.offer("a"));
+		assertTrue(buffer.offer("b"));
+		assertFalse(buffer.offer("c"));
+		assertEquals(2, buffer.size());
+		assertEquals("[a, b]", queued(buffer).toString());
+	}
+
+	/**
+	 * {@link OverflowPolicy#DROP_OLDEST} takes every message and trimming
+	 * hands out the oldest ones until the limits are kept again.
+	 */
+	@Test
+	public void dropOldest() {
+		OutputBuffer buffer = new OutputBuffer(3, 1000,
+				OverflowPolicy.DROP_OLDEST, 0);
+		for (String text : new String[] { "a", "b", "c", "d", "e" })
+			assertTrue(buffer.offer(text));
+		assertEquals(5, buffer.size());
+		assertEquals("[a, b]", buffer.trim().toString());
+		assertEquals(3, buffer.size());
+		assertEquals(6, buffer.bytes());
+		assertEquals("[c, d, e]", queued(buffer).toString());
+		assertTrue(buffer.trim().isEmpty());
+
+		buffer = new OutputBuffer(100, 8, OverflowPolicy.DROP_OLDEST, 0);
+		assertTrue(buffer.offer("ab"));
+		assertTrue(buffer.offer("cd"));
+		assertTrue(buffer.offer("efg"));
+		assertEquals("[ab, cd]", buffer.trim().toString());
+		assertEquals(6, buffer.bytes());
+	}
+
+	/**
+	 * {@link OverflowPolicy#BLOCK} waits until another thread makes room, or
+	 * gives up after the timeout.
+	 */
+	@Test
+	public void block() throws InterruptedException {
+		final OutputBuffer buffer = new OutputBuffer(1, 1000,
+				OverflowPolicy.BLOCK, 5000);
+		assertTrue(buffer.offer("a"));
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				send(buffer);
+			}
+		};
+		sender.start();
+		long start = System.nanoTime();
+		assertTrue(buffer.offer("b"));
+		assertTrue(System.nanoTime() - start >= 50 * 1000000L);
+		sender.join();
+		assertEquals("[b]", queued(buffer).toString());
+
+		OutputBuffer timingOut = new OutputBuffer(1, 1000,
+				OverflowPolicy.BLOCK, 50);
+		assertTrue(timingOut.offer("a"));
+		try {
+			timingOut.offer("b");
+			fail("Did not time out");
+		} catch (OutputBufferFullException e) {
+		}
+		assertEquals(1, timingOut.size());
+	}
+
+	/**
+	 * Threads of the library never wait for room, they might be the ones
+	 * which have to make it.
+	 */
+	@Test
+	public void blockNeverWaitsOnIoThreads() throws InterruptedException {
+		final OutputBuffer buffer = new OutputBuffer(1, 1000,
+				OverflowPolicy.BLOCK, 60000);
+		assertTrue(buffer.offer("a"));
+		final List<Object> results = new ArrayList<Object>();
+		Thread io = new Thread() {
+			@Override
+			public void run() {
+				IOConnection.markIoThread();
+				try {
+					results.add(buffer.offer("b"));
+				} catch (OutputBufferFullException e) {
+					results.add(e);
+				}
+			}
+		};
+		io.start();
+		io.join(5000);
+		assertFalse(io.isAlive());
+		assertEquals(1, results.size());
+		assertTrue(results.get(0) instanceof OutputBufferFullException);
+	}
+
+	/**
+	 * Protocol messages are added regardless of the limits, but count
+	 * against them.
+	 */
+	@Test
+	public void addIgnoresLimits() {
+		OutputBuffer buffer = new OutputBuffer(1, 1000,
+				OverflowPolicy.FAIL_FAST, 0);
+		buffer.add("0::/a");
+		buffer.add("0::/b");
+		assertEquals(2, buffer.size());
+		try {
+			buffer.offer("c");
+			fail("Exceeded the limit of messages");
+		} catch (OutputBufferFullException e) {
+		}
+		assertEquals("[0::/a, 0::/b]", queued(buffer).toString());
+	}
+
+	/**
+	 * A conflated message is replaced in place by newer ones with the same
+	 * key while it is queued, other keys and plain messages keep their
+	 * order.
+	 */
+	@Test
+	public void conflateInPlace() {
+		OutputBuffer buffer = new OutputBuffer(100, 1000,
+				OverflowPolicy.FAIL_FAST, 0);
+		assertTrue(buffer.offer("pos", "p1"));
+		assertTrue(buffer.offer("a"));
+		assertTrue(buffer.offer("other", "o1"));
+		assertTrue(buffer.offer("pos", "p22"));
+		assertTrue(buffer.offer("pos", "p333"));
+		assertEquals("[p333, a, o1]", queued(buffer).toString());
+		assertEquals(3, buffer.size());
+		assertEquals(2 * (4 + 1 + 2), buffer.bytes());
+		assertEquals("p333", send(buffer));
+		assertTrue(buffer.offer("pos", "p4"));
+		assertEquals("[a, o1, p4]", queued(buffer).toString());
+	}
+
+	/**
+	 * A conflated message replaced while being sent is queued again with
+	 * the newer message instead of being lost.
+	 */
+	@Test
+	public void replacedWhileSending() {
+		OutputBuffer buffer = new OutputBuffer(100, 1000,
+				OverflowPolicy.FAIL_FAST, 0);
+		assertTrue(buffer.offer("pos", "p1"));
+		assertTrue(buffer.offer("a"));
+		String[] sent = { buffer.peek() };
+		assertTrue(buffer.offer("pos", "p2"));
+		buffer.remove(sent, 1);
+		assertEquals("[a, p2]", queued(buffer).toString());
+		assertEquals(2, buffer.size());
+		assertEquals("a", send(buffer));
+		assertEquals("p2", send(buffer));
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.size());
+		assertEquals(0, buffer.bytes());
+	}
+
+	/**
+	 * Replacing a queued conflated message needs no room, adding a new key
+	 * is subject to the limits.
+	 */
+	@Test
+	public void conflateWithinLimits() {
+		OutputBuffer buffer = new OutputBuffer(2, 1000,
+				OverflowPolicy.FAIL_FAST, 0);
+		assertTrue(buffer.offer("pos", "p1"));
+		assertTrue(buffer.offer("a"));
+		assertTrue(buffer.offer("pos", "p2"));
+		try {
+			buffer.offer("other", "o1");
+			fail("Exceeded the limit of messages");
+		} catch (OutputBufferFullException e) {
+		}
+		assertEquals("[p2, a]", queued(buffer).toString());
+	}
+
+	/**
+	 * A conflated message dropped by {@link OverflowPolicy#DROP_OLDEST}
+	 * frees its key, so the next one is queued at the end.
+	 */
+	@Test
+	public void dropOldestFreesKey() {
+		OutputBuffer buffer = new OutputBuffer(2, 1000,
+				OverflowPolicy.DROP_OLDEST, 0);
+		assertTrue(buffer.offer("pos", "p1"));
+		assertTrue(buffer.offer("a"));
+		assertTrue(buffer.offer("b"));
+		assertEquals("[p1]", buffer.trim().toString());
+		assertTrue(buffer.offer("pos", "p2"));
+		assertEquals("[a]", buffer.trim().toString());
+		assertEquals("[b, p2]", queued(buffer).toString());
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * socket.io-java-client SendContentionBenchmark.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import io.socket.testutils.Benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CyclicBarrier;
+import java.util.logging.Level;
+
+/**
+ * The Class SendContentionBenchmark. Compares many threads sending on one
+ * connection through a synchronized send method, as IOConnection did before,
+ * with sending through {@link IOConnection#send(SocketIO, IOAcknowledge,
+ * String)}, which queues and lets one of the senders flush. Both hand the
+ * messages to a {@link StubTransport}.
+ */
+public class SendContentionBenchmark {
+
+	/** Messages per round, shared by all threads. */
+	private static final int MESSAGES = 1 << 18;
+
+	/** Default number of sending threads. */
+	private static final int THREADS = 16;
+
+	/** The message sent. */
+	private static final String TEXT = "{\"name\":\"tick\",\"args\":[42]}";
+
+	/**
+	 * The Class StubTransport. Writes each call to the transport as one
+	 * datagram to a socket nobody reads, so every call costs a system call
+	 * like a write to the network does.
+	 */
+	private static class StubTransport implements IOTransport {
+
+		/** The channel written to. */
+		private final DatagramChannel channel;
+
+		/** The address written to. */
+		private final SocketAddress target;
+
+		/** Holds the encoded messages of a call. */
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+
+		/**
+		 * Instantiates a new stub transport.
+		 * 
+		 * @throws IOException
+		 *             if the sockets cannot be opened
+		 */
+		StubTransport() throws IOException {
+			DatagramChannel sink = DatagramChannel.open();
+			sink.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			target = sink.socket().getLocalSocketAddress();
+			channel = DatagramChannel.open();
+		}
+
+		@Override
+		public void connect() {
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public void send(String text) throws IOException {
+			sendBulk(new String[] { text });
+		}
+
+		@Override
+		public boolean canSendBulk() {
+			return true;
+		}
+
+		@Override
+		public synchronized void sendBulk(String[] texts) throws IOException {
+			buffer.clear();
+			for (String text : texts)
+				buffer.put(text.getBytes("UTF-8"));
+			buffer.flip();
+			channel.send(buffer, target);
+		}
+
+		@Override
+		public void invalidate() {
+		}
+
+		@Override
+		public String getName() {
+			return "stub";
+		}
+	}
+
+	/**
+	 * The Class Sender. Something many threads send through.
+	 */
+	private static abstract class Sender {
+
+		/**
+		 * Sends a message.
+		 *
+		 * @param text
+		 *            the message
+		 * @throws Exception
+		 *             if sending fails
+		 */
+		abstract void send(String text) throws Exception;
+	}
+
+	/**
+	 * Returns a benchmark sending from several threads at once.
+	 *
+	 * @param name
+	 *            the name printed in the report
+	 * @param sender
+	 *            the sender
+	 * @param threads
+	 *            the number of threads
+	 * @return the benchmark
+	 */
+	private static Benchmark concurrently(String name, final Sender sender,
+			final int threads) {
+		return new Benchmark(name) {
+			@Override
+			protected void run(int iterations) throws Exception {
+				final int perThread = iterations / threads;
+				final CyclicBarrier start = new CyclicBarrier(threads + 1);
+				Thread[] workers = new Thread[threads];
+				for (int i = 0; i < threads; i++) {
+					workers[i] = new Thread() {
+						@Override
+						public void run() {
+							try {
+								start.await();
+								for (int j = 0; j < perThread; j++)
+									sender.send(TEXT);
+							} catch (Exception e) {
+								throw new RuntimeException(e);
+							}
+						}
+					};
+					workers[i].start();
+				}
+				start.await();
+				for (Thread worker : workers)
+					worker.join();
+			}
+		};
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            the number of threads, 16 if omitted
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : THREADS;
+		IOConnection.logger.setLevel(Level.WARNING);
+		final SocketIO socket = new SocketIO();
+		final StubTransport locked = new StubTransport();
+		double before = concurrently(
+				"synchronized send, " + threads + " threads", new Sender() {
+					@Override
+					synchronized void send(String text) throws Exception {
+						String message = new IOMessage(IOMessage.TYPE_MESSAGE,
+								socket.getNamespace(), text).toString();
+						IOConnection.logger.info("> " + message);
+						locked.send(message);
+					}
+				}, threads).measure(MESSAGES);
+		final IOConnection connection = IOConnection.createForTesting(
+				"http://localhost/", socket, new StubTransport());
+		double after = concurrently("IOConnection.send, " + threads + " threads",
+				new Sender() {
+					@Override
+					void send(String text) {
+						connection.send(socket, null, text);
+					}
+				}, threads).measure(MESSAGES);
+		System.out.println(String.format("speedup: %.1fx", before / after));
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * socket.io-java-client XhrLatencyBenchmark.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ *
+ * See LICENSE file for more information
+ */
+package io.socket;
+
+import io.socket.testutils.Benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The Class XhrLatencyBenchmark. Measures the round trip of an event echoed
+ * by a local stand-in for a socket.io server speaking xhr-polling only, once
+ * with the fixed 100ms pause between requests the transport used to have and
+ * once with the default pacing, with and without duplex mode.
+ */
+public class XhrLatencyBenchmark implements IOCallback {
+
+	/** Round trips per round. */
+	private static final int ROUND_TRIPS = 10;
+
+	/** The session id handed out by {@link StandInServer}. */
+	private static final String SESSION_ID = "benchmark";
+
+	/** How long {@link StandInServer} holds a poll request in milliseconds. */
+	private static final long POLL_DURATION = 20000;
+
+	/** Receives the echoed events. */
+	private final SynchronousQueue<Object> echoes = new SynchronousQueue<Object>();
+
+	/** Receives the connect event. */
+	private final SynchronousQueue<Object> connects = new SynchronousQueue<Object>();
+
+	/**
+	 * The Class StandInServer. Handshakes a single session and echoes every
+	 * event posted to it through the next poll request.
+	 */
+	private static class StandInServer implements HttpHandler {
+
+		/** The http server. */
+		private final HttpServer server;
+
+		/** true if the client posts while polling. */
+		private final boolean duplex;
+
+		/** Messages waiting for a poll request. */
+		private final List<String> outgoing = new ArrayList<String>();
+
+		/** true after the first poll request has been answered. */
+		private boolean connected = false;
+
+		/**
+		 * Incremented by every post. A client which does not post while
+		 * polling has aborted its poll request before posting, so pending
+		 * polls are given up then.
+		 */
+		private int generation = 0;
+
+		/**
+		 * Instantiates and starts a new stand-in server on a free port.
+		 *
+		 * @param duplex
+		 *            true if the client posts while polling
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		StandInServer(boolean duplex) throws IOException {
+			this.duplex = duplex;
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+					0);
+			server.createContext("/", this);
+			server.setExecutor(Executors.newCachedThreadPool());
+			server.start();
+		}
+
+		/**
+		 * Returns the url of this server.
+		 *
+		 * @return the url
+		 */
+		String getUrl() {
+			return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+		}
+
+		/**
+		 * Stops this server.
+		 */
+		void stop() {
+			server.stop(0);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.
+		 * HttpExchange)
+		 */
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath();
+			String response;
+			try {
+				if (path.endsWith(IOConnection.SOCKET_IO_1))
+					response = SESSION_ID + ":60:60:"
+							+ XhrTransport.TRANSPORT_NAME;
+				else if ("POST".equals(exchange.getRequestMethod()))
+					response = post(read(exchange.getRequestBody()));
+				else
+					response = poll();
+			} catch (InterruptedException e) {
+				response = "8::";
+			}
+			byte[] body = response.getBytes("UTF-8");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream output = exchange.getResponseBody();
+			output.write(body);
+			output.close();
+		}
+
+		/**
+		 * Handles posted messages.
+		 *
+		 * @param payload
+		 *            the payload
+		 * @return the response
+		 * @throws IOException
+		 *             if the payload is malformed
+		 */
+		private synchronized String post(String payload) throws IOException {
+			FrameDecoder decoder = new FrameDecoder(new StringReader(payload));
+			String message;
+			while ((message = decoder.next()) != null) {
+				if (message.startsWith(IOMessage.TYPE_EVENT + ":"))
+					outgoing.add(message);
+			}
+			if (!duplex)
+				generation++;
+			notifyAll();
+			return "1";
+		}
+
+		/**
+		 * Holds a poll request until messages are available.
+		 *
+		 * @return the response
+		 * @throws InterruptedException
+		 *             if interrupted
+		 */
+		private synchronized String poll() throws InterruptedException {
+			if (!connected) {
+				connected = true;
+				return IOMessage.TYPE_CONNECT + "::";
+			}
+			int generation = this.generation;
+			long deadline = System.currentTimeMillis() + POLL_DURATION;
+			long remaining = POLL_DURATION;
+			while (outgoing.isEmpty() && generation == this.generation
+					&& remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			if (outgoing.isEmpty() || generation != this.generation)
+				return IOMessage.TYPE_NOOP + "::";
+			StringBuilder payload = new StringBuilder();
+			if (outgoing.size() == 1) {
+				payload.append(outgoing.get(0));
+			} else {
+				for (String message : outgoing)
+					payload.append(IOConnection.FRAME_DELIMITER)
+							.append(message.length())
+							.append(IOConnection.FRAME_DELIMITER)
+							.append(message);
+			}
+			outgoing.clear();
+			return payload.toString();
+		}
+
+		/**
+		 * Reads a request body.
+		 *
+		 * @param input
+		 *            the body
+		 * @return the body as string
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		private static String read(InputStream input) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = input.read(buffer)) > 0)
+				bytes.write(buffer, 0, n);
+			input.close();
+			return bytes.toString("UTF-8");
+		}
+	}
+
+	/**
+	 * Measures echo round trips through a fresh stand-in server.
+	 *
+	 * @param name
+	 *            the name printed in the report
+	 * @param backoff
+	 *            the pacing to use
+	 * @param duplex
+	 *            true to post while polling
+	 * @return nanoseconds per round trip
+	 * @throws Exception
+	 *             the exception
+	 */
+	private double measure(String name, Backoff backoff, boolean duplex)
+			throws Exception {
+		StandInServer server = new StandInServer(duplex);
+		final SocketIO socket = new SocketIO(server.getUrl());
+		socket.setXhrPollBackoff(backoff).setXhrDuplex(duplex).connect(this);
+		if (connects.poll(10, TimeUnit.SECONDS) == null)
+			throw new RuntimeException("Connecting timed out");
+		double result = new Benchmark(name) {
+			@Override
+			protected void run(int iterations) throws Exception {
+				for (int i = 0; i < iterations; i++) {
+					socket.emit("echo", i);
+					if (echoes.poll(10, TimeUnit.SECONDS) == null)
+						throw new RuntimeException("Echo timed out");
+				}
+			}
+		}.measure(ROUND_TRIPS);
+		socket.disconnect();
+		server.stop();
+		return result;
+	}
+
+	@Override
+	public void onDisconnect() {
+	}
+
+	@Override
+	public void onConnect() {
+		connects.offer(this);
+	}
+
+	@Override
+	public void onMessage(String data, IOAcknowledge ack) {
+	}
+
+	@Override
+	public void onMessage(JSONObject json, IOAcknowledge ack) {
+	}
+
+	@Override
+	public void on(String event, IOAcknowledge ack, Object... args) {
+		try {
+			echoes.put(this);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	@Override
+	public void onError(SocketIOException socketIOException) {
+		socketIOException.printStackTrace();
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            unused
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		IOConnection.logger.setLevel(Level.WARNING);
+		// Otherwise delayed acks dominate the round trips.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		XhrLatencyBenchmark benchmark = new XhrLatencyBenchmark();
+		Backoff fixed = new Backoff(100, 100) {
+			@Override
+			public long getDelay(int attempt) {
+				return 100;
+			}
+		};
+		Backoff adaptive = new Backoff(100, 1000);
+		double before = benchmark.measure("xhr echo, fixed 100ms pause", fixed,
+				false);
+		double after = benchmark.measure("xhr echo, adaptive pacing",
+				adaptive, false);
+		double duplex = benchmark.measure("xhr echo, adaptive pacing, duplex",
+				adaptive, true);
+		System.out.println(String.format("speedup: %.1fx, duplex: %.1fx",
+				before / after, before / duplex));
+		System.exit(0);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * socket.io-java-client Benchmark.java
+ *
+ * Copyright (c) 2012, Enno Boland
+ * socket.io-java-client is a implementation of the socket.io protocol in Java.
+ * 
+ * See LICENSE file for more information
+ */
+package io.socket.testutils;
+
+/**
+ * The Class Benchmark. A minimal harness for the micro benchmarks. Warms up
+ * the code under test and reports the best of a few measured rounds.
+ */
+public abstract class Benchmark {
+
+	/** Rounds run before measuring. */
+	private static final int WARMUP_ROUNDS = 5;
+
+	/** Rounds measured. */
+	private static final int ROUNDS = 5;
+
+	/** Name printed in the report. */
+	private final String name;
+
+	/**
+	 * Instantiates a new benchmark.
+	 * 
+	 * @param name
+	 *            the name printed in the report
+	 */
+	public Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Runs the operation under test.
+	 * 
+	 * @param iterations
+	 *            how often the operation should be run
+	 * @throws Exception
+	 *             if the operation fails
+	 */
+	protected abstract void run(int iterations) throws Exception;
+
+	/**
+	 * Warms up, measures and prints the cost per operation.
+	 * 
+	 * @param iterations
+	 *            operations per round
+	 * @return nanoseconds per operation of the fastest round
+	 * @throws Exception
+	 *             if the operation fails
+	 */
+	public double measure(int iterations) throws Exception {
+		for (int i = 0; i < WARMUP_ROUNDS; i++)
+			run(iterations);
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			run(iterations);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		double perOp = (double) best / iterations;
+		System.out.println(String.format("%-48s %12.1f ns/op", name, perOp));
+		return perOp;
+	}
+}